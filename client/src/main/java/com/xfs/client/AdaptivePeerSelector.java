@@ -0,0 +1,161 @@
+package com.xfs.client;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import com.xfs.common.Peer;
+
+/**
+ * Peer selector that learns how fast each peer delivers. Every transfer
+ * from a peer updates exponentially weighted averages of the peer's goodput
+ * and failure rate, so a peer that slows down or starts failing loses its
+ * place after a few transfers. A peer is chosen by the time it is expected
+ * to take to deliver a piece:
+ *    (latency + piece size / goodput * (load + 1)) / (1 - failure rate)
+ * The goodput used is an upper confidence bound (UCB1): peers with few
+ * transfers get a bonus that shrinks as their estimate firms up, so slow
+ * looking peers are tried again now and then. The number of transfers
+ * counted for each peer is capped, so the bonus never disappears and a peer
+ * that has become faster is found again. Peers never used are tried first.
+ * A peer whose load is unknown, because it did not answer a load probe in
+ * time, is chosen only when no peer with a known load is left.
+ */
+public class AdaptivePeerSelector implements PeerSelector {
+    /**
+     * Transfer size used to compare peers, in bytes
+     */
+    private static final double REFERENCE_SIZE = 1 << 20;
+
+    /**
+     * Weight of the newest transfer in a peer's averages
+     */
+    private static final double WEIGHT = 0.3;
+
+    /**
+     * Scale of the exploration bonus
+     */
+    private static final double EXPLORATION = 0.5;
+
+    /**
+     * Most transfers counted for a peer when computing its bonus
+     */
+    private static final int MAX_COUNT = 20;
+
+    /**
+     * Highest failure rate used, so a peer that has only failed still has a
+     * finite expected time
+     */
+    private static final double MAX_FAILURE_RATE = 0.95;
+
+    private final ConcurrentHashMap<String, Estimate> estimates =
+	new ConcurrentHashMap<String, Estimate>();
+
+    /**
+     * Transfers recorded for all peers
+     */
+    private final AtomicLong totalCount = new AtomicLong();
+
+    /**
+     * Choose the peer with the shortest expected time to deliver a piece,
+     * preferring peers whose load is known.
+     */
+    @Override
+    public Peer choosePeer(Peer[] peers) {
+	Peer best = null;
+	boolean bestKnown = false;
+	double bestTime = Double.MAX_VALUE;
+	for(Peer peer : peers) {
+	    if(peer == null || peer.getLoad() == Peer.LOAD_DOWN) {
+		continue;
+	    }
+	    boolean known = peer.getLoad() != Peer.LOAD_UNKNOWN;
+	    double time = expectedTime(peer);
+	    if(best == null || (known && !bestKnown) ||
+	       (known == bestKnown && time < bestTime)) {
+		best = peer;
+		bestKnown = known;
+		bestTime = time;
+	    }
+	}
+	return best;
+    }
+
+    /**
+     * Record a transfer from a peer.
+     * @param bytes Bytes delivered
+     * @param nanos Time the transfer took in nanoseconds
+     * @param success false if the transfer failed
+     */
+    @Override
+    public void recordOutcome(Peer peer, long bytes, long nanos,
+			     boolean success) {
+	Estimate estimate = estimates.get(peer.getID());
+	if(estimate == null) {
+	    Estimate created = new Estimate();
+	    estimate = estimates.putIfAbsent(peer.getID(), created);
+	    if(estimate == null) {
+		estimate = created;
+	    }
+	}
+	estimate.add(bytes, nanos, success);
+	totalCount.incrementAndGet();
+    }
+
+    /**
+     * Expected seconds for a peer to deliver a piece, using the optimistic
+     * goodput. A peer never used scores below every peer that has been,
+     * ordered among the unused by load and latency.
+     */
+    double expectedTime(Peer peer) {
+	double latency = Math.max(0, peer.getLatency()) / 1000.0;
+	double sharing = Math.max(0, peer.getLoad()) + 1;
+	Estimate estimate = estimates.get(peer.getID());
+	if(estimate == null || estimate.getCount() == 0) {
+	    return -1.0 / (sharing + latency);
+	}
+	double goodput = estimate.getGoodput();
+	int count = Math.min(MAX_COUNT, estimate.getCount());
+	double bonus = EXPLORATION *
+	    Math.sqrt(Math.log(Math.max(2, totalCount.get())) / count);
+	double transfer = goodput > 0 ?
+	    REFERENCE_SIZE / (goodput * (1 + bonus)) : Double.MAX_VALUE / 4;
+	double failureRate = Math.min(MAX_FAILURE_RATE,
+				      estimate.getFailureRate());
+	return (latency + transfer * sharing) / (1 - failureRate);
+    }
+
+    /**
+     * Averages of one peer's transfers
+     */
+    private static class Estimate {
+	private double goodput;
+	private double failureRate;
+	private int count;
+
+	synchronized void add(long bytes, long nanos, boolean success) {
+	    double failed = success ? 0 : 1;
+	    if(count == 0) {
+		failureRate = failed;
+	    } else {
+		failureRate = WEIGHT * failed + (1 - WEIGHT) * failureRate;
+	    }
+	    if(success && bytes > 0 && nanos > 0) {
+		double sample = bytes * 1e9 / nanos;
+		goodput = goodput == 0 ? sample :
+		    WEIGHT * sample + (1 - WEIGHT) * goodput;
+	    }
+	    count++;
+	}
+
+	synchronized double getGoodput() {
+	    return goodput;
+	}
+
+	synchronized double getFailureRate() {
+	    return failureRate;
+	}
+
+	synchronized int getCount() {
+	    return count;
+	}
+    }
+}
@@ -4,7 +4,8 @@ import com.xfs.common.Peer;
 
 /**
  * Peer selector optimized to choose the peer with the best proportion of load
- * and latency. The proportion was found experimentally.
+ * and latency. The proportion was found experimentally. Of peers with the
+ * same score, the one that delivered fastest recently is chosen.
  */
 public class BestPeerSelector implements PeerSelector {
     /**
@@ -14,12 +15,13 @@ public class BestPeerSelector implements PeerSelector {
     @Override
     public Peer choosePeer(Peer[] peers) {
 	int[] peerScores = computeScores(peers);
-	int minIndex = chooseMin(peerScores);
+	int minIndex = chooseMin(peers, peerScores);
 	return peers[minIndex];
     }
 
     /**
-     * Compute a score for each peer based on latency and load
+     * Compute a score for each peer based on latency and load. Peers whose
+     * load is unknown come after every peer whose load is known.
      * @return list of the score for each peer
      */
     private static int[] computeScores(Peer[] peers) {
@@ -28,6 +30,8 @@ public class BestPeerSelector implements PeerSelector {
 	    if(peers[i] == null || peers[i].getLoad() == -1 ||
 	       peers[i].getLatency() == -1) {
 		peerScores[i] = Integer.MAX_VALUE;
+	    } else if(peers[i].getLoad() == Peer.LOAD_UNKNOWN) {
+		peerScores[i] = Integer.MAX_VALUE - 1;
 	    } else {
 		peerScores[i] = peers[i].getLoad()*12 + peers[i].getLatency();
 	    }
@@ -36,13 +40,16 @@ public class BestPeerSelector implements PeerSelector {
     }
 
     /**
-     * Find the index with the best (lowest) score
+     * Find the index with the best (lowest) score, breaking ties by recent
+     * throughput
      */
-    private static int chooseMin(int[] peerScores) {
+    private static int chooseMin(Peer[] peers, int[] peerScores) {
 	int minScore = Integer.MAX_VALUE;
 	int indexOfMin = 0;
 	for(int i = 0; i < peerScores.length; i++) {
-	    if(peerScores[i] < minScore) {
+	    if(peerScores[i] < minScore ||
+	       (peerScores[i] == minScore && minScore != Integer.MAX_VALUE &&
+		peers[i].getThroughput() > peers[indexOfMin].getThroughput())) {
 		minScore = peerScores[i];
 		indexOfMin = i;
 	    }
@@ -0,0 +1,98 @@
+package com.xfs.client;
+
+import java.io.*;
+import com.xfs.common.MessageReader;
+import com.xfs.common.MessageWriter;
+import com.xfs.common.PeerAction;
+import com.xfs.common.ReplySocket;
+import com.xfs.common.SocketWrapper;
+
+/**
+ * Downloader that carries requests and short replies in the binary protocol
+ * instead of lines of text. File bodies, checksums and hash lists are sent
+ * exactly as FileDownloader sends them. Every request is one message whose
+ * type is the PeerAction code of the request:
+ *    REQUEST filename offset length encodings
+ * where offset and length are varints and filename and encodings are
+ * strings, empty when a request has no encodings. A reply is one message:
+ *    REPLY count field...
+ * with the same fields FileDownloader separates with "::". Since fields are
+ * length-prefixed, file names may contain any character.
+ *
+ * Both ends of a connection must use the same protocol.
+ */
+public class BinaryFileDownloader extends FileDownloader {
+    /**
+     * Type of a reply message
+     */
+    static final int REPLY = 16;
+
+    public BinaryFileDownloader(double threshold) {
+	super(threshold);
+    }
+
+    @Override
+    protected void sendRequest(SocketWrapper sock, PeerAction request)
+	throws IOException {
+	MessageWriter msg = new MessageWriter(request.getAction());
+	msg.writeString(request.getFilename())
+	    .writeVarLong(request.getOffset())
+	    .writeVarLong(request.getLength())
+	    .writeString(request.getEncodings());
+	sock.sendMessage(msg);
+    }
+
+    /**
+     * Read a request message from another peer.
+     * @return A PeerAction object that defines to the caller what action to
+     * take.
+     * @throws EOFException Thrown when the connection is closed before a
+     * request arrives.
+     */
+    @Override
+    public PeerAction processRequest(ReplySocket sock) throws IOException {
+	byte[] data = sock.receiveMessage();
+	if(data == null) {
+	    throw new EOFException("Connection closed");
+	}
+	MessageReader reader = new MessageReader(data);
+	int action = reader.getType();
+	if(action < PeerAction.SEND_LOAD || action > PeerAction.SEND_PONG) {
+	    throw new IOException("Unknown request type " + action);
+	}
+	String filename = reader.readString();
+	long offset = reader.readVarLong();
+	long length = reader.readVarLong();
+	String encodings = reader.readString();
+	return new PeerAction(action, filename, offset, length,
+			      encodings.isEmpty() ? null : encodings);
+    }
+
+    @Override
+    protected void sendReply(ReplySocket sock, String... fields)
+	throws IOException {
+	MessageWriter msg = new MessageWriter(REPLY);
+	msg.writeVarLong(fields.length);
+	for(String field : fields) {
+	    msg.writeString(field);
+	}
+	sock.sendMessage(msg);
+    }
+
+    @Override
+    protected String[] receiveReply(SocketWrapper sock) throws IOException {
+	byte[] data = sock.receiveMessage();
+	if(data == null) {
+	    throw new IOException("Connection closed");
+	}
+	MessageReader reader = new MessageReader(data);
+	if(reader.getType() != REPLY) {
+	    throw new IOException("Unexpected reply type " + reader.getType());
+	}
+	String[] fields = new String[reader.readCount(1)];
+	for(int i = 0; i < fields.length; i++) {
+	    fields[i] = reader.readString();
+	}
+	return fields;
+    }
+}
@@ -0,0 +1,165 @@
+package com.xfs.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Verifies a SHA-1 checksum while data is being received. The expected
+ * checksum is read into a fixed array, the data is hashed as it passes
+ * through to its destination and the two checksums are compared in constant
+ * time. One verifier is kept per thread, so verifying a download allocates
+ * nothing after the thread's first use.
+ */
+class ChecksumVerifier {
+    /**
+     * Length of a SHA-1 checksum in bytes
+     */
+    static final int LENGTH = 20;
+
+    private static final ThreadLocal<ChecksumVerifier> verifiers =
+	new ThreadLocal<ChecksumVerifier>() {
+	    @Override protected ChecksumVerifier initialValue() {
+		return new ChecksumVerifier();
+	    }
+	};
+
+    private final MessageDigest digest;
+    private final byte[] expected = new byte[LENGTH];
+    private final byte[] computed = new byte[LENGTH];
+    private int expectedLength;
+    private OutputStream dest;
+
+    /**
+     * Collects the expected checksum. Bytes past the checksum length are
+     * counted but not kept.
+     */
+    private final OutputStream expectedStream = new OutputStream() {
+	    @Override public void write(int b) {
+		if(expectedLength < LENGTH) {
+		    expected[expectedLength] = (byte)b;
+		}
+		expectedLength++;
+	    }
+
+	    @Override public void write(byte[] b, int off, int len) {
+		for(int i = 0; i < len; i++) {
+		    write(b[off + i]);
+		}
+	    }
+	};
+
+    /**
+     * Hashes bytes on their way to the destination stream.
+     */
+    private final OutputStream digestStream = new OutputStream() {
+	    @Override public void write(int b) throws IOException {
+		digest.update((byte)b);
+		dest.write(b);
+	    }
+
+	    @Override public void write(byte[] b, int off, int len)
+		throws IOException {
+		digest.update(b, off, len);
+		dest.write(b, off, len);
+	    }
+	};
+
+    private ChecksumVerifier() {
+	try {
+	    digest = MessageDigest.getInstance("SHA-1");
+	} catch(NoSuchAlgorithmException e) {
+	    throw new IllegalStateException(e);
+	}
+    }
+
+    /**
+     * Return this thread's verifier, ready for a new checksum.
+     */
+    static ChecksumVerifier get() {
+	ChecksumVerifier verifier = verifiers.get();
+	verifier.digest.reset();
+	verifier.expectedLength = 0;
+	verifier.dest = null;
+	return verifier;
+    }
+
+    /**
+     * Stream that the expected checksum is written to.
+     */
+    OutputStream expectedChecksum() {
+	return expectedStream;
+    }
+
+    /**
+     * Whether a complete checksum was written to expectedChecksum.
+     */
+    boolean hasExpectedChecksum() {
+	return expectedLength == LENGTH;
+    }
+
+    /**
+     * Whether the bytes written to expectedChecksum are exactly the given
+     * bytes. Used to recognize a short marker sent in place of a checksum.
+     */
+    boolean expectedEquals(byte[] value) {
+	if(expectedLength != value.length || value.length > LENGTH) {
+	    return false;
+	}
+	for(int i = 0; i < value.length; i++) {
+	    if(expected[i] != value[i]) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    /**
+     * Whether the expected checksum is the same as a known checksum.
+     */
+    boolean expects(byte[] checksum) {
+	return hasExpectedChecksum() && MessageDigest.isEqual(expected, checksum);
+    }
+
+    /**
+     * Stream that hashes the data and passes it on to dest.
+     */
+    OutputStream hashTo(OutputStream dest) {
+	this.dest = dest;
+	return digestStream;
+    }
+
+    /**
+     * Add bytes to the hash without passing them on.
+     */
+    void update(byte[] bytes, int offset, int length) {
+	digest.update(bytes, offset, length);
+    }
+
+    /**
+     * Compare the hash of the data with the expected checksum.
+     */
+    boolean matches() {
+	return matches(expected, 0);
+    }
+
+    /**
+     * Compare the hash of the data with a checksum stored in an array.
+     * Every byte is compared so the time taken does not depend on where the
+     * checksums differ.
+     */
+    boolean matches(byte[] checksum, int offset) {
+	try {
+	    digest.digest(computed, 0, LENGTH);
+	} catch(DigestException e) {
+	    throw new IllegalStateException(e);
+	}
+	int difference = 0;
+	for(int i = 0; i < LENGTH; i++) {
+	    difference |= computed[i] ^ checksum[offset + i];
+	}
+	return difference == 0;
+    }
+}
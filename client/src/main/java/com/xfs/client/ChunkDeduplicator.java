@@ -0,0 +1,305 @@
+package com.xfs.client;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import com.xfs.common.Peer;
+import com.xfs.common.SocketWrapper;
+
+/**
+ * Fills in a download from chunks this peer already holds in other files.
+ * The manifest of the file is fetched from a peer that has it and every
+ * chunk found in the local chunk index is copied into the partial file.
+ * Pieces made up entirely of local chunks are marked verified. Pieces that
+ * only lack a few chunks get those chunks with range requests, so only the
+ * bytes that are really missing cross the network. Pieces with no local
+ * chunks at all are left for the swarm download.
+ */
+public class ChunkDeduplicator {
+    /**
+     * Interface for communicating with other peers
+     */
+    private Downloader downloader;
+
+    /**
+     * Connections to other peers kept open between requests
+     */
+    private ConnectionPool connections;
+
+    /**
+     * Chunks of the files held by this peer
+     */
+    private ChunkIndex chunkIndex;
+
+    /**
+     * Directory whose files are searched for chunks
+     */
+    private File shareDirectory;
+
+    public ChunkDeduplicator(Downloader downloader, ConnectionPool connections,
+			     ChunkIndex chunkIndex, File shareDirectory) {
+	this.downloader = downloader;
+	this.connections = connections;
+	this.chunkIndex = chunkIndex;
+	this.shareDirectory = shareDirectory;
+    }
+
+    /**
+     * Copy the chunks of a file that are available locally into the partial
+     * file and fetch the chunks that complete partly filled pieces.
+     * @param peers Peers that hold the file, best first
+     * @param state Pieces already verified. Updated with the pieces filled.
+     * @param dest Partial file
+     * @return Number of bytes copied from local files
+     */
+    public long fill(Peer[] peers, String filename, DownloadState state,
+		     FileChannel dest) throws IOException {
+	byte[] manifest = getManifest(peers, filename, state.getFileInfo());
+	if(manifest == null) {
+	    return 0;
+	}
+	chunkIndex.indexDirectory(shareDirectory);
+
+	int pieceSize = state.getPieceSize();
+	int chunkCount = manifest.length / ChunkIndex.ENTRY_LENGTH;
+	long[] covered = new long[state.getPieceCount()];
+	boolean[] local = new boolean[chunkCount];
+	long reused = 0;
+	long offset = 0;
+	for(int i = 0; i < chunkCount; i++) {
+	    int length = ChunkIndex.getChunkLength(manifest, i);
+	    if(!isNeeded(state, offset, length)) {
+		offset += length;
+		continue;
+	    }
+	    ChunkIndex.ChunkLocation location = chunkIndex.find(manifest, i);
+	    if(location != null &&
+	       copyChunk(location, manifest, i, dest, offset)) {
+		local[i] = true;
+		cover(covered, pieceSize, offset, length);
+		reused += length;
+	    }
+	    offset += length;
+	}
+
+	offset = 0;
+	for(int i = 0; i < chunkCount; i++) {
+	    int length = ChunkIndex.getChunkLength(manifest, i);
+	    if(!local[i] && isNeeded(state, offset, length) &&
+	       isPartlyCovered(state, covered, offset, length) &&
+	       fetchChunk(peers, filename, manifest, i, dest, offset)) {
+		cover(covered, pieceSize, offset, length);
+	    }
+	    offset += length;
+	}
+
+	for(int piece = 0; piece < covered.length; piece++) {
+	    if(!state.isVerified(piece) &&
+	       covered[piece] == state.getPieceLength(piece) &&
+	       matchesPieceHash(state, piece, dest)) {
+		state.markVerified(piece);
+	    }
+	}
+	state.checkpoint(dest, true);
+	state.hashVerifiedPrefix(dest);
+	return reused;
+    }
+
+    /**
+     * Ask peers in turn for the manifest of a file and keep the first one
+     * that adds up to the length of the file.
+     * @return Manifest entries or null if no peer sent a usable manifest
+     */
+    private byte[] getManifest(Peer[] peers, String filename, FileInfo info) {
+	for(Peer peer : peers) {
+	    try {
+		SocketWrapper sock = connections.acquire(peer);
+		byte[] manifest;
+		try {
+		    manifest = downloader.getManifest(sock, filename);
+		} catch(IOException e) {
+		    connections.invalidate(sock);
+		    continue;
+		}
+		connections.release(peer, sock);
+		if(manifest != null && totalLength(manifest) == info.getLength()) {
+		    return manifest;
+		}
+	    } catch(IOException e) {
+	    }
+	}
+	return null;
+    }
+
+    private static long totalLength(byte[] manifest) {
+	long total = 0;
+	for(int i = 0; i < manifest.length / ChunkIndex.ENTRY_LENGTH; i++) {
+	    total += ChunkIndex.getChunkLength(manifest, i);
+	}
+	return total;
+    }
+
+    /**
+     * Whether any piece a chunk overlaps still has to be downloaded.
+     */
+    private static boolean isNeeded(DownloadState state, long offset,
+				    int length) {
+	int pieceSize = state.getPieceSize();
+	for(long piece = offset / pieceSize;
+	    piece <= (offset + length - 1) / pieceSize; piece++) {
+	    if(!state.isVerified((int)piece)) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * Whether a chunk overlaps a piece that some local chunks already
+     * cover. Fetching the chunk then saves downloading the rest of the piece.
+     */
+    private static boolean isPartlyCovered(DownloadState state,
+					   long[] covered, long offset,
+					   int length) {
+	int pieceSize = state.getPieceSize();
+	for(long piece = offset / pieceSize;
+	    piece <= (offset + length - 1) / pieceSize; piece++) {
+	    if(!state.isVerified((int)piece) && covered[(int)piece] > 0) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * Add the bytes of a chunk to the count of bytes filled in each piece it
+     * overlaps.
+     */
+    private static void cover(long[] covered, int pieceSize, long offset,
+			      int length) {
+	long end = offset + length;
+	while(offset < end) {
+	    int piece = (int)(offset / pieceSize);
+	    long pieceEnd = Math.min(end, (long)(piece + 1) * pieceSize);
+	    covered[piece] += pieceEnd - offset;
+	    offset = pieceEnd;
+	}
+    }
+
+    /**
+     * Copy a chunk from a local file into the partial file. The chunk is
+     * checked against its checksum on the way, since the local file may have
+     * changed since it was indexed.
+     * @return true if the chunk was copied
+     */
+    private boolean copyChunk(ChunkIndex.ChunkLocation location,
+			      byte[] manifest, int entry, FileChannel dest,
+			      long destOffset) {
+	int length = location.getLength();
+	ByteBuffer buffer = ByteBuffer.allocate(length);
+	try {
+	    FileChannel source = FileChannel.open(location.getFile().toPath(),
+						  StandardOpenOption.READ);
+	    try {
+		while(buffer.hasRemaining()) {
+		    if(source.read(buffer, location.getOffset() +
+				   buffer.position()) < 0) {
+			return false;
+		    }
+		}
+	    } finally {
+		source.close();
+	    }
+	    ChecksumVerifier verifier = ChecksumVerifier.get();
+	    verifier.update(buffer.array(), 0, length);
+	    if(!verifier.matches(manifest, entry * ChunkIndex.ENTRY_LENGTH)) {
+		return false;
+	    }
+	    buffer.flip();
+	    while(buffer.hasRemaining()) {
+		dest.write(buffer, destOffset + buffer.position());
+	    }
+	    return true;
+	} catch(IOException e) {
+	    return false;
+	}
+    }
+
+    /**
+     * Download a single chunk with a range request, trying peers in turn.
+     * @return true if a peer sent the chunk intact
+     */
+    private boolean fetchChunk(Peer[] peers, String filename, byte[] manifest,
+			       int entry, FileChannel dest, long destOffset) {
+	int length = ChunkIndex.getChunkLength(manifest, entry);
+	byte[] checksum = new byte[ChecksumVerifier.LENGTH];
+	System.arraycopy(manifest, entry * ChunkIndex.ENTRY_LENGTH, checksum, 0,
+			 checksum.length);
+	ByteArrayOutputStream chunk = new ByteArrayOutputStream(length);
+	for(Peer peer : peers) {
+	    if(peer.getLoad() == -1) {
+		continue;
+	    }
+	    chunk.reset();
+	    SocketWrapper sock = null;
+	    try {
+		sock = connections.acquire(peer);
+		downloader.downloadRange(sock, filename, destOffset, length,
+					 checksum, chunk);
+		connections.release(peer, sock);
+	    } catch(PeerBusyException e) {
+		connections.release(peer, sock);
+		continue;
+	    } catch(ChecksumMismatchException | IOException e) {
+		if(sock != null) {
+		    connections.invalidate(sock);
+		}
+		continue;
+	    }
+	    if(chunk.size() != length) {
+		continue;
+	    }
+	    try {
+		ByteBuffer buffer = ByteBuffer.wrap(chunk.toByteArray());
+		while(buffer.hasRemaining()) {
+		    dest.write(buffer, destOffset + buffer.position());
+		}
+		return true;
+	    } catch(IOException e) {
+		return false;
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * Check a filled piece against its checksum in the file's hash tree, if
+     * the download state has one.
+     */
+    private static boolean matchesPieceHash(DownloadState state, int piece,
+					    FileChannel dest) throws IOException {
+	byte[] expected = state.getPieceHash(piece);
+	if(expected == null) {
+	    return true;
+	}
+	MessageDigest digest;
+	try {
+	    digest = MessageDigest.getInstance("SHA-1");
+	} catch(NoSuchAlgorithmException e) {
+	    throw new IllegalStateException(e);
+	}
+	ByteBuffer buffer = ByteBuffer.allocate(state.getPieceLength(piece));
+	long offset = (long)piece * state.getPieceSize();
+	while(buffer.hasRemaining()) {
+	    if(dest.read(buffer, offset + buffer.position()) < 0) {
+		return false;
+	    }
+	}
+	buffer.flip();
+	digest.update(buffer);
+	return MessageDigest.isEqual(digest.digest(), expected);
+    }
+}
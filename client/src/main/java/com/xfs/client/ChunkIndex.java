@@ -0,0 +1,265 @@
+package com.xfs.client;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of the content-defined chunks of the files a peer holds. Files are
+ * cut into chunks where a rolling gear hash of the last bytes read hits a
+ * boundary pattern, so an insertion or deletion only changes the chunks
+ * around it and the rest of the file still splits into the same chunks as
+ * before. Each chunk is keyed by its SHA-1 checksum.
+ * <p>
+ * The manifest of a file lists its chunks in order, each as a 20-byte
+ * checksum followed by a 4-byte length. Manifests are cached per file and
+ * only recomputed when the file changes. Chunks are not copied out of the
+ * files they belong to: the index maps each checksum to a place in a shared
+ * file where that chunk can be read.
+ */
+public class ChunkIndex {
+    /**
+     * Length of a manifest entry: a checksum and a chunk length
+     */
+    public static final int ENTRY_LENGTH = ChecksumVerifier.LENGTH + 4;
+
+    /**
+     * Chunks are never cut shorter than this, except at the end of a file
+     */
+    static final int MIN_CHUNK = 16 * 1024;
+
+    /**
+     * Chunks are always cut at this length
+     */
+    static final int MAX_CHUNK = 256 * 1024;
+
+    /**
+     * A boundary is found when these bits of the gear hash are all zero,
+     * which gives chunks of 64 KB on average past the minimum. The high bits
+     * depend on the last 64 bytes read.
+     */
+    private static final long BOUNDARY_MASK = 0xFFFFL << 48;
+
+    /**
+     * Random value for every byte value. The seed is fixed so every peer cuts
+     * the same content into the same chunks.
+     */
+    private static final long[] GEAR = new long[256];
+
+    static {
+	Random random = new Random(0x58465343L);
+	for(int i = 0; i < GEAR.length; i++) {
+	    GEAR[i] = random.nextLong();
+	}
+    }
+
+    /**
+     * Manifests of files, keyed by path
+     */
+    private final Map<String, Manifest> manifests =
+	new ConcurrentHashMap<String, Manifest>();
+
+    /**
+     * Place where each known chunk can be read, keyed by checksum
+     */
+    private final Map<ByteBuffer, ChunkLocation> chunks =
+	new ConcurrentHashMap<ByteBuffer, ChunkLocation>();
+
+    /**
+     * Return the manifest of a file, chunking the file only if it has changed
+     * since it was last chunked. The chunks of the file are added to the
+     * index.
+     * @return Manifest entries packed in order
+     */
+    public byte[] getManifest(File file) throws IOException {
+	String key = file.getCanonicalPath();
+	long lastModified = file.lastModified();
+	FileChannel channel = FileChannel.open(file.toPath(),
+					       StandardOpenOption.READ);
+	try {
+	    long length = channel.size();
+	    Manifest cached = manifests.get(key);
+	    if(cached != null && cached.length == length &&
+	       cached.lastModified == lastModified) {
+		return cached.entries;
+	    }
+	    byte[] entries = chunk(channel);
+	    manifests.put(key, new Manifest(length, lastModified, entries));
+	    addChunks(file, entries);
+	    return entries;
+	} finally {
+	    channel.close();
+	}
+    }
+
+    /**
+     * Chunk every file in a directory and its subdirectories that is not
+     * already indexed. Partial downloads are skipped. Files that cannot be
+     * read are left out of the index.
+     */
+    public void indexDirectory(File dir) {
+	File[] files = dir.listFiles();
+	if(files == null) {
+	    return;
+	}
+	for(File file : files) {
+	    String name = file.getName();
+	    if(file.isDirectory()) {
+		indexDirectory(file);
+	    } else if(!name.endsWith(DownloadState.PART_SUFFIX) &&
+		      !name.endsWith(DownloadState.STATE_SUFFIX)) {
+		try {
+		    getManifest(file);
+		} catch(IOException e) {
+		}
+	    }
+	}
+    }
+
+    /**
+     * Find where a chunk can be read locally. The location may be stale if
+     * the file has changed since it was indexed, so the chunk must be checked
+     * against its checksum when it is read.
+     * @param manifest Manifest holding the checksum
+     * @param entry Index of the entry in the manifest
+     * @return Location of the chunk or null if no local file has it
+     */
+    public ChunkLocation find(byte[] manifest, int entry) {
+	return chunks.get(ByteBuffer.wrap(manifest, entry * ENTRY_LENGTH,
+					  ChecksumVerifier.LENGTH).slice());
+    }
+
+    private void addChunks(File file, byte[] entries) {
+	long offset = 0;
+	for(int i = 0; i < entries.length / ENTRY_LENGTH; i++) {
+	    int length = getChunkLength(entries, i);
+	    byte[] checksum = new byte[ChecksumVerifier.LENGTH];
+	    System.arraycopy(entries, i * ENTRY_LENGTH, checksum, 0,
+			     checksum.length);
+	    chunks.put(ByteBuffer.wrap(checksum),
+		       new ChunkLocation(file, offset, length));
+	    offset += length;
+	}
+    }
+
+    /**
+     * Length of a chunk listed in a manifest.
+     */
+    public static int getChunkLength(byte[] manifest, int entry) {
+	return ByteBuffer.wrap(manifest).getInt(entry * ENTRY_LENGTH +
+						ChecksumVerifier.LENGTH);
+    }
+
+    /**
+     * Cut a file into content-defined chunks and compute the checksum of
+     * each one in a single pass through a fixed-size buffer.
+     * @return Manifest entries packed in order
+     */
+    static byte[] chunk(FileChannel channel) throws IOException {
+	MessageDigest digest = newDigest();
+	ByteArrayOutputStream entries = new ByteArrayOutputStream();
+	byte[] checksum = new byte[ChecksumVerifier.LENGTH];
+	ByteBuffer lengthBytes = ByteBuffer.allocate(4);
+	ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+	byte[] bytes = buffer.array();
+	long position = 0;
+	long hash = 0;
+	int chunkLength = 0;
+	int bytesRead;
+	while((bytesRead = channel.read(buffer, position)) > 0) {
+	    int start = 0;
+	    for(int i = 0; i < bytesRead; i++) {
+		hash = (hash << 1) + GEAR[bytes[i] & 0xFF];
+		chunkLength++;
+		if(chunkLength >= MAX_CHUNK ||
+		   (chunkLength >= MIN_CHUNK && (hash & BOUNDARY_MASK) == 0)) {
+		    digest.update(bytes, start, i + 1 - start);
+		    addEntry(entries, digest, checksum, lengthBytes,
+			     chunkLength);
+		    start = i + 1;
+		    chunkLength = 0;
+		    hash = 0;
+		}
+	    }
+	    digest.update(bytes, start, bytesRead - start);
+	    position += bytesRead;
+	    buffer.clear();
+	}
+	if(chunkLength > 0) {
+	    addEntry(entries, digest, checksum, lengthBytes, chunkLength);
+	}
+	return entries.toByteArray();
+    }
+
+    private static void addEntry(ByteArrayOutputStream entries,
+				 MessageDigest digest, byte[] checksum,
+				 ByteBuffer lengthBytes, int chunkLength) {
+	try {
+	    digest.digest(checksum, 0, checksum.length);
+	} catch(DigestException e) {
+	    throw new IllegalStateException(e);
+	}
+	entries.write(checksum, 0, checksum.length);
+	lengthBytes.clear();
+	lengthBytes.putInt(chunkLength);
+	entries.write(lengthBytes.array(), 0, 4);
+    }
+
+    private static MessageDigest newDigest() {
+	try {
+	    return MessageDigest.getInstance("SHA-1");
+	} catch(NoSuchAlgorithmException e) {
+	    throw new IllegalStateException(e);
+	}
+    }
+
+    /**
+     * Place in a local file where a chunk can be read.
+     */
+    public static class ChunkLocation {
+	private final File file;
+	private final long offset;
+	private final int length;
+
+	ChunkLocation(File file, long offset, int length) {
+	    this.file = file;
+	    this.offset = offset;
+	    this.length = length;
+	}
+
+	public File getFile() {
+	    return this.file;
+	}
+
+	public long getOffset() {
+	    return this.offset;
+	}
+
+	public int getLength() {
+	    return this.length;
+	}
+    }
+
+    /**
+     * Manifest of a file along with the size and modification time the file
+     * had when it was chunked.
+     */
+    private static class Manifest {
+	final long length;
+	final long lastModified;
+	final byte[] entries;
+
+	Manifest(long length, long lastModified, byte[] entries) {
+	    this.length = length;
+	    this.lastModified = lastModified;
+	    this.entries = entries;
+	}
+    }
+}
@@ -4,6 +4,9 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.security.*;
+import com.xfs.common.BandwidthLimiter;
+import com.xfs.common.BinaryTrackerCommunicator;
+import com.xfs.common.ConnectionExecutor;
 import com.xfs.common.TrackingServerCommunicator;
 import com.xfs.common.XFSTrackerCommunicator;
 
@@ -19,18 +22,75 @@ public class Client {
 	int peerPort = Integer.parseInt(args[2]);
 	int serverPort = Integer.parseInt(args[1]);
 	int machID = Integer.parseInt(args[3]);
-	Downloader downloader = new FileDownloader(Double.parseDouble(args[4]));
-	TrackingServerCommunicator tracker = new XFSTrackerCommunicator();
-	PeerSelector peerSelector = new RandomPeerSelector();
+	boolean binary = "binary".equals(System.getProperty("xfs.protocol"));
+	double threshold = Double.parseDouble(args[4]);
+	FileDownloader downloader = binary ?
+	    new BinaryFileDownloader(threshold) : new FileDownloader(threshold);
+	downloader.setCompression(Boolean.parseBoolean(
+	    System.getProperty("xfs.compression", "true")));
+	TrackingServerCommunicator tracker = binary ?
+	    new BinaryTrackerCommunicator() : new XFSTrackerCommunicator();
+	PeerSelector peerSelector;
+	String selector = System.getProperty("xfs.peerSelector", "random");
+	if(selector.equals("adaptive")) {
+	    peerSelector = new AdaptivePeerSelector();
+	} else if(selector.equals("sampling")) {
+	    peerSelector = new SamplingPeerSelector(Integer.getInteger(
+		"xfs.sampling.choices", SamplingPeerSelector.DEFAULT_CHOICES));
+	} else if(selector.equals("best")) {
+	    peerSelector = new BestPeerSelector();
+	} else {
+	    peerSelector = new RandomPeerSelector();
+	}
 	DirectoryManager directoryManager = new XFSDirectoryManager();
 	String shareDirectory = "./share/" + machID;
 
 	XFSPeer xfsPeer = new XFSPeer(machID, peerSelector, downloader,
 				      tracker, directoryManager, shareDirectory);
+	int swarmPeers = Math.max(1, Integer.getInteger("xfs.swarm.peers", 4));
+	int pieceSize = Integer.getInteger("xfs.pieceSize", 1 << 20);
+	SwarmDownloader swarmDownloader = new SwarmDownloader(
+	    downloader, xfsPeer.getConnectionPool(), pieceSize, swarmPeers);
+	double hedgePercentile = Double.parseDouble(System.getProperty(
+	    "xfs.hedge.percentile", "" + HedgePolicy.DEFAULT_PERCENTILE));
+	swarmDownloader.setHedgePolicy(hedgePercentile <= 0 ? null :
+	    new HedgePolicy(hedgePercentile, Long.getLong(
+		"xfs.hedge.initialDelay", HedgePolicy.DEFAULT_INITIAL_DELAY)));
+	xfsPeer.setSwarmDownloader(swarmDownloader);
+	xfsPeer.setDeduplicate(Boolean.getBoolean("xfs.chunkStore"));
+	xfsPeer.setUploadScheduler(new UploadScheduler(
+	    Integer.getInteger("xfs.upload.slots", UploadScheduler.DEFAULT_SLOTS),
+	    Integer.getInteger("xfs.upload.queue", UploadScheduler.DEFAULT_QUEUE)));
+	xfsPeer.setBandwidthLimiter(BandwidthLimiter.fromSystemProperties());
+	LatencyMonitor latencyMonitor = new LatencyMonitor(
+	    downloader, xfsPeer.getConnectionPool(),
+	    Long.getLong("xfs.latency.pingInterval",
+			 LatencyMonitor.DEFAULT_PING_INTERVAL));
+	xfsPeer.setLatencyMonitor(latencyMonitor);
+	latencyMonitor.start();
+	xfsPeer.startHeartbeat(Long.getLong("xfs.heartbeat.interval",
+					    XFSPeer.DEFAULT_HEARTBEAT_INTERVAL));
+	
+	xfsPeer.setConnectionExecutor(
+	    ConnectionExecutor.fromSystemProperties("xfs-peer"));
+	final XFSPeer peer = xfsPeer;
+	Runtime.getRuntime().addShutdownHook(new Thread() {
+		@Override public void run() {
+		    try {
+			peer.shutdown(ConnectionExecutor.SHUTDOWN_GRACE);
+		    } catch(InterruptedException e) {
+		    }
+		}
+	    });
 	
 	ClientImpl client = new ClientImpl(args[0], serverPort, peerPort, machID, xfsPeer);
 
-	xfsPeer.startPeerHandler(peerPort);
+	if("nio".equals(System.getProperty("xfs.peerServer"))) {
+	    xfsPeer.startNioPeerHandler(peerPort,
+					Integer.getInteger("xfs.nio.threads", 2));
+	} else {
+	    xfsPeer.startPeerHandler(peerPort);
+	}
 
 	client.run();
     }
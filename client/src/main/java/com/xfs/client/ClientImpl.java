@@ -4,6 +4,7 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.security.*;
+import com.xfs.common.BandwidthLimiter;
 
 /**
  * Command-line user interface for interacting with the peer-to-peer system. 
@@ -48,17 +49,16 @@ public class ClientImpl {
 
     /**
      * Run the peer by registering with the tracking server and then presenting
-     * the user menu to the user and wait for input.
+     * the user menu to the user and wait for input. Registration happens once:
+     * later changes to the shared folder are sent as deltas by the peer.
      */
     public void run() {
 	latencyList = getLatenciesFromFile();
 	xfsPeer.setLatencyList(latencyList);
 	xfsPeer.setTrackingServer(new Host(ip, port));
+	xfsPeer.register("./share/" + machID, this.machID, peerPort);
 
 	while(true) {
-	    xfsPeer.register("./share/" + machID, this.machID,
-			     peerPort);
-
 	    Scanner scan = new Scanner(System.in);
 	    String data = "";
 	    String msg;
@@ -73,7 +73,7 @@ public class ClientImpl {
 		    command = Integer.parseInt(input);
 		    valid = true;
 		} catch(NumberFormatException e) {
-		    System.out.print("Please enter a valid command (1-2): ");
+		    System.out.print("Please enter a valid command (1-3): ");
 		}
 	    }
 	    switch(command) {
@@ -84,8 +84,12 @@ public class ClientImpl {
 		break;
 	    case 2:
 		System.exit(0);
+		break;
+	    case 3:
+		setBandwidthLimit(scan);
+		break;
 	    default:
-		System.out.println("Please enter a valid command (1-5): ");
+		System.out.println("Please enter a valid command (1-3): ");
 	    }
 	}
     }
@@ -95,13 +99,52 @@ public class ClientImpl {
 	System.out.println("Filesystem Operations");
 	System.out.println("    1: Download");
 	System.out.println("    2: Exit");
+	System.out.println("    3: Set bandwidth limit");
 	System.out.println("+++++++++++++++++++++++++++++++++++++++++++++");
-	System.out.print("Enter command number (1-2): ");
+	System.out.print("Enter command number (1-3): ");
+    }
+
+    /**
+     * Ask the user for one of the peer's bandwidth limits and its new rate.
+     * The new rate applies to transfers already running.
+     */
+    public void setBandwidthLimit(Scanner scan) {
+	BandwidthLimiter limiter = xfsPeer.getBandwidthLimiter();
+	if(limiter == null) {
+	    System.out.println("Bandwidth is not limited.");
+	    return;
+	}
+	System.out.println("Enter limit (send, receive, foreground, " +
+			   "background, connection):");
+	String limit = scan.nextLine().trim();
+	System.out.println("Enter rate in bytes per second (0 for no limit):");
+	long rate;
+	try {
+	    rate = Long.parseLong(scan.nextLine().trim());
+	} catch(NumberFormatException e) {
+	    System.out.println("Invalid rate.");
+	    return;
+	}
+	if(limit.equals("send")) {
+	    limiter.setSendRate(rate);
+	} else if(limit.equals("receive")) {
+	    limiter.setReceiveRate(rate);
+	} else if(limit.equals("foreground")) {
+	    limiter.setClassRate(BandwidthLimiter.TrafficClass.FOREGROUND, rate);
+	} else if(limit.equals("background")) {
+	    limiter.setClassRate(BandwidthLimiter.TrafficClass.BACKGROUND, rate);
+	} else if(limit.equals("connection")) {
+	    limiter.setConnectionRate(rate);
+	} else {
+	    System.out.println("Unknown limit " + limit + ".");
+	}
     }
 
     /**
      * Read the network latencies from the configuration file 'latency.txt'.
-     * Latencies will be stored in a map, mapping peer id's to latencies
+     * Latencies will be stored in a map, mapping peer id's to latencies. The
+     * file is optional: latencies are measured while the peer runs, and the
+     * file only gives starting values for peers not measured yet.
      * @return hash map of peers to latencies
      */
     public HashMap<String, Integer> getLatenciesFromFile() {
@@ -109,6 +152,10 @@ public class ClientImpl {
 	String line;
 	String[] connection;
 	HashMap<String, Integer> latencyList = new HashMap<String, Integer>();
+
+	// Latency to local machine is 0
+	latencyList.put(""+this.machID, new Integer(Integer.MAX_VALUE));
+
 	try {
 	    File latencyFile = new File("latency.txt");
 	    if(!latencyFile.exists()) {
@@ -117,19 +164,18 @@ public class ClientImpl {
 		readFile = new Scanner(new File("latency.txt"));
 	    }
 	} catch(FileNotFoundException e) {
-	    System.out.println("Error: latency.txt file missing.");
-	    System.exit(1);
+	    return latencyList;
 	}
-
-	// Latency to local machine is 0
-	latencyList.put(""+this.machID, new Integer(Integer.MAX_VALUE));
 	
 	while(readFile.hasNextLine()) {
 	    line = readFile.nextLine();
 	    connection = line.split(":");
-	    if(connection[0].equals(this.machID)) {
+	    if(connection.length < 3) {
+		continue;
+	    }
+	    if(connection[0].equals(""+this.machID)) {
 		latencyList.put(connection[1], new Integer(connection[2]));
-	    } else if(connection[1].equals(this.machID)) {
+	    } else if(connection[1].equals(""+this.machID)) {
 		latencyList.put(connection[0], new Integer(connection[2]));
 	    }
 	}
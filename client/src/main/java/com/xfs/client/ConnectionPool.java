@@ -0,0 +1,248 @@
+package com.xfs.client;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import com.xfs.common.BandwidthLimiter;
+import com.xfs.common.Peer;
+import com.xfs.common.SocketWrapper;
+import com.xfs.common.XFSSocket;
+
+/**
+ * Keeps connections to other peers open between requests. A connection is
+ * taken with acquire, used for one or more requests and then either released
+ * back to the pool or invalidated if it is no longer in a known state.
+ * Connections left idle for longer than the idle timeout are closed, and a
+ * connection that has not been used for a while is checked with a ping before
+ * it is reused, since the other peer may have closed it in the meantime. A
+ * check that gets no answer within the health check timeout discards the
+ * connection.
+ * Connections are opened for downloads this peer makes, so with a bandwidth
+ * limiter they are throttled as foreground traffic.
+ */
+public class ConnectionPool {
+    /**
+     * Idle connections are closed after this many milliseconds. Peers close
+     * their end after PEER_IDLE_TIMEOUT, so this must be shorter.
+     */
+    public static final long IDLE_TIMEOUT = 30 * 1000;
+
+    /**
+     * Time in milliseconds a peer waits for the next request on a connection
+     * before closing it
+     */
+    public static final int PEER_IDLE_TIMEOUT = 60 * 1000;
+
+    /**
+     * A connection idle for longer than this is pinged before it is reused.
+     * Longer than the latency monitor's ping interval, so connections kept
+     * busy by its pings are not checked before every ping.
+     */
+    private static final long HEALTH_CHECK_AFTER =
+	LatencyMonitor.DEFAULT_PING_INTERVAL * 3 / 2;
+
+    /**
+     * Time in milliseconds the health check waits for the pong
+     */
+    static final int HEALTH_CHECK_TIMEOUT = 1000;
+
+    /**
+     * Maximum number of idle connections kept for each peer
+     */
+    private static final int MAX_IDLE_PER_PEER = 4;
+
+    /**
+     * Interface for communicating with other peers
+     */
+    private Downloader downloader;
+
+    /**
+     * Idle connections keyed by peer address and port, most recently used
+     * last
+     */
+    private final Map<String, ArrayDeque<IdleConnection>> idle =
+	new HashMap<String, ArrayDeque<IdleConnection>>();
+
+    /**
+     * Throttles new connections, or null if they are not throttled
+     */
+    private volatile BandwidthLimiter bandwidthLimiter;
+
+    private final long healthCheckAfter;
+
+    private long lastEviction;
+
+    public ConnectionPool(Downloader downloader) {
+	this(downloader, HEALTH_CHECK_AFTER);
+    }
+
+    ConnectionPool(Downloader downloader, long healthCheckAfter) {
+	this.downloader = downloader;
+	this.healthCheckAfter = healthCheckAfter;
+    }
+
+    public void setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+	this.bandwidthLimiter = bandwidthLimiter;
+    }
+
+    /**
+     * Take an idle connection to a peer or open a new one.
+     */
+    public SocketWrapper acquire(Peer peer) throws IOException {
+	return acquire(peer, 0);
+    }
+
+    /**
+     * Take an idle connection to a peer or open a new one, giving up on the
+     * connect after connectTimeout milliseconds. Zero waits forever.
+     */
+    public SocketWrapper acquire(Peer peer, int connectTimeout)
+	throws IOException {
+	String key = key(peer);
+	while(true) {
+	    IdleConnection connection;
+	    synchronized(this) {
+		evictIdle();
+		ArrayDeque<IdleConnection> connections = idle.get(key);
+		connection = connections == null ? null : connections.pollLast();
+	    }
+	    if(connection == null) {
+		XFSSocket sock = new XFSSocket(peer.getAddress(), peer.getPort(),
+					       connectTimeout);
+		BandwidthLimiter limiter = bandwidthLimiter;
+		if(limiter != null) {
+		    sock.setThrottle(limiter.newThrottle(
+			BandwidthLimiter.TrafficClass.FOREGROUND));
+		}
+		return sock;
+	    }
+	    long idleTime = System.currentTimeMillis() - connection.since;
+	    if(idleTime < healthCheckAfter || isHealthy(connection.sock)) {
+		return connection.sock;
+	    }
+	    close(connection.sock);
+	}
+    }
+
+    /**
+     * Ping an idle connection, waiting at most the health check timeout for
+     * the answer.
+     */
+    private boolean isHealthy(SocketWrapper sock) {
+	try {
+	    sock.setTimeout(HEALTH_CHECK_TIMEOUT);
+	    if(!downloader.ping(sock)) {
+		return false;
+	    }
+	    sock.setTimeout(0);
+	    return true;
+	} catch(IOException e) {
+	    return false;
+	}
+    }
+
+    /**
+     * Return a connection whose last request completed normally so it can be
+     * used again.
+     */
+    public void release(Peer peer, SocketWrapper sock) {
+	SocketWrapper extra = null;
+	synchronized(this) {
+	    evictIdle();
+	    String key = key(peer);
+	    ArrayDeque<IdleConnection> connections = idle.get(key);
+	    if(connections == null) {
+		connections = new ArrayDeque<IdleConnection>();
+		idle.put(key, connections);
+	    }
+	    connections.addLast(new IdleConnection(sock));
+	    if(connections.size() > MAX_IDLE_PER_PEER) {
+		extra = connections.pollFirst().sock;
+	    }
+	}
+	if(extra != null) {
+	    close(extra);
+	}
+    }
+
+    /**
+     * Close a connection that failed or was left in the middle of a reply.
+     */
+    public void invalidate(SocketWrapper sock) {
+	close(sock);
+    }
+
+    /**
+     * Cancel a request another thread is making on a connection. That
+     * thread's read fails, and it invalidates the connection itself.
+     */
+    public void abort(SocketWrapper sock) {
+	try {
+	    sock.abort();
+	} catch(IOException e) {
+	}
+    }
+
+    /**
+     * Close every idle connection.
+     */
+    public void closeAll() {
+	synchronized(this) {
+	    for(ArrayDeque<IdleConnection> connections : idle.values()) {
+		for(IdleConnection connection : connections) {
+		    close(connection.sock);
+		}
+	    }
+	    idle.clear();
+	}
+    }
+
+    /**
+     * Close connections that have been idle for longer than the idle
+     * timeout. Runs at most once per half timeout.
+     */
+    private void evictIdle() {
+	long now = System.currentTimeMillis();
+	if(now - lastEviction < IDLE_TIMEOUT / 2) {
+	    return;
+	}
+	lastEviction = now;
+	Iterator<ArrayDeque<IdleConnection>> peers = idle.values().iterator();
+	while(peers.hasNext()) {
+	    ArrayDeque<IdleConnection> connections = peers.next();
+	    while(!connections.isEmpty() &&
+		  now - connections.peekFirst().since > IDLE_TIMEOUT) {
+		close(connections.pollFirst().sock);
+	    }
+	    if(connections.isEmpty()) {
+		peers.remove();
+	    }
+	}
+    }
+
+    private static String key(Peer peer) {
+	return peer.getAddress() + ":" + peer.getPort();
+    }
+
+    private static void close(SocketWrapper sock) {
+	try {
+	    sock.close();
+	} catch(IOException e) {
+	}
+    }
+
+    /**
+     * Connection waiting in the pool and the time it became idle.
+     */
+    private static class IdleConnection {
+	final SocketWrapper sock;
+	final long since;
+
+	IdleConnection(SocketWrapper sock) {
+	    this.sock = sock;
+	    this.since = System.currentTimeMillis();
+	}
+    }
+}
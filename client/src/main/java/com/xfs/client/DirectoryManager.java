@@ -2,6 +2,7 @@ package com.xfs.client;
 
 import java.util.ArrayList;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 
 /**
  * Operations for interacting with the filesystem.
@@ -20,4 +21,28 @@ public interface DirectoryManager {
      * of the file must be included at the end of the path.
      */
     public void printToFile(String filepath, byte[] fileBytes) throws IOException;
+
+    /**
+     * Open a file for reading and writing at arbitrary offsets. The contents
+     * of an existing file at the path are kept.
+     * @param filepath Location and name of file to write to.
+     */
+    public FileChannel openFileChannel(String filepath) throws IOException;
+
+    /**
+     * Open a file for reading and writing at arbitrary offsets and size it
+     * to length bytes, so pieces can be written in any order.
+     * @param filepath Location and name of file to write to.
+     */
+    public FileChannel openFileChannel(String filepath, long length)
+	throws IOException;
+
+    /**
+     * Flush a completed file to disk and move it to its final path in one
+     * step, replacing any file already there. After a crash the final path
+     * holds either the old file or the whole new one.
+     * @param tempPath Location of the completed file
+     * @param filepath Final location and name of the file
+     */
+    public void commitFile(String tempPath, String filepath) throws IOException;
 }
@@ -0,0 +1,307 @@
+package com.xfs.client;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+import com.xfs.common.MerkleTree;
+
+/**
+ * Progress of a download that can be resumed after a failure. Data is written
+ * to a partial file next to the target and the set of verified pieces is kept
+ * in a state file beside it. If the download is interrupted, a later attempt
+ * with the same file length, checksum and piece size continues from the
+ * pieces already verified, whichever peer it uses. The checksum of the whole
+ * file is computed over the verified prefix as pieces arrive, so little is
+ * left to hash once the last piece is written. When the checksums of the
+ * pieces are known, each piece is checked against its own checksum as it
+ * arrives.
+ *    state file format:
+ *         magic, length, checksum length, checksum, piece size,
+ *         bitmap length, bitmap of verified pieces
+ */
+public class DownloadState {
+    /**
+     * Suffixes of the partial file and the state file. Files with these
+     * suffixes are never shared.
+     */
+    public static final String PART_SUFFIX = ".xfs-part",
+	                       STATE_SUFFIX = ".xfs-state";
+
+    private static final int MAGIC = 0x58465331;
+
+    /**
+     * Minimum time between two checkpoints of the state file
+     */
+    private static final long CHECKPOINT_INTERVAL = 1000;
+
+    private final String filepath;
+    private final FileInfo info;
+    private final int pieceSize;
+    private final int pieceCount;
+    private final BitSet verified;
+    private long lastCheckpoint;
+
+    /**
+     * Checksum of each piece, or null if they are not known
+     */
+    private volatile byte[][] pieceHashes;
+
+    /**
+     * Checksum of the bytes before hashedOffset. Guarded by hashLock so
+     * hashing does not hold up pieces being marked verified.
+     */
+    private final Object hashLock = new Object();
+    private final MessageDigest fileDigest;
+    private long hashedOffset;
+    private ByteBuffer hashBuffer;
+
+    private DownloadState(String filepath, FileInfo info, int pieceSize,
+			  BitSet verified) {
+	this.filepath = filepath;
+	this.info = info;
+	this.pieceSize = pieceSize;
+	this.pieceCount = info.getPieceCount(pieceSize);
+	this.verified = verified;
+	try {
+	    this.fileDigest = MessageDigest.getInstance("SHA-1");
+	} catch(NoSuchAlgorithmException e) {
+	    throw new IllegalStateException(e);
+	}
+    }
+
+    /**
+     * Load the state of an earlier attempt to download a file, or start a new
+     * one if there was no earlier attempt or it was for a different version
+     * of the file.
+     * @param filepath Location and name of the file being downloaded
+     */
+    public static DownloadState open(String filepath, FileInfo info,
+				     int pieceSize) {
+	BitSet verified = readState(filepath, info, pieceSize);
+	if(verified == null) {
+	    new File(filepath + PART_SUFFIX).delete();
+	    new File(filepath + STATE_SUFFIX).delete();
+	    verified = new BitSet();
+	}
+	return new DownloadState(filepath, info, pieceSize, verified);
+    }
+
+    /**
+     * Read a state file.
+     * @return Verified pieces or null if the file is missing, unreadable or
+     * describes a different file
+     */
+    private static BitSet readState(String filepath, FileInfo info,
+				    int pieceSize) {
+	File stateFile = new File(filepath + STATE_SUFFIX);
+	if(!stateFile.isFile() || !new File(filepath + PART_SUFFIX).isFile()) {
+	    return null;
+	}
+	try {
+	    DataInputStream in = new DataInputStream(new BufferedInputStream(
+		new FileInputStream(stateFile)));
+	    try {
+		if(in.readInt() != MAGIC || in.readLong() != info.getLength()) {
+		    return null;
+		}
+		byte[] checksum = new byte[in.readInt()];
+		in.readFully(checksum);
+		if(!Arrays.equals(checksum, info.getChecksum()) ||
+		   in.readInt() != pieceSize) {
+		    return null;
+		}
+		byte[] bitmap = new byte[in.readInt()];
+		in.readFully(bitmap);
+		return BitSet.valueOf(bitmap);
+	    } finally {
+		in.close();
+	    }
+	} catch(IOException e) {
+	    return null;
+	}
+    }
+
+    public String getPartPath() {
+	return filepath + PART_SUFFIX;
+    }
+
+    public FileInfo getFileInfo() {
+	return this.info;
+    }
+
+    public int getPieceSize() {
+	return this.pieceSize;
+    }
+
+    public int getPieceCount() {
+	return this.pieceCount;
+    }
+
+    /**
+     * Number of bytes in a piece. Only the last piece may be short.
+     */
+    public int getPieceLength(int piece) {
+	return (int)Math.min(pieceSize, info.getLength() - (long)piece * pieceSize);
+    }
+
+    /**
+     * Set the checksum of every piece. The checksums must already have been
+     * checked against the root of the file's hash tree.
+     * @param leaves Checksums packed in piece order
+     */
+    public void setPieceHashes(byte[] leaves) {
+	if(leaves.length != pieceCount * MerkleTree.HASH_LENGTH) {
+	    throw new IllegalArgumentException("Expected checksums of " +
+					       pieceCount + " pieces");
+	}
+	byte[][] hashes = new byte[pieceCount][];
+	for(int i = 0; i < pieceCount; i++) {
+	    hashes[i] = Arrays.copyOfRange(leaves, i * MerkleTree.HASH_LENGTH,
+					   (i + 1) * MerkleTree.HASH_LENGTH);
+	}
+	this.pieceHashes = hashes;
+    }
+
+    /**
+     * Checksum a piece must have, or null if it is not known
+     */
+    public byte[] getPieceHash(int piece) {
+	byte[][] hashes = this.pieceHashes;
+	return hashes == null ? null : hashes[piece];
+    }
+
+    public synchronized boolean isComplete() {
+	return verified.cardinality() == pieceCount;
+    }
+
+    public synchronized boolean isVerified(int piece) {
+	return verified.get(piece);
+    }
+
+    /**
+     * Pieces that have not been verified yet, in order.
+     */
+    public synchronized int[] getMissingPieces() {
+	int[] missing = new int[pieceCount - verified.cardinality()];
+	int piece = verified.nextClearBit(0);
+	for(int i = 0; i < missing.length; i++) {
+	    missing[i] = piece;
+	    piece = verified.nextClearBit(piece + 1);
+	}
+	return missing;
+    }
+
+    /**
+     * Number of bytes at the start of the file that have been verified.
+     */
+    public synchronized long getVerifiedOffset() {
+	return Math.min(info.getLength(),
+			(long)verified.nextClearBit(0) * pieceSize);
+    }
+
+    /**
+     * Record that a piece has been written and verified. The record is only
+     * made durable by the next checkpoint.
+     */
+    public synchronized void markVerified(int piece) {
+	verified.set(piece);
+    }
+
+    /**
+     * Flush the partial file to disk and then save the verified pieces, so
+     * the state file never claims a piece that is not on disk. Unless forced,
+     * a checkpoint is skipped if the last one was less than a second ago.
+     */
+    public synchronized void checkpoint(FileChannel data, boolean force)
+	throws IOException {
+	long now = System.currentTimeMillis();
+	if(!force && now - lastCheckpoint < CHECKPOINT_INTERVAL) {
+	    return;
+	}
+	data.force(false);
+
+	File stateFile = new File(filepath + STATE_SUFFIX);
+	File tempFile = new File(filepath + ".tmp" + STATE_SUFFIX);
+	FileOutputStream fileOut = new FileOutputStream(tempFile);
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+	    fileOut));
+	try {
+	    byte[] checksum = info.getChecksum();
+	    byte[] bitmap = verified.toByteArray();
+	    out.writeInt(MAGIC);
+	    out.writeLong(info.getLength());
+	    out.writeInt(checksum.length);
+	    out.write(checksum);
+	    out.writeInt(pieceSize);
+	    out.writeInt(bitmap.length);
+	    out.write(bitmap);
+	    out.flush();
+	    fileOut.getFD().sync();
+	} finally {
+	    out.close();
+	}
+	XFSDirectoryManager.replaceFile(tempFile.toPath(), stateFile.toPath());
+	lastCheckpoint = now;
+    }
+
+    /**
+     * Add the bytes that have become part of the verified prefix since the
+     * last call to the checksum of the whole file.
+     */
+    public void hashVerifiedPrefix(FileChannel data) throws IOException {
+	synchronized(hashLock) {
+	    hashUpTo(data, getVerifiedOffset());
+	}
+    }
+
+    /**
+     * Finish the checksum of the whole file and compare it with the checksum
+     * the file is supposed to have.
+     * @return true if the file matches
+     */
+    public boolean verifyFileChecksum(FileChannel data) throws IOException {
+	synchronized(hashLock) {
+	    hashUpTo(data, info.getLength());
+	    hashedOffset = 0;
+	    return MessageDigest.isEqual(fileDigest.digest(), info.getChecksum());
+	}
+    }
+
+    private void hashUpTo(FileChannel data, long end) throws IOException {
+	if(hashBuffer == null) {
+	    hashBuffer = ByteBuffer.allocateDirect(64 * 1024);
+	}
+	while(hashedOffset < end) {
+	    hashBuffer.clear();
+	    hashBuffer.limit((int)Math.min(hashBuffer.capacity(),
+					   end - hashedOffset));
+	    int bytesRead = data.read(hashBuffer, hashedOffset);
+	    if(bytesRead < 0) {
+		throw new EOFException("Partial file is shorter than " + end);
+	    }
+	    hashBuffer.flip();
+	    fileDigest.update(hashBuffer);
+	    hashedOffset += bytesRead;
+	}
+    }
+
+    /**
+     * Remove the state file once the completed partial file has been moved
+     * to the target.
+     */
+    public void finish() {
+	new File(filepath + STATE_SUFFIX).delete();
+    }
+
+    /**
+     * Throw away the partial file and the state file.
+     */
+    public void discard() {
+	new File(filepath + PART_SUFFIX).delete();
+	new File(filepath + STATE_SUFFIX).delete();
+    }
+}
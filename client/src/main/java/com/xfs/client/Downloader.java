@@ -1,8 +1,12 @@
 package com.xfs.client;
 
+import com.xfs.common.ReplySocket;
 import com.xfs.common.SocketWrapper;
 import com.xfs.common.PeerAction;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 
 /**
  * Operations for interacting with another peer in the system. Each operation
@@ -20,9 +24,96 @@ public interface Downloader {
     /**
      * Send a file to another peer.
      */
-    public int sendDownload(SocketWrapper sock, byte[] fileBytes)
+    public int sendDownload(ReplySocket sock, byte[] fileBytes)
 	throws IOException;
 
+    /**
+     * Stream a file from disk to another peer.
+     */
+    public int sendDownload(ReplySocket sock, File file) throws IOException;
+
+    /**
+     * Stream a file from disk to another peer, compressed if the peer
+     * accepts one of the encodings and the file is worth compressing.
+     * @param encodings Encodings the peer accepts, or null if it did not
+     * negotiate an encoding
+     */
+    public int sendDownload(ReplySocket sock, File file, String encodings)
+	throws IOException;
+
+    /**
+     * Ask another peer for the length and checksum of a file and the root of
+     * the hash tree over its pieces.
+     * @param pieceSize Size of the pieces the tree is built over
+     * @return Information about the file or null if the peer does not have it
+     */
+    public FileInfo getFileInfo(SocketWrapper sock, String filename,
+				int pieceSize) throws IOException;
+
+    /**
+     * Send the length and checksum of a file to another peer, along with the
+     * root of the hash tree if pieceSize is positive.
+     */
+    public int sendFileInfo(ReplySocket sock, File file, int pieceSize)
+	throws IOException;
+
+    /**
+     * Ask another peer for the checksums of every piece of a file, which are
+     * the leaves of the file's hash tree.
+     * @return Checksums packed in piece order, or null if the peer does not
+     * have the file
+     */
+    public byte[] getPieceHashes(SocketWrapper sock, String filename,
+				 int pieceSize) throws IOException;
+
+    /**
+     * Send the checksums of every piece of a file to another peer.
+     */
+    public int sendPieceHashes(ReplySocket sock, File file, int pieceSize)
+	throws IOException;
+
+    /**
+     * Ask another peer for the manifest of a file: the checksum and length of
+     * each of its content-defined chunks.
+     * @return Manifest entries packed in order, or null if the peer does not
+     * have the file
+     */
+    public byte[] getManifest(SocketWrapper sock, String filename)
+	throws IOException;
+
+    /**
+     * Send the manifest of a file to another peer.
+     * @param manifest Manifest entries or null if the file does not exist
+     */
+    public int sendManifest(ReplySocket sock, byte[] manifest)
+	throws IOException;
+
+    /**
+     * Download length bytes of a file starting at offset and write them to a
+     * stream.
+     * @param checksum Checksum the range must have, such as a leaf of the
+     * file's hash tree, or null to trust the checksum sent by the peer
+     * @return Number of bytes written to dest
+     * @throws ChecksumMismatchException Thrown when the checksum of the
+     * downloaded range does not match the expected checksum.
+     */
+    public long downloadRange(SocketWrapper sock, String filename, long offset,
+			      long length, byte[] checksum, OutputStream dest)
+	throws ChecksumMismatchException, IOException;
+
+    /**
+     * Send part of a file to another peer.
+     */
+    public int sendRange(ReplySocket sock, File file, long offset,
+			 long length) throws IOException;
+
+    /**
+     * Send part of a file to another peer, compressed if the peer accepts
+     * one of the encodings and the file is worth compressing.
+     */
+    public int sendRange(ReplySocket sock, File file, long offset,
+			 long length, String encodings) throws IOException;
+
     /**
      * Get the load at another peer.
      */
@@ -31,13 +122,33 @@ public interface Downloader {
     /**
      * Send the current load to another peer.
      */
-    public int sendLoad(SocketWrapper sock, int concurrentDownloads)
+    public int sendLoad(ReplySocket sock, int concurrentDownloads)
+	throws IOException;
+
+    /**
+     * Check that a connection to another peer still works.
+     * @return true if the peer answered
+     */
+    public boolean ping(SocketWrapper sock);
+
+    /**
+     * Answer a ping from another peer.
+     */
+    public int sendPong(ReplySocket sock) throws IOException;
+
+    /**
+     * Refuse a download, stream or range request because this peer has no
+     * upload slot free. The requesting peer gets a PeerBusyException.
+     */
+    public int sendBusy(ReplySocket sock, PeerAction request)
 	throws IOException;
 
     /**
      * Interpret a message from another peer.
      * @return A PeerAction object containing an action constant and information
      * pertaining to that action.
+     * @throws EOFException Thrown when the other peer closed the connection
+     * instead of sending a request.
      */
-    public PeerAction processRequest(SocketWrapper sock) throws IOException;
+    public PeerAction processRequest(ReplySocket sock) throws IOException;
 }
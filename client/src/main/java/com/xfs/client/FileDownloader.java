@@ -4,6 +4,13 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.security.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import com.xfs.common.MerkleTree;
+import com.xfs.common.ReplySocket;
 import com.xfs.common.SocketWrapper;
 import com.xfs.common.PeerAction;
 
@@ -14,8 +21,49 @@ import com.xfs.common.PeerAction;
  * raw bytes. The possible commands are as follows:
  *    download -> Download::filename
  *      where "filename" is replaced by the name of a file
+ *    stream download -> StreamDownload::filename
+ *      the reply is the 20-byte checksum followed by the file, each sent with
+ *      a length header. A missing file is answered with an empty checksum.
+ *    file info -> Info::filename::pieceSize
+ *      the reply is one line, "length::checksum::root" with the checksum of
+ *      the file and the root of the hash tree over its pieces in hex, or an
+ *      empty line if the peer does not have the file. Without a piece size
+ *      the reply is "length::checksum".
+ *    piece hashes -> Hashes::filename::pieceSize
+ *      the reply is the 20-byte checksum of every piece, packed in order and
+ *      sent with a length header. These are the leaves of the hash tree. A
+ *      missing file is answered with an empty reply.
+ *    manifest -> Manifest::filename
+ *      the reply is the 20-byte checksum and 4-byte length of every
+ *      content-defined chunk of the file, packed in order and sent with a
+ *      length header. A missing file is answered with an empty reply.
+ *    range -> Range::filename::offset::length
+ *      the reply is the 20-byte checksum of the range followed by the range,
+ *      each sent with a length header. The range is cut short at the end of
+ *      the file. A range the peer cannot serve is answered with an empty
+ *      checksum.
  *    get load -> GetLoad
- *     
+ *    ping -> Ping
+ *      the reply is the line "Pong"
+ *
+ * Stream download and range requests may end with "::encodings", a comma
+ * separated list of the compression methods the requesting peer accepts. The
+ * reply then starts with a line "Encoding::deflate" or "Encoding::identity".
+ * A deflated body is sent as a series of frames ended by an empty frame.
+ * Checksums always cover the uncompressed bytes.
+ *
+ * A peer with no upload slot free answers a download, stream download or
+ * range request with "Busy" in place of the checksum: raw for download and
+ * as the checksum's frame otherwise, after the encoding line if one was
+ * negotiated. The requesting peer then gets a PeerBusyException.
+ *
+ * A connection may carry any number of requests one after another, except
+ * download, whose reply ends when the connection is closed.
+ *
+ * Requests and the one-line replies above are sent through sendRequest,
+ * processRequest, sendReply and receiveReply. BinaryFileDownloader overrides
+ * these to carry the same requests in the binary protocol. File names sent
+ * with this text protocol must not contain "::".
  */
 public class FileDownloader implements Downloader {
     /**
@@ -24,10 +72,58 @@ public class FileDownloader implements Downloader {
      */
     private double threshold = 0;
 
+    /**
+     * Names of the encodings a body may be sent with
+     */
+    public static final String DEFLATE = "deflate",
+	                       IDENTITY = "identity";
+
+    /**
+     * Sent in place of a checksum by a peer with no upload slot free
+     */
+    private static final byte[] BUSY = "Busy".getBytes();
+
+    /**
+     * Number of bytes at the start of a file compressed to decide whether
+     * the file is worth compressing
+     */
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    /**
+     * A file is only compressed if its sample shrinks below this fraction
+     * of its size.
+     */
+    private static final double MAX_COMPRESSED_FRACTION = 0.9;
+
+    /**
+     * Whether to ask other peers for compressed transfers
+     */
+    private boolean compression = false;
+
+    /**
+     * Whether each file served by this peer is worth compressing, keyed by
+     * path
+     */
+    private final Map<String, Compressibility> compressibilityCache =
+	new ConcurrentHashMap<String, Compressibility>();
+
+    /**
+     * Checksums of files served by this peer, keyed by path
+     */
+    private final Map<String, FileHashes> checksumCache =
+	new ConcurrentHashMap<String, FileHashes>();
+
     public FileDownloader(double threshold) {
 	this.threshold = threshold*100;
     }
 
+    /**
+     * Turn on or off asking other peers to compress the files they send.
+     */
+    public void setCompression(boolean compression) {
+	this.compression = compression;
+    }
+
     /**
      * Download a file from another peer. Verify the checksum upon download
      * to check for corruption.
@@ -40,11 +136,13 @@ public class FileDownloader implements Downloader {
 	throws ChecksumMismatchException, IOException {
 	byte[] fileBytes = null;
 	try {
-	    sock.send("Download::" + filename);
+	    sendRequest(sock, new PeerAction(PeerAction.SEND_DOWNLOAD, filename));
 
 	    byte[] byteArray = sock.receiveFile();
+	    if(Arrays.equals(byteArray, BUSY)) {
+		throw new PeerBusyException("Peer is busy");
+	    }
 	    if(byteArray.length < 20) {
-		System.out.println(byteArray.length);
 		throw new IOException();
 	    }
 
@@ -66,7 +164,7 @@ public class FileDownloader implements Downloader {
      * array with 20-byte checksum of the file at the front, followed by the 
      * actual file after the first 20 bytes.
      */
-    public int sendDownload(SocketWrapper sock, byte[] fileBytes) throws IOException {
+    public int sendDownload(ReplySocket sock, byte[] fileBytes) throws IOException {
 	try {
 	    byte[] checksumBytes = SHA1(fileBytes);
 	    byte[] message = new byte[checksumBytes.length + fileBytes.length];
@@ -86,6 +184,257 @@ public class FileDownloader implements Downloader {
 	return 1;
     }
 
+    /**
+     * Stream a file to another peer without compression.
+     * @return 1 on success or -1 if the file does not exist
+     */
+    public int sendDownload(ReplySocket sock, File file) throws IOException {
+	return sendDownload(sock, file, null);
+    }
+
+    /**
+     * Stream a file to another peer. The checksum is sent first, followed by
+     * the file. If the peer accepts deflate and a sample of the file
+     * compresses well, the file is sent compressed. Otherwise it is handed to
+     * the socket with FileChannel.transferTo so it is not copied into the
+     * heap. Checksums are cached per file and only recomputed when the file
+     * changes.
+     * @param encodings Encodings the peer accepts, or null if it did not
+     * negotiate an encoding
+     * @return 1 on success or -1 if the file does not exist
+     */
+    public int sendDownload(ReplySocket sock, File file, String encodings)
+	throws IOException {
+	if(!file.isFile()) {
+	    sendEncoding(sock, encodings, false);
+	    sock.sendStream(new ByteArrayInputStream(new byte[0]), 0);
+	    return -1;
+	}
+
+	FileChannel channel = FileChannel.open(file.toPath(),
+					       StandardOpenOption.READ);
+	try {
+	    long length = channel.size();
+	    byte[] checksumBytes = getHashes(file, channel, 0).checksum;
+	    boolean deflate = accepts(encodings, DEFLATE) &&
+		isCompressible(file, channel);
+	    sendEncoding(sock, encodings, deflate);
+	    sock.sendStream(new ByteArrayInputStream(checksumBytes),
+			    checksumBytes.length);
+	    sendBody(sock, channel, 0, length, deflate);
+	} finally {
+	    channel.close();
+	}
+	return 1;
+    }
+
+    /**
+     * Ask another peer for the length and checksum of a file and the root of
+     * the hash tree over its pieces.
+     * @return Information about the file or null if the peer does not have it
+     */
+    public FileInfo getFileInfo(SocketWrapper sock, String filename,
+				int pieceSize) throws IOException {
+	sendRequest(sock, new PeerAction(PeerAction.SEND_INFO, filename, 0,
+					 pieceSize));
+	String[] input = receiveReply(sock);
+	if(input.length == 0) {
+	    return null;
+	}
+	try {
+	    byte[] root = input.length > 2 ? fromHex(input[2]) : null;
+	    return new FileInfo(Long.parseLong(input[0]), fromHex(input[1]),
+				root);
+	} catch(RuntimeException e) {
+	    throw new IOException("Malformed file info: " +
+				  Arrays.toString(input));
+	}
+    }
+
+    /**
+     * Send the length and checksum of a file to another peer, and the root of
+     * the hash tree if a piece size was given. A file that does not exist is
+     * answered with an empty line.
+     * @return 1 on success or -1 if the file does not exist
+     */
+    public int sendFileInfo(ReplySocket sock, File file, int pieceSize)
+	throws IOException {
+	if(!file.isFile()) {
+	    sendReply(sock);
+	    return -1;
+	}
+	FileChannel channel = FileChannel.open(file.toPath(),
+					       StandardOpenOption.READ);
+	try {
+	    FileHashes hashes = getHashes(file, channel, pieceSize);
+	    String length = Long.toString(hashes.length);
+	    String checksum = toHex(hashes.checksum);
+	    if(pieceSize > 0) {
+		sendReply(sock, length, checksum,
+			  toHex(MerkleTree.root(hashes.leaves)));
+	    } else {
+		sendReply(sock, length, checksum);
+	    }
+	} finally {
+	    channel.close();
+	}
+	return 1;
+    }
+
+    /**
+     * Ask another peer for the checksum of every piece of a file.
+     * @return Checksums packed in piece order, or null if the peer does not
+     * have the file
+     */
+    public byte[] getPieceHashes(SocketWrapper sock, String filename,
+				 int pieceSize) throws IOException {
+	sendRequest(sock, new PeerAction(PeerAction.SEND_HASHES, filename, 0,
+					 pieceSize));
+	ByteArrayOutputStream leaves = new ByteArrayOutputStream();
+	if(sock.receiveStream(leaves) == 0) {
+	    return null;
+	}
+	return leaves.toByteArray();
+    }
+
+    /**
+     * Send the checksum of every piece of a file to another peer. The
+     * checksums are cached with the file's checksum.
+     * @return 1 on success or -1 if the file does not exist
+     */
+    public int sendPieceHashes(ReplySocket sock, File file, int pieceSize)
+	throws IOException {
+	if(!file.isFile() || pieceSize <= 0) {
+	    sock.sendStream(new ByteArrayInputStream(new byte[0]), 0);
+	    return -1;
+	}
+	FileChannel channel = FileChannel.open(file.toPath(),
+					       StandardOpenOption.READ);
+	try {
+	    byte[] leaves = getHashes(file, channel, pieceSize).leaves;
+	    sock.sendStream(new ByteArrayInputStream(leaves), leaves.length);
+	} finally {
+	    channel.close();
+	}
+	return 1;
+    }
+
+    /**
+     * Ask another peer for the manifest of a file.
+     * @return Manifest entries packed in order, or null if the peer does not
+     * have the file
+     */
+    public byte[] getManifest(SocketWrapper sock, String filename)
+	throws IOException {
+	sendRequest(sock, new PeerAction(PeerAction.SEND_MANIFEST, filename));
+	ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+	long length = sock.receiveStream(manifest);
+	if(length == 0) {
+	    return null;
+	} else if(length % ChunkIndex.ENTRY_LENGTH != 0) {
+	    throw new IOException("Malformed manifest for " + filename);
+	}
+	return manifest.toByteArray();
+    }
+
+    /**
+     * Send the manifest of a file to another peer. A missing file is
+     * answered with an empty reply.
+     * @return 1 on success or -1 if the file does not exist
+     */
+    public int sendManifest(ReplySocket sock, byte[] manifest)
+	throws IOException {
+	if(manifest == null) {
+	    sock.sendStream(new ByteArrayInputStream(new byte[0]), 0);
+	    return -1;
+	}
+	sock.sendStream(new ByteArrayInputStream(manifest), manifest.length);
+	return 1;
+    }
+
+    /**
+     * Download part of a file from another peer and write it to a stream as
+     * it arrives. The range is checked against its checksum as it is
+     * received. If the checksum is already known, a peer that announces a
+     * different one is rejected before the range is read.
+     * @param checksum Checksum the range must have or null to use the one
+     * sent by the peer
+     * @return Number of bytes written to dest
+     * @throws ChecksumMismatchException Thrown when the checksum of the
+     * downloaded range does not match the expected checksum.
+     */
+    public long downloadRange(SocketWrapper sock, String filename, long offset,
+			      long length, byte[] checksum, OutputStream dest)
+	throws ChecksumMismatchException, IOException {
+	sendRequest(sock, new PeerAction(PeerAction.SEND_RANGE, filename, offset,
+					 length, acceptedEncodings()));
+	boolean deflated = receiveEncoding(sock);
+
+	ChecksumVerifier verifier = ChecksumVerifier.get();
+	sock.receiveStream(verifier.expectedChecksum());
+	if(verifier.expectedEquals(BUSY)) {
+	    throw new PeerBusyException("Peer is busy");
+	} else if(!verifier.hasExpectedChecksum()) {
+	    throw new IOException("Peer cannot serve " + length + " bytes of " +
+				  filename + " at " + offset);
+	}
+	if(checksum != null && !verifier.expects(checksum)) {
+	    throw new ChecksumMismatchException();
+	}
+
+	long received = receiveBody(sock, verifier.hashTo(dest), deflated);
+	if(!verifier.matches()) {
+	    throw new ChecksumMismatchException();
+	}
+	return received;
+    }
+
+    /**
+     * Send part of a file to another peer without compression.
+     * @return 1 on success or -1 if the range cannot be served
+     */
+    public int sendRange(ReplySocket sock, File file, long offset,
+			 long length) throws IOException {
+	return sendRange(sock, file, offset, length, null);
+    }
+
+    /**
+     * Send part of a file to another peer. The checksum of the range is sent
+     * first, followed by the range itself, compressed if the peer accepts
+     * deflate and the file compresses well.
+     * @param encodings Encodings the peer accepts, or null if it did not
+     * negotiate an encoding
+     * @return 1 on success or -1 if the range cannot be served
+     */
+    public int sendRange(ReplySocket sock, File file, long offset,
+			 long length, String encodings) throws IOException {
+	if(!file.isFile() || offset < 0 || length <= 0) {
+	    sendEncoding(sock, encodings, false);
+	    sock.sendStream(new ByteArrayInputStream(new byte[0]), 0);
+	    return -1;
+	}
+	FileChannel channel = FileChannel.open(file.toPath(),
+					       StandardOpenOption.READ);
+	try {
+	    long count = Math.min(length, channel.size() - offset);
+	    if(count <= 0) {
+		sendEncoding(sock, encodings, false);
+		sock.sendStream(new ByteArrayInputStream(new byte[0]), 0);
+		return -1;
+	    }
+	    byte[] checksumBytes = getRangeChecksum(file, channel, offset, count);
+	    boolean deflate = accepts(encodings, DEFLATE) &&
+		isCompressible(file, channel);
+	    sendEncoding(sock, encodings, deflate);
+	    sock.sendStream(new ByteArrayInputStream(checksumBytes),
+			    checksumBytes.length);
+	    sendBody(sock, channel, offset, count, deflate);
+	} finally {
+	    channel.close();
+	}
+	return 1;
+    }
+
     /**
      * Ask another peer for its current load. The communication protocol for
      * this downloader only requires that the peer send the word "GetLoad" to
@@ -96,8 +445,12 @@ public class FileDownloader implements Downloader {
     public int getLoad(SocketWrapper sock) {
 	int load = 0;
 	try {
-	    sock.send("GetLoad");
-	    load = Integer.parseInt(sock.receive());
+	    sendRequest(sock, new PeerAction(PeerAction.SEND_LOAD));
+	    String[] reply = receiveReply(sock);
+	    if(reply.length != 1) {
+		return -1;
+	    }
+	    load = Integer.parseInt(reply[0]);
 	} catch(NumberFormatException e) {
 	    return -1;
 	} catch(IOException e) {
@@ -110,36 +463,279 @@ public class FileDownloader implements Downloader {
      * Send the current number of downloads to an asking peer. The format for the message
      * is simply the number in plain text.
      */
-    public int sendLoad(SocketWrapper sock, int concurrentDownloads) throws IOException {
-	sock.send("" + concurrentDownloads);
+    public int sendLoad(ReplySocket sock, int concurrentDownloads) throws IOException {
+	sendReply(sock, "" + concurrentDownloads);
+	return 0;
+    }
+
+    /**
+     * Check that a connection to another peer still works by sending a ping
+     * and waiting for the reply.
+     * @return true if the peer answered
+     */
+    public boolean ping(SocketWrapper sock) {
+	try {
+	    sendRequest(sock, new PeerAction(PeerAction.SEND_PONG));
+	    String[] reply = receiveReply(sock);
+	    return reply.length == 1 && "Pong".equals(reply[0]);
+	} catch(IOException e) {
+	    return false;
+	}
+    }
+
+    /**
+     * Answer a ping from another peer.
+     */
+    public int sendPong(ReplySocket sock) throws IOException {
+	sendReply(sock, "Pong");
 	return 0;
     }
 
+    /**
+     * Refuse a request because this peer has no upload slot free.
+     */
+    public int sendBusy(ReplySocket sock, PeerAction request)
+	throws IOException {
+	switch(request.getAction()) {
+	case PeerAction.SEND_DOWNLOAD:
+	    sock.sendFile(BUSY);
+	    return 0;
+	case PeerAction.SEND_STREAM:
+	case PeerAction.SEND_RANGE:
+	    sendEncoding(sock, request.getEncodings(), false);
+	    sock.sendStream(new ByteArrayInputStream(BUSY), BUSY.length);
+	    return 0;
+	default:
+	    throw new IllegalArgumentException("Cannot refuse action " +
+					       request.getAction());
+	}
+    }
+
+    /**
+     * Send a request to another peer as one line of text. The action of the
+     * request selects the command, and its fields are the fields the command
+     * carries.
+     * @throws IOException Thrown when the file name contains the "::"
+     * separator and so cannot be sent in this protocol.
+     */
+    protected void sendRequest(SocketWrapper sock, PeerAction request)
+	throws IOException {
+	String filename = request.getFilename();
+	if(filename.contains("::")) {
+	    throw new IOException("File name cannot be sent as text: " +
+				  filename);
+	}
+	String encodings = request.getEncodings() == null ? "" :
+	    "::" + request.getEncodings();
+	switch(request.getAction()) {
+	case PeerAction.SEND_LOAD:
+	    sock.send("GetLoad");
+	    break;
+	case PeerAction.SEND_PONG:
+	    sock.send("Ping");
+	    break;
+	case PeerAction.SEND_DOWNLOAD:
+	    sock.send("Download::" + filename);
+	    break;
+	case PeerAction.SEND_STREAM:
+	    sock.send("StreamDownload::" + filename + encodings);
+	    break;
+	case PeerAction.SEND_INFO:
+	    sock.send("Info::" + filename + "::" + request.getLength());
+	    break;
+	case PeerAction.SEND_HASHES:
+	    sock.send("Hashes::" + filename + "::" + request.getLength());
+	    break;
+	case PeerAction.SEND_MANIFEST:
+	    sock.send("Manifest::" + filename);
+	    break;
+	case PeerAction.SEND_RANGE:
+	    sock.send("Range::" + filename + "::" + request.getOffset() + "::" +
+		      request.getLength() + encodings);
+	    break;
+	default:
+	    throw new IllegalArgumentException("Unknown action " +
+					       request.getAction());
+	}
+    }
+
+    /**
+     * Send a one-line reply made of the given fields separated by "::". A
+     * reply without fields is an empty line.
+     */
+    protected void sendReply(ReplySocket sock, String... fields)
+	throws IOException {
+	if(fields.length == 0) {
+	    sock.send("");
+	    return;
+	}
+	StringBuilder reply = new StringBuilder(fields[0]);
+	for(int i = 1; i < fields.length; i++) {
+	    reply.append("::").append(fields[i]);
+	}
+	sock.send(reply.toString());
+    }
+
+    /**
+     * Read a reply sent with sendReply.
+     * @return Fields of the reply, none for an empty line
+     * @throws IOException Thrown when the connection is closed.
+     */
+    protected String[] receiveReply(SocketWrapper sock) throws IOException {
+	String data = sock.receive();
+	if(data == null) {
+	    throw new IOException("Connection closed");
+	} else if(data.equals("")) {
+	    return new String[0];
+	}
+	return data.split("::");
+    }
+
     /**
      * Process a message from another peer according to the communication
      * protocol defined by this downloader.
      * @return A PeerAction object that defines to the caller what action to
      * take.
      */
-    public PeerAction processRequest(SocketWrapper sock) throws IOException {
+    public PeerAction processRequest(ReplySocket sock) throws IOException {
 	try {
 	    String data = sock.receive();
+	    if(data == null) {
+		throw new EOFException("Connection closed");
+	    }
 	    String[] input = data.split("::");
 	    //int delay = (latencyList.get(input[1])).intValue();
 		
 	    switch(input[0]) {
 	    case "GetLoad":
 		return new PeerAction(PeerAction.SEND_LOAD);
+	    case "Ping":
+		return new PeerAction(PeerAction.SEND_PONG);
 	    case "Download":
 		return new PeerAction(PeerAction.SEND_DOWNLOAD, input[1]);
+	    case "StreamDownload":
+		return new PeerAction(PeerAction.SEND_STREAM, input[1], 0, 0,
+				      input.length > 2 ? input[2] : null);
+	    case "Info":
+		return new PeerAction(PeerAction.SEND_INFO, input[1], 0,
+				      input.length > 2 ?
+				      Integer.parseInt(input[2]) : 0);
+	    case "Manifest":
+		return new PeerAction(PeerAction.SEND_MANIFEST, input[1]);
+	    case "Hashes":
+		return new PeerAction(PeerAction.SEND_HASHES, input[1], 0,
+				      Integer.parseInt(input[2]));
+	    case "Range":
+		return new PeerAction(PeerAction.SEND_RANGE, input[1],
+				      Long.parseLong(input[2]),
+				      Long.parseLong(input[3]),
+				      input.length > 4 ? input[4] : null);
 	    default:
 		throw new IOException();
 	    }
 	} catch(IOException e) {
 	    throw e;
+	} catch(RuntimeException e) {
+	    throw new IOException("Malformed request", e);
 	}
     }
 
+    /**
+     * Encodings this peer accepts, or null if compression is off.
+     */
+    private String acceptedEncodings() {
+	return compression ? DEFLATE : null;
+    }
+
+    /**
+     * Read the encoding a peer chose for its reply, if one was negotiated.
+     * @return true if the body is deflated
+     */
+    private boolean receiveEncoding(SocketWrapper sock) throws IOException {
+	if(!compression) {
+	    return false;
+	}
+	String[] reply = receiveReply(sock);
+	if(reply.length == 2 && reply[0].equals("Encoding")) {
+	    if(reply[1].equals(DEFLATE)) {
+		return true;
+	    } else if(reply[1].equals(IDENTITY)) {
+		return false;
+	    }
+	}
+	throw new IOException("Unknown encoding: " + Arrays.toString(reply));
+    }
+
+    private static long receiveBody(SocketWrapper sock, OutputStream dest,
+				    boolean deflated) throws IOException {
+	return deflated ? sock.receiveInflated(dest) : sock.receiveStream(dest);
+    }
+
+    /**
+     * Tell a peer which encoding the reply uses, unless the peer did not
+     * negotiate one.
+     */
+    private void sendEncoding(ReplySocket sock, String encodings,
+			      boolean deflate) throws IOException {
+	if(encodings != null) {
+	    sendReply(sock, "Encoding", deflate ? DEFLATE : IDENTITY);
+	}
+    }
+
+    private static void sendBody(ReplySocket sock, FileChannel channel,
+				 long position, long count, boolean deflate)
+	throws IOException {
+	if(deflate) {
+	    sock.sendDeflated(channel, position, count);
+	} else {
+	    sock.sendStream(channel, position, count);
+	}
+    }
+
+    private static boolean accepts(String encodings, String encoding) {
+	return encodings != null &&
+	    Arrays.asList(encodings.split(",")).contains(encoding);
+    }
+
+    /**
+     * Decide whether a file is worth compressing by compressing a sample
+     * from its start. The decision is cached until the file changes.
+     */
+    private boolean isCompressible(File file, FileChannel channel)
+	throws IOException {
+	String key = file.getCanonicalPath();
+	long length = channel.size();
+	long lastModified = file.lastModified();
+	Compressibility cached = compressibilityCache.get(key);
+	if(cached != null && cached.length == length &&
+	   cached.lastModified == lastModified) {
+	    return cached.compressible;
+	}
+
+	ByteBuffer sample = ByteBuffer.allocate((int)Math.min(SAMPLE_SIZE,
+							      length));
+	while(sample.hasRemaining() &&
+	      channel.read(sample, sample.position()) > 0) {
+	}
+	Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	int compressedLength = 0;
+	try {
+	    deflater.setInput(sample.array(), 0, sample.position());
+	    deflater.finish();
+	    byte[] out = new byte[SAMPLE_SIZE];
+	    while(!deflater.finished()) {
+		compressedLength += deflater.deflate(out);
+	    }
+	} finally {
+	    deflater.end();
+	}
+	boolean compressible = sample.position() > 0 &&
+	    compressedLength < sample.position() * MAX_COMPRESSED_FRACTION;
+	compressibilityCache.put(key, new Compressibility(length, lastModified,
+							  compressible));
+	return compressible;
+    }
+
     /**
      * Utility for changing a byte of a file with a probability according to the
      * threshold field.
@@ -189,29 +785,14 @@ public class FileDownloader implements Downloader {
     /**
      * Verify that the checksum of a file matches. The parameter of this method
      * must contain a 20-byte checksum at the front of the array. The rest of 
-     * the array must contain the file. Compute the checksum of the file and
-     * compare it to the 20-bytes at the front of the file.
+     * the array must contain the file. Compute the checksum of the file in
+     * place and compare it to the 20 bytes at the front of the array.
      */
     private static boolean verifyChecksum(byte[] bytes) {
-	StringBuffer sb = new StringBuffer();
-	for(int i = 0; i < 20; i++) {
-	    sb.append(Integer.toHexString((bytes[i] & 0xFF) |
-					  0x100).substring(1,3));
-	}
-	String realChecksum = sb.toString();
-	System.out.println(realChecksum);
-	
-	byte[] fileBytes = Arrays.copyOfRange(bytes, 20, bytes.length);
-	byte[] checksumBytes = SHA1(fileBytes);
-	sb = new StringBuffer();
-	for(int i = 0; i < 20; i++) {
-	    sb.append(Integer.toHexString((checksumBytes[i] & 0xFF) |
-					  0x100).substring(1,3));
-	}
-	String computedChecksum = sb.toString();
-	System.out.println(computedChecksum);
-	
-	return realChecksum.equals(computedChecksum);
+	ChecksumVerifier verifier = ChecksumVerifier.get();
+	verifier.update(bytes, ChecksumVerifier.LENGTH,
+			bytes.length - ChecksumVerifier.LENGTH);
+	return verifier.matches(bytes, 0);
     }
 
     /**
@@ -219,19 +800,187 @@ public class FileDownloader implements Downloader {
      * bytes.
      */
     private static byte[] SHA1(byte[] inputText) {
-	byte arr[] = null;
+	return newDigest().digest(inputText);
+    }
 
-	try{
-	    MessageDigest m = MessageDigest.getInstance("SHA-1");
-	    
-	    arr = m.digest(inputText);
-	} catch (Exception e){
+    /**
+     * Return the checksum of a file and, if pieceSize is positive, the
+     * checksum of each of its pieces. The file is only read again if it has
+     * changed since it was last hashed or its pieces are needed for a
+     * different piece size.
+     */
+    private FileHashes getHashes(File file, FileChannel channel,
+				 int pieceSize) throws IOException {
+	String key = file.getCanonicalPath();
+	long length = channel.size();
+	long lastModified = file.lastModified();
+	FileHashes cached = checksumCache.get(key);
+	if(cached != null && cached.length == length &&
+	   cached.lastModified == lastModified &&
+	   (pieceSize <= 0 || cached.pieceSize == pieceSize)) {
+	    return cached;
+	}
+	FileHashes hashes = hashFile(channel, length, lastModified,
+				     Math.max(pieceSize, 0));
+	checksumCache.put(key, hashes);
+	return hashes;
+    }
+
+    /**
+     * Return the checksum of a range of a file. A range that is exactly one
+     * piece of a file whose piece checksums are cached is not read again.
+     */
+    private byte[] getRangeChecksum(File file, FileChannel channel,
+				    long offset, long count) throws IOException {
+	FileHashes cached = checksumCache.get(file.getCanonicalPath());
+	if(cached != null && cached.pieceSize > 0 &&
+	   cached.length == channel.size() &&
+	   cached.lastModified == file.lastModified() &&
+	   offset % cached.pieceSize == 0 &&
+	   count == Math.min(cached.pieceSize, cached.length - offset)) {
+	    int leaf = (int)(offset / cached.pieceSize) * MerkleTree.HASH_LENGTH;
+	    return Arrays.copyOfRange(cached.leaves, leaf,
+				      leaf + MerkleTree.HASH_LENGTH);
+	}
+	return SHA1(channel, offset, count);
+    }
+
+    /**
+     * Compute the checksum of a file and of each of its pieces in one pass
+     * through a fixed-size direct buffer.
+     * @param pieceSize Size of the pieces, or 0 to skip the piece checksums
+     */
+    private static FileHashes hashFile(FileChannel channel, long length,
+				       long lastModified, int pieceSize)
+	throws IOException {
+	MessageDigest fileDigest = newDigest();
+	MessageDigest pieceDigest = newDigest();
+	long pieceCount = pieceSize > 0 ? (length + pieceSize - 1) / pieceSize : 0;
+	if(pieceCount * MerkleTree.HASH_LENGTH > Integer.MAX_VALUE) {
+	    throw new IOException("Piece size " + pieceSize + " is too small");
+	}
+	byte[] leaves = new byte[(int)pieceCount * MerkleTree.HASH_LENGTH];
+	ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+	long position = 0;
+	int piece = 0;
+	while(position < length) {
+	    long end = pieceSize > 0 ?
+		Math.min(length, (long)(piece + 1) * pieceSize) : length;
+	    buffer.clear();
+	    buffer.limit((int)Math.min(buffer.capacity(), end - position));
+	    int bytesRead = channel.read(buffer, position);
+	    if(bytesRead < 0) {
+		throw new EOFException("File ended " + (length - position) +
+				       " bytes short");
+	    }
+	    buffer.flip();
+	    fileDigest.update(buffer);
+	    position += bytesRead;
+	    if(pieceSize > 0) {
+		buffer.rewind();
+		pieceDigest.update(buffer);
+		if(position == end) {
+		    try {
+			pieceDigest.digest(leaves, piece * MerkleTree.HASH_LENGTH,
+					   MerkleTree.HASH_LENGTH);
+		    } catch(DigestException e) {
+			throw new IllegalStateException(e);
+		    }
+		    piece++;
+		}
+	    }
+	}
+	return new FileHashes(length, lastModified, fileDigest.digest(),
+			      pieceSize, leaves);
+    }
+
+    /**
+     * Compute SHA1 hash of count bytes of a file starting at position.
+     */
+    private static byte[] SHA1(FileChannel channel, long position, long count)
+	throws IOException {
+	MessageDigest digest = newDigest();
+	ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+	long end = position + count;
+	while(position < end) {
+	    buffer.clear();
+	    buffer.limit((int)Math.min(buffer.capacity(), end - position));
+	    int bytesRead = channel.read(buffer, position);
+	    if(bytesRead < 0) {
+		throw new EOFException("File ended " + (end - position) +
+				       " bytes short");
+	    }
+	    buffer.flip();
+	    digest.update(buffer);
+	    position += bytesRead;
+	}
+	return digest.digest();
+    }
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static String toHex(byte[] bytes) {
+	char[] hex = new char[bytes.length * 2];
+	for(int i = 0; i < bytes.length; i++) {
+	    hex[2*i] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+	    hex[2*i + 1] = HEX_DIGITS[bytes[i] & 0xF];
+	}
+	return new String(hex);
+    }
+
+    private static byte[] fromHex(String hex) {
+	if(hex.length() % 2 != 0) {
+	    throw new IllegalArgumentException(hex);
+	}
+	byte[] bytes = new byte[hex.length() / 2];
+	for(int i = 0; i < bytes.length; i++) {
+	    bytes[i] = (byte)Integer.parseInt(hex.substring(2*i, 2*i + 2), 16);
+	}
+	return bytes;
+    }
+
+    private static MessageDigest newDigest() {
+	try {
+	    return MessageDigest.getInstance("SHA-1");
+	} catch(NoSuchAlgorithmException e) {
+	    throw new IllegalStateException(e);
+	}
+    }
+
+    /**
+     * Whether a file is worth compressing, along with the size and
+     * modification time the file had when it was sampled.
+     */
+    private static class Compressibility {
+	final long length;
+	final long lastModified;
+	final boolean compressible;
+
+	Compressibility(long length, long lastModified, boolean compressible) {
+	    this.length = length;
+	    this.lastModified = lastModified;
+	    this.compressible = compressible;
+	}
+    }
+
+    /**
+     * Checksum of a file and of its pieces, along with the size and
+     * modification time the file had when it was hashed.
+     */
+    private static class FileHashes {
+	final long length;
+	final long lastModified;
+	final byte[] checksum;
+	final int pieceSize;
+	final byte[] leaves;
+
+	FileHashes(long length, long lastModified, byte[] checksum,
+		   int pieceSize, byte[] leaves) {
+	    this.length = length;
+	    this.lastModified = lastModified;
+	    this.checksum = checksum;
+	    this.pieceSize = pieceSize;
+	    this.leaves = leaves;
 	}
-		
-	StringBuffer sb = new StringBuffer();  
-	for (int i = 0; i < arr.length; ++i) {  
-	    sb.append(Integer.toHexString((arr[i] & 0xFF) | 0x100).substring(1,3));  
-	}  
-	return arr;
     }
 }
@@ -0,0 +1,44 @@
+package com.xfs.client;
+
+/**
+ * Length and checksum of a file held by another peer, and the root of the
+ * hash tree over its pieces if the peer sent one.
+ */
+public class FileInfo {
+    private final long length;
+    private final byte[] checksum;
+    private final byte[] root;
+
+    public FileInfo(long length, byte[] checksum) {
+	this(length, checksum, null);
+    }
+
+    public FileInfo(long length, byte[] checksum, byte[] root) {
+	this.length = length;
+	this.checksum = checksum;
+	this.root = root;
+    }
+
+    public long getLength() {
+	return this.length;
+    }
+
+    public byte[] getChecksum() {
+	return this.checksum;
+    }
+
+    /**
+     * Root of the hash tree over the file's pieces, or null if unknown
+     */
+    public byte[] getRoot() {
+	return this.root;
+    }
+
+    /**
+     * Number of pieces the file is split into for a given piece size. The
+     * last piece may be shorter than the others.
+     */
+    public int getPieceCount(int pieceSize) {
+	return (int)((length + pieceSize - 1) / pieceSize);
+    }
+}
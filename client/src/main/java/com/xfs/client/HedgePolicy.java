@@ -0,0 +1,84 @@
+package com.xfs.client;
+
+import java.util.Arrays;
+
+/**
+ * Decides how long a request for a piece may go without an answer before
+ * the same piece is also requested from another peer. The times of recent
+ * requests are kept, and a request that has run longer than a high
+ * percentile of them is more likely stuck on a sick peer than merely slow.
+ * Racing a second request against it then costs extra traffic for only a
+ * few requests and cuts off the tail of the download time. Until enough
+ * requests have been timed a fixed delay is used.
+ */
+public class HedgePolicy {
+    /**
+     * Default percentile of request times after which a request is hedged
+     */
+    public static final double DEFAULT_PERCENTILE = 0.95;
+
+    /**
+     * Default delay in milliseconds used until enough requests are timed
+     */
+    public static final long DEFAULT_INITIAL_DELAY = 5 * 1000;
+
+    /**
+     * Shortest delay in milliseconds, so requests are not hedged over
+     * ordinary jitter
+     */
+    private static final long MIN_DELAY = 50;
+
+    /**
+     * Number of recent request times kept
+     */
+    private static final int WINDOW = 64;
+
+    /**
+     * Number of request times needed before the percentile is used
+     */
+    private static final int MIN_SAMPLES = 8;
+
+    private final double percentile;
+    private final long initialDelay;
+    private final long[] samples = new long[WINDOW];
+    private int count;
+    private int next;
+
+    public HedgePolicy() {
+	this(DEFAULT_PERCENTILE, DEFAULT_INITIAL_DELAY);
+    }
+
+    /**
+     * @param percentile Fraction of request times, between 0 and 1, a
+     * request may take before it is hedged
+     * @param initialDelay Delay in milliseconds used until enough requests
+     * are timed
+     */
+    public HedgePolicy(double percentile, long initialDelay) {
+	this.percentile = Math.min(1, Math.max(0, percentile));
+	this.initialDelay = initialDelay;
+    }
+
+    /**
+     * Record the time a request took to be answered.
+     */
+    public synchronized void recordSample(long nanos) {
+	samples[next] = nanos;
+	next = (next + 1) % WINDOW;
+	count = Math.min(WINDOW, count + 1);
+    }
+
+    /**
+     * Time in nanoseconds after which a request should be hedged
+     */
+    public synchronized long getDelay() {
+	if(count < MIN_SAMPLES) {
+	    return Math.max(MIN_DELAY, initialDelay) * 1000000L;
+	}
+	long[] sorted = Arrays.copyOf(samples, count);
+	Arrays.sort(sorted);
+	int index = (int)Math.ceil(percentile * count) - 1;
+	long delay = sorted[Math.min(count - 1, Math.max(0, index))];
+	return Math.max(MIN_DELAY * 1000000L, delay);
+    }
+}
@@ -0,0 +1,223 @@
+package com.xfs.client;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import com.xfs.common.Peer;
+import com.xfs.common.SocketWrapper;
+
+/**
+ * Measures the round trip time to other peers. Samples come from two
+ * places: the monitor pings every peer seen in a recent download at a fixed
+ * interval, and short exchanges made anyway, such as load probes, are timed
+ * and recorded as they happen. Samples of each peer are smoothed the way
+ * TCP smooths them (RFC 6298):
+ *    first sample  -> SRTT = R, RTTVAR = R / 2
+ *    later samples -> RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - R|
+ *                     SRTT   = 7/8 SRTT + 1/8 R
+ * so a single slow reply moves the estimate only a little, while a lasting
+ * change is followed within a few samples.
+ */
+public class LatencyMonitor {
+    /**
+     * Default time in milliseconds between pings of a peer
+     */
+    public static final long DEFAULT_PING_INTERVAL = 10 * 1000;
+
+    /**
+     * A peer not seen in a download for this many milliseconds is no longer
+     * pinged
+     */
+    private static final long TRACK_TIME = 5 * 60 * 1000;
+
+    /**
+     * Time in milliseconds a ping waits to connect and then for the pong
+     */
+    private static final int PING_TIMEOUT = 1000;
+
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+
+    /**
+     * Interface for communicating with other peers
+     */
+    private final Downloader downloader;
+
+    /**
+     * Connections pings are sent over
+     */
+    private final ConnectionPool connections;
+
+    private final long pingInterval;
+
+    /**
+     * Round trip time estimates by peer ID
+     */
+    private final ConcurrentHashMap<String, Estimate> estimates =
+	new ConcurrentHashMap<String, Estimate>();
+
+    /**
+     * Peers to ping, by peer ID, with the time each was last seen
+     */
+    private final ConcurrentHashMap<String, Tracked> tracked =
+	new ConcurrentHashMap<String, Tracked>();
+
+    private volatile Thread pinger;
+
+    public LatencyMonitor(Downloader downloader, ConnectionPool connections) {
+	this(downloader, connections, DEFAULT_PING_INTERVAL);
+    }
+
+    public LatencyMonitor(Downloader downloader, ConnectionPool connections,
+			  long pingInterval) {
+	this.downloader = downloader;
+	this.connections = connections;
+	this.pingInterval = pingInterval;
+    }
+
+    /**
+     * Start pinging tracked peers on a daemon thread.
+     */
+    public synchronized void start() {
+	if(pinger != null) {
+	    return;
+	}
+	pinger = new Thread(new Runnable() {
+		@Override public void run() {
+		    while(pinger == Thread.currentThread()) {
+			try {
+			    Thread.sleep(pingInterval);
+			} catch(InterruptedException e) {
+			    return;
+			}
+			pingAll();
+		    }
+		}
+	    }, "xfs-latency");
+	pinger.setDaemon(true);
+	pinger.start();
+    }
+
+    public synchronized void stop() {
+	Thread thread = pinger;
+	pinger = null;
+	if(thread != null) {
+	    thread.interrupt();
+	}
+    }
+
+    /**
+     * Ping a peer from now on, until it has not been seen for a while.
+     */
+    public void track(Peer peer) {
+	tracked.put(peer.getID(), new Tracked(peer, System.currentTimeMillis()));
+    }
+
+    /**
+     * Record the time an exchange with a peer took.
+     */
+    public void recordSample(String id, long nanos) {
+	Estimate estimate = estimates.get(id);
+	if(estimate == null) {
+	    Estimate created = new Estimate();
+	    estimate = estimates.putIfAbsent(id, created);
+	    if(estimate == null) {
+		estimate = created;
+	    }
+	}
+	estimate.add(nanos / 1e6);
+    }
+
+    /**
+     * Smoothed round trip time in milliseconds, or -1 if the peer has not
+     * been measured
+     */
+    public int getLatency(String id) {
+	Estimate estimate = estimates.get(id);
+	return estimate == null ? -1 : (int)Math.round(estimate.getSrtt());
+    }
+
+    /**
+     * Variation of the round trip time in milliseconds, or -1 if the peer
+     * has not been measured
+     */
+    public double getDeviation(String id) {
+	Estimate estimate = estimates.get(id);
+	return estimate == null ? -1 : estimate.getRttvar();
+    }
+
+    /**
+     * Ping every tracked peer once, forgetting peers not seen for a while.
+     */
+    void pingAll() {
+	long now = System.currentTimeMillis();
+	for(Iterator<Map.Entry<String, Tracked>> it =
+		tracked.entrySet().iterator(); it.hasNext(); ) {
+	    Tracked peer = it.next().getValue();
+	    if(now - peer.lastSeen > TRACK_TIME) {
+		it.remove();
+	    } else {
+		ping(peer.peer);
+	    }
+	}
+    }
+
+    private void ping(Peer peer) {
+	SocketWrapper sock;
+	try {
+	    sock = connections.acquire(peer, PING_TIMEOUT);
+	} catch(IOException e) {
+	    return;
+	}
+	try {
+	    sock.setTimeout(PING_TIMEOUT);
+	    long startTime = System.nanoTime();
+	    if(!downloader.ping(sock)) {
+		connections.invalidate(sock);
+		return;
+	    }
+	    recordSample(peer.getID(), System.nanoTime() - startTime);
+	    sock.setTimeout(0);
+	    connections.release(peer, sock);
+	} catch(IOException e) {
+	    connections.invalidate(sock);
+	}
+    }
+
+    /**
+     * Smoothed round trip time of one peer, in milliseconds
+     */
+    private static class Estimate {
+	private double srtt = -1;
+	private double rttvar;
+
+	synchronized void add(double sample) {
+	    if(srtt < 0) {
+		srtt = sample;
+		rttvar = sample / 2;
+	    } else {
+		rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - sample);
+		srtt = (1 - ALPHA) * srtt + ALPHA * sample;
+	    }
+	}
+
+	synchronized double getSrtt() {
+	    return srtt;
+	}
+
+	synchronized double getRttvar() {
+	    return rttvar;
+	}
+    }
+
+    private static class Tracked {
+	final Peer peer;
+	final long lastSeen;
+
+	Tracked(Peer peer, long lastSeen) {
+	    this.peer = peer;
+	    this.lastSeen = lastSeen;
+	}
+    }
+}
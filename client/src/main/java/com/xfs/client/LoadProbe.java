@@ -0,0 +1,16 @@
+package com.xfs.client;
+
+import com.xfs.common.Peer;
+
+/**
+ * Way for a peer selector to find the load of a peer when it needs it,
+ * instead of having the load of every peer found beforehand.
+ */
+public interface LoadProbe {
+    /**
+     * Find the current load of a peer. Implementations may answer from a
+     * cache instead of asking the peer.
+     * @return Load of the peer, or LOAD_DOWN or LOAD_UNKNOWN
+     */
+    public int getLoad(Peer peer);
+}
@@ -0,0 +1,692 @@
+package com.xfs.client;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+import com.xfs.common.BandwidthLimiter;
+import com.xfs.common.PeerAction;
+
+/**
+ * Serves other peers from a few event loop threads instead of a thread per
+ * connection. Each event loop owns a Selector and a share of the
+ * connections, which are non-blocking. A connection goes through the same
+ * states for every request it carries:
+ *    reading  -> bytes are read until a whole request has arrived
+ *    handling -> the request is answered by XFSPeer.answer on a worker
+ *                thread into a ReplyBuffer, so hashing a file never stalls
+ *                the event loop. Uploads first wait for an upload slot.
+ *    writing  -> the reply is written as the socket accepts it, followed by
+ *                the file range it names, sent with FileChannel.transferTo
+ * and then goes back to reading, or is closed after a legacy download.
+ * A connection holds a small request buffer and the short part of its reply,
+ * never a file, so memory use does not grow with the size of the files being
+ * sent. The one exception is the legacy download request, whose reply
+ * XFSPeer builds in memory. Replies are never compressed: a peer that offers
+ * deflate is answered with identity. With a bandwidth limiter, replies are
+ * throttled as background traffic: a connection over its budget stops
+ * writing and its event loop resumes it once the wait is over.
+ */
+public class NioPeerServer {
+    /**
+     * Initial size of a connection's request buffer
+     */
+    private static final int INITIAL_REQUEST_BUFFER = 512;
+
+    /**
+     * Longest request accepted. A connection that sends more without
+     * completing a request is closed.
+     */
+    private static final int MAX_REQUEST_LENGTH = 64 * 1024;
+
+    /**
+     * How often each event loop looks for idle connections, in milliseconds
+     */
+    private static final long IDLE_CHECK_INTERVAL = 1000;
+
+    /**
+     * Most bytes of a file sent at once to a throttled connection
+     */
+    private static final long THROTTLED_CHUNK = 64 * 1024;
+
+    private static final Logger log = Logger.getLogger("log");
+
+    private final XFSPeer peer;
+    private final Downloader downloader;
+
+    /**
+     * Whether requests are binary messages rather than lines of text
+     */
+    private final boolean binary;
+
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+    private ServerSocketChannel serverChannel;
+
+    /**
+     * @param ioThreads Number of event loop threads. Requests are handled on
+     * as many worker threads.
+     */
+    public NioPeerServer(XFSPeer peer, Downloader downloader, int ioThreads) {
+	this.peer = peer;
+	this.downloader = downloader;
+	this.binary = downloader instanceof BinaryFileDownloader;
+	this.loops = new EventLoop[Math.max(1, ioThreads)];
+	this.workers = Executors.newFixedThreadPool(loops.length,
+						    daemonThreads("xfs-nio-worker"));
+    }
+
+    /**
+     * Start listening for connections from other peers.
+     */
+    public void start(int port) throws IOException {
+	serverChannel = ServerSocketChannel.open();
+	serverChannel.bind(new InetSocketAddress(port), 1024);
+	for(int i = 0; i < loops.length; i++) {
+	    loops[i] = new EventLoop(Selector.open());
+	    loops[i].setName("xfs-nio-" + i);
+	    loops[i].setDaemon(true);
+	    loops[i].start();
+	}
+	Thread acceptor = new Thread(new Runnable() {
+		@Override public void run() {
+		    accept();
+		}
+	    }, "xfs-nio-accept");
+	acceptor.setDaemon(true);
+	acceptor.start();
+    }
+
+    /**
+     * Port the server listens on
+     */
+    public int getPort() {
+	return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Stop accepting connections and close every open one.
+     */
+    public void close() throws IOException {
+	serverChannel.close();
+	for(EventLoop loop : loops) {
+	    loop.shutdown();
+	}
+	workers.shutdown();
+    }
+
+    /**
+     * Accept connections and hand them to the event loops in turn.
+     */
+    private void accept() {
+	int next = 0;
+	while(serverChannel.isOpen()) {
+	    try {
+		SocketChannel channel = serverChannel.accept();
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		loops[next].register(channel);
+		next = (next + 1) % loops.length;
+	    } catch(ClosedChannelException e) {
+		return;
+	    } catch(IOException e) {
+		log.info("Failed to accept connection: " + e.getMessage());
+	    }
+	}
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+	return new ThreadFactory() {
+	    private int count;
+
+	    @Override public synchronized Thread newThread(Runnable task) {
+		Thread thread = new Thread(task, name + "-" + count++);
+		thread.setDaemon(true);
+		return thread;
+	    }
+	};
+    }
+
+    /**
+     * Thread that waits on a Selector and reads and writes the connections
+     * registered with it. Other threads pass work to it through a task queue,
+     * since only this thread touches its selection keys.
+     */
+    private class EventLoop extends Thread {
+	private final Selector selector;
+	private final Queue<Runnable> tasks =
+	    new ConcurrentLinkedQueue<Runnable>();
+	private volatile boolean running = true;
+	private long lastIdleCheck;
+
+	/**
+	 * Connections waiting for their throttle
+	 */
+	private final List<Connection> paused = new ArrayList<Connection>();
+
+	EventLoop(Selector selector) {
+	    this.selector = selector;
+	}
+
+	void register(final SocketChannel channel) {
+	    execute(new Runnable() {
+		    @Override public void run() {
+			try {
+			    Connection connection =
+				new Connection(EventLoop.this, channel);
+			    connection.key = channel.register(selector,
+							      SelectionKey.OP_READ,
+							      connection);
+			} catch(IOException e) {
+			    closeQuietly(channel);
+			}
+		    }
+		});
+	}
+
+	void execute(Runnable task) {
+	    tasks.add(task);
+	    selector.wakeup();
+	}
+
+	void shutdown() {
+	    running = false;
+	    selector.wakeup();
+	}
+
+	/**
+	 * Stop writing to a connection for a while.
+	 */
+	void pause(Connection connection, long nanos) {
+	    connection.key.interestOps(0);
+	    connection.resumeAt = System.nanoTime() + nanos;
+	    paused.add(connection);
+	}
+
+	@Override public void run() {
+	    while(running) {
+		try {
+		    selector.select(selectTimeout());
+		} catch(IOException e) {
+		    log.info("Selector failed: " + e.getMessage());
+		    break;
+		}
+		Runnable task;
+		while((task = tasks.poll()) != null) {
+		    task.run();
+		}
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while(keys.hasNext()) {
+		    SelectionKey key = keys.next();
+		    keys.remove();
+		    Connection connection = (Connection)key.attachment();
+		    try {
+			if(key.isValid() && key.isReadable()) {
+			    connection.read();
+			}
+			if(key.isValid() && key.isWritable()) {
+			    connection.write();
+			}
+		    } catch(IOException e) {
+			connection.close();
+		    }
+		}
+		resumePaused();
+		closeIdle();
+	    }
+	    for(SelectionKey key : selector.keys()) {
+		((Connection)key.attachment()).close();
+	    }
+	    try {
+		selector.close();
+	    } catch(IOException e) {
+	    }
+	}
+
+	/**
+	 * Time in milliseconds until the next paused connection may write, or
+	 * until the next idle check if none are paused
+	 */
+	private long selectTimeout() {
+	    long timeout = IDLE_CHECK_INTERVAL;
+	    long now = System.nanoTime();
+	    for(Connection connection : paused) {
+		long millis = (connection.resumeAt - now + 999999) / 1000000;
+		timeout = Math.min(timeout, Math.max(1, millis));
+	    }
+	    return timeout;
+	}
+
+	/**
+	 * Go on writing to paused connections whose wait is over.
+	 */
+	private void resumePaused() {
+	    if(paused.isEmpty()) {
+		return;
+	    }
+	    long now = System.nanoTime();
+	    List<Connection> due = new ArrayList<Connection>();
+	    for(Iterator<Connection> it = paused.iterator(); it.hasNext(); ) {
+		Connection connection = it.next();
+		if(connection.resumeAt - now <= 0) {
+		    it.remove();
+		    due.add(connection);
+		}
+	    }
+	    for(Connection connection : due) {
+		if(!connection.channel.isOpen()) {
+		    continue;
+		}
+		try {
+		    connection.write();
+		} catch(IOException e) {
+		    connection.close();
+		}
+	    }
+	}
+
+	/**
+	 * Close connections that have waited for a request for longer than
+	 * the peer idle timeout.
+	 */
+	private void closeIdle() {
+	    long now = System.currentTimeMillis();
+	    if(now - lastIdleCheck < IDLE_CHECK_INTERVAL) {
+		return;
+	    }
+	    lastIdleCheck = now;
+	    for(SelectionKey key : selector.keys()) {
+		Connection connection = (Connection)key.attachment();
+		if(connection.isIdleSince(now - ConnectionPool.PEER_IDLE_TIMEOUT)) {
+		    connection.close();
+		}
+	    }
+	}
+    }
+
+    /**
+     * State of one connection from another peer. Only the event loop that
+     * owns the connection reads or changes its state, apart from the request
+     * handed to a worker.
+     */
+    private class Connection {
+	final EventLoop loop;
+	final SocketChannel channel;
+	SelectionKey key;
+
+	/**
+	 * Bytes received that do not yet make up a whole request, in write
+	 * mode
+	 */
+	ByteBuffer in = ByteBuffer.allocate(INITIAL_REQUEST_BUFFER);
+
+	/**
+	 * Short part of the reply still to be written, or null when no reply
+	 * is in progress
+	 */
+	ByteBuffer out;
+
+	/**
+	 * File range still to be sent after out
+	 */
+	FileChannel file;
+	long filePosition;
+	long fileRemaining;
+
+	/**
+	 * Whether a request is being handled or answered
+	 */
+	boolean busy;
+
+	/**
+	 * Whether the reply in progress holds an upload slot
+	 */
+	boolean holdsSlot;
+	boolean closeAfterReply;
+	long lastActive = System.currentTimeMillis();
+
+	/**
+	 * Limits the rate of replies, or null if they are not limited
+	 */
+	final BandwidthLimiter.Throttle throttle;
+
+	/**
+	 * Time from System.nanoTime when a paused connection may write again
+	 */
+	long resumeAt;
+
+	Connection(EventLoop loop, SocketChannel channel) {
+	    this.loop = loop;
+	    this.channel = channel;
+	    BandwidthLimiter limiter = peer.getBandwidthLimiter();
+	    this.throttle = limiter == null ? null :
+		limiter.newThrottle(BandwidthLimiter.TrafficClass.BACKGROUND);
+	}
+
+	boolean isIdleSince(long time) {
+	    return !busy && lastActive < time;
+	}
+
+	void read() throws IOException {
+	    if(channel.read(in) < 0) {
+		close();
+		return;
+	    }
+	    lastActive = System.currentTimeMillis();
+	    handleNext();
+	}
+
+	/**
+	 * Hand the next complete request to a worker, or wait for more bytes.
+	 */
+	void handleNext() {
+	    final byte[] request;
+	    try {
+		request = nextRequest();
+	    } catch(IOException e) {
+		log.info("Request cannot be processed: " + e.getMessage());
+		close();
+		return;
+	    }
+	    if(request == null) {
+		key.interestOps(SelectionKey.OP_READ);
+		return;
+	    }
+	    busy = true;
+	    key.interestOps(0);
+	    workers.execute(new Runnable() {
+		    @Override public void run() {
+			handle(request);
+		    }
+		});
+	}
+
+	/**
+	 * Take a whole request off the front of the request buffer.
+	 * @return The request, or null if it has not fully arrived
+	 * @throws IOException Thrown when the request is too long.
+	 */
+	private byte[] nextRequest() throws IOException {
+	    in.flip();
+	    byte[] request = binary ? nextMessage(in) : nextLine(in);
+	    in.compact();
+	    if(request == null && !in.hasRemaining()) {
+		if(in.capacity() >= MAX_REQUEST_LENGTH) {
+		    throw new IOException("Request longer than " +
+					  MAX_REQUEST_LENGTH + " bytes");
+		}
+		ByteBuffer larger = ByteBuffer.allocate(in.capacity() * 2);
+		in.flip();
+		larger.put(in);
+		in = larger;
+	    }
+	    return request;
+	}
+
+	/**
+	 * Parse a request on a worker thread. Uploads wait for an upload slot
+	 * without holding the worker, and are answered by a worker once the
+	 * slot is granted.
+	 */
+	private void handle(byte[] request) {
+	    final ReplyBuffer buffer =
+		new ReplyBuffer(request, channel.socket().getInetAddress());
+	    final PeerAction action;
+	    try {
+		action = identity(downloader.processRequest(buffer));
+	    } catch(IOException | RuntimeException e) {
+		log.info("Request cannot be processed: " + e.getMessage());
+		reply(buffer, null, false, false);
+		return;
+	    }
+	    if(!XFSPeer.isUpload(action)) {
+		answer(buffer, action, false);
+		return;
+	    }
+	    boolean admitted = peer.getUploadScheduler().request(
+		XFSPeer.getRequester(buffer), new Runnable() {
+			@Override public void run() {
+			    workers.execute(new Runnable() {
+				    @Override public void run() {
+					answer(buffer, action, true);
+				    }
+				});
+			}
+		    });
+	    if(!admitted) {
+		reply(buffer, action, peer.refuse(buffer, action), false);
+	    }
+	}
+
+	/**
+	 * Answer a parsed request on a worker thread.
+	 */
+	private void answer(ReplyBuffer buffer, PeerAction action,
+			    boolean holdsSlot) {
+	    boolean keepOpen;
+	    try {
+		keepOpen = peer.answer(buffer, action);
+	    } catch(RuntimeException e) {
+		log.info("Request cannot be processed: " + e.getMessage());
+		keepOpen = false;
+	    }
+	    reply(buffer, action, keepOpen, holdsSlot);
+	}
+
+	/**
+	 * Pass a reply collected by a worker back to the event loop.
+	 */
+	private void reply(final ReplyBuffer buffer, final PeerAction action,
+			   final boolean keepOpen, final boolean holdsSlot) {
+	    loop.execute(new Runnable() {
+		    @Override public void run() {
+			startReply(buffer, action, keepOpen, holdsSlot);
+		    }
+		});
+	}
+
+	/**
+	 * Start writing a reply collected by a worker.
+	 */
+	private void startReply(ReplyBuffer buffer, PeerAction action,
+				boolean keepOpen, boolean holdsSlot) {
+	    this.holdsSlot = holdsSlot;
+	    if(!channel.isOpen()) {
+		finishReply();
+		return;
+	    }
+	    lastActive = System.currentTimeMillis();
+	    out = ByteBuffer.wrap(buffer.getReply());
+	    closeAfterReply = !keepOpen;
+	    if(buffer.hasFileRange() && action != null) {
+		try {
+		    file = FileChannel.open(
+			peer.getSharedFile(action.getFilename()).toPath(),
+			StandardOpenOption.READ);
+		} catch(IOException e) {
+		    log.info("Failed to send " + action.getFilename());
+		    close();
+		    return;
+		}
+		filePosition = buffer.getFilePosition();
+		fileRemaining = buffer.getFileCount();
+		peer.addDownload();
+	    }
+	    try {
+		write();
+	    } catch(IOException e) {
+		close();
+	    }
+	}
+
+	/**
+	 * Write as much of the reply as the socket and the throttle accept.
+	 * When the reply is done, go on to the next request.
+	 */
+	void write() throws IOException {
+	    while(out.hasRemaining()) {
+		int written = channel.write(out);
+		if(written == 0) {
+		    key.interestOps(SelectionKey.OP_WRITE);
+		    return;
+		}
+		if(pauseAfter(written)) {
+		    return;
+		}
+	    }
+	    while(fileRemaining > 0) {
+		long chunk = throttle == null ? fileRemaining :
+		    Math.min(fileRemaining, THROTTLED_CHUNK);
+		long sent = file.transferTo(filePosition, chunk, channel);
+		if(sent == 0) {
+		    if(filePosition >= file.size()) {
+			throw new EOFException("File ended " + fileRemaining +
+					       " bytes short");
+		    }
+		    key.interestOps(SelectionKey.OP_WRITE);
+		    return;
+		}
+		filePosition += sent;
+		fileRemaining -= sent;
+		lastActive = System.currentTimeMillis();
+		if(pauseAfter(sent)) {
+		    return;
+		}
+	    }
+	    finishReply();
+	    if(closeAfterReply) {
+		close();
+		return;
+	    }
+	    out = null;
+	    busy = false;
+	    handleNext();
+	}
+
+	/**
+	 * Charge bytes written to the throttle and pause the connection if it
+	 * is over its budget.
+	 * @return true if the connection was paused
+	 */
+	private boolean pauseAfter(long bytes) {
+	    if(throttle == null) {
+		return false;
+	    }
+	    long wait = throttle.chargeSend(bytes);
+	    if(wait <= 0) {
+		return false;
+	    }
+	    loop.pause(this, wait);
+	    return true;
+	}
+
+	/**
+	 * Let go of the file and the upload slot held by the reply.
+	 */
+	private void finishReply() {
+	    if(file != null) {
+		closeQuietly(file);
+		file = null;
+		peer.removeDownload();
+	    }
+	    if(holdsSlot) {
+		holdsSlot = false;
+		peer.getUploadScheduler().release();
+	    }
+	}
+
+	void close() {
+	    finishReply();
+	    if(key != null) {
+		key.cancel();
+	    }
+	    closeQuietly(channel);
+	}
+    }
+
+    /**
+     * Drop the encodings a peer offers so the reply is sent uncompressed, but
+     * keep the reply's encoding line so the peer still finds it.
+     */
+    private static PeerAction identity(PeerAction action) {
+	if(action.getEncodings() == null) {
+	    return action;
+	}
+	return new PeerAction(action.getAction(), action.getFilename(),
+			      action.getOffset(), action.getLength(),
+			      FileDownloader.IDENTITY);
+    }
+
+    /**
+     * Take a line of text off the front of a buffer in read mode. The line
+     * terminator is dropped.
+     * @return The line or null if the buffer does not hold a whole line
+     */
+    private static byte[] nextLine(ByteBuffer buffer) {
+	for(int i = buffer.position(); i < buffer.limit(); i++) {
+	    if(buffer.get(i) == '\n') {
+		byte[] line = new byte[i - buffer.position()];
+		buffer.get(line);
+		buffer.get();
+		return line;
+	    }
+	}
+	return null;
+    }
+
+    /**
+     * Take a binary message and its varint length header off the front of a
+     * buffer in read mode.
+     * @return The message or null if the buffer does not hold a whole message
+     * @throws IOException Thrown when the message is too long.
+     */
+    private static byte[] nextMessage(ByteBuffer buffer) throws IOException {
+	int position = buffer.position();
+	long length = 0;
+	for(int shift = 0; ; shift += 7) {
+	    if(position >= buffer.limit()) {
+		return null;
+	    }
+	    byte b = buffer.get(position++);
+	    length |= (long)(b & 0x7F) << shift;
+	    if((b & 0x80) == 0) {
+		break;
+	    } else if(shift > 28) {
+		throw new IOException("Malformed message length");
+	    }
+	}
+	if(length > MAX_REQUEST_LENGTH) {
+	    throw new IOException("Request longer than " + MAX_REQUEST_LENGTH +
+				  " bytes");
+	}
+	if(buffer.limit() - position < length) {
+	    return null;
+	}
+	byte[] message = new byte[(int)length];
+	buffer.position(position);
+	buffer.get(message);
+	return message;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+	try {
+	    closeable.close();
+	} catch(IOException e) {
+	}
+    }
+}
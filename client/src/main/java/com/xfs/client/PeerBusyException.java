@@ -0,0 +1,15 @@
+package com.xfs.client;
+
+import java.io.IOException;
+
+/**
+ * Exception for when a peer refuses an upload because all of its upload
+ * slots are taken and its queue is full. The peer is up, so it should not
+ * be marked as failed. The reply has been read in full, so the connection
+ * can be reused.
+ */
+public class PeerBusyException extends IOException {
+    public PeerBusyException(String message) {
+	super(message);
+    }
+}
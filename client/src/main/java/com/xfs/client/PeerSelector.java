@@ -10,4 +10,30 @@ public interface PeerSelector {
      * Return a peer or null if none can be selected.
      */
     public Peer choosePeer(Peer[] peers);
+
+    /**
+     * Learn from a transfer from a peer. Selectors that do not learn ignore
+     * it.
+     * @param bytes Bytes delivered
+     * @param nanos Time the transfer took in nanoseconds
+     * @param success false if the transfer failed
+     */
+    public default void recordOutcome(Peer peer, long bytes, long nanos,
+				      boolean success) {
+    }
+
+    /**
+     * Give the selector a way to find the load of a peer. Selectors that
+     * compare the loads already set on the peers ignore it.
+     */
+    public default void setLoadProbe(LoadProbe loadProbe) {
+    }
+
+    /**
+     * Whether the selector finds loads itself through its load probe, so
+     * the caller need not find the load of every peer beforehand.
+     */
+    public default boolean probesLoads() {
+	return false;
+    }
 }
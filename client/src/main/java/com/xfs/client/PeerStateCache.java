@@ -0,0 +1,262 @@
+package com.xfs.client;
+
+import java.util.concurrent.ConcurrentHashMap;
+import com.xfs.common.Peer;
+
+/**
+ * What this peer has recently learned about other peers, keyed by peer ID
+ * and shared by every download. Each kind of observation is kept for its own
+ * time to live, after which it is stale and must be observed again:
+ *    load        -> last load a peer reported, so peers probed a moment ago
+ *                   are not probed again
+ *    failures    -> requests that failed or load probes that timed out in
+ *                   a row. After FAILURE_THRESHOLD of them the peer's
+ *                   circuit breaker opens.
+ *    breaker     -> closed while the peer works. Open after repeated
+ *                   failures, so the peer is skipped without being tried.
+ *                   Half open once the open time is over, letting one probe
+ *                   through: success closes it and failure opens it again.
+ *    throughput  -> bytes per second a peer delivered, averaged over recent
+ *                   transfers
+ */
+public class PeerStateCache {
+    public enum Breaker { CLOSED, OPEN, HALF_OPEN }
+
+    /**
+     * Default times to live in milliseconds
+     */
+    public static final long DEFAULT_LOAD_TTL = 5 * 1000;
+    public static final long DEFAULT_FAILURE_TTL = 60 * 1000;
+    public static final long DEFAULT_OPEN_TIME = 30 * 1000;
+    public static final long DEFAULT_THROUGHPUT_TTL = 5 * 60 * 1000;
+
+    /**
+     * Failures in a row that open a peer's circuit breaker
+     */
+    public static final int FAILURE_THRESHOLD = 3;
+
+    /**
+     * Weight of the newest sample in a peer's throughput
+     */
+    private static final double THROUGHPUT_WEIGHT = 0.3;
+
+    private final long loadTtl;
+    private final long failureTtl;
+    private final long openTime;
+    private final long throughputTtl;
+
+    private final ConcurrentHashMap<String, State> states =
+	new ConcurrentHashMap<String, State>();
+
+    public PeerStateCache() {
+	this(DEFAULT_LOAD_TTL, DEFAULT_FAILURE_TTL, DEFAULT_OPEN_TIME,
+	     DEFAULT_THROUGHPUT_TTL);
+    }
+
+    /**
+     * @param loadTtl How long a reported load is used
+     * @param failureTtl How long failures are counted after the last one
+     * @param openTime How long an open breaker stays open
+     * @param throughputTtl How long a throughput is used after the last
+     * transfer
+     */
+    public PeerStateCache(long loadTtl, long failureTtl, long openTime,
+			  long throughputTtl) {
+	this.loadTtl = loadTtl;
+	this.failureTtl = failureTtl;
+	this.openTime = openTime;
+	this.throughputTtl = throughputTtl;
+    }
+
+    /**
+     * Last load the peer reported, or null if it is stale or was never
+     * reported. A peer that failed since is reported with a load of -1, or
+     * LOAD_UNKNOWN if it did not answer a load probe in time.
+     */
+    public Integer getLoad(String id) {
+	State state = states.get(id);
+	return state == null ? null : state.getLoad();
+    }
+
+    /**
+     * Record the load a peer reported. A load of -1 or LOAD_UNKNOWN counts
+     * as a failure, and is kept as the peer's load like any other.
+     */
+    public void recordLoad(String id, int load) {
+	if(load == Peer.LOAD_DOWN || load == Peer.LOAD_UNKNOWN) {
+	    get(id).recordFailure(load);
+	} else {
+	    get(id).recordLoad(load);
+	}
+    }
+
+    /**
+     * Record a request to a peer that failed.
+     */
+    public void recordFailure(String id) {
+	get(id).recordFailure(Peer.LOAD_DOWN);
+    }
+
+    /**
+     * Record a request to a peer that succeeded, which closes its breaker.
+     */
+    public void recordSuccess(String id) {
+	get(id).recordSuccess();
+    }
+
+    /**
+     * Whether a request to a peer may be made. It may if the peer's breaker
+     * is closed. If the breaker is half open, the first caller is let
+     * through to try the peer and the breaker counts as open for everyone
+     * else until the result of the try is recorded or the open time passes
+     * again.
+     */
+    public boolean allowRequest(String id) {
+	State state = states.get(id);
+	return state == null || state.allowRequest();
+    }
+
+    public Breaker getBreaker(String id) {
+	State state = states.get(id);
+	return state == null ? Breaker.CLOSED : state.getBreaker();
+    }
+
+    /**
+     * Number of failures in a row that are not stale
+     */
+    public int getFailures(String id) {
+	State state = states.get(id);
+	return state == null ? 0 : state.getFailures();
+    }
+
+    /**
+     * Record a transfer from a peer.
+     * @param nanos Time the transfer took in nanoseconds
+     */
+    public void recordThroughput(String id, long bytes, long nanos) {
+	if(bytes > 0 && nanos > 0) {
+	    get(id).recordThroughput(bytes * 1e9 / nanos);
+	}
+    }
+
+    /**
+     * Bytes per second the peer delivered recently, or 0 if unknown or stale
+     */
+    public double getThroughput(String id) {
+	State state = states.get(id);
+	return state == null ? 0 : state.getThroughput();
+    }
+
+    private State get(String id) {
+	State state = states.get(id);
+	if(state == null) {
+	    State created = new State();
+	    state = states.putIfAbsent(id, created);
+	    if(state == null) {
+		state = created;
+	    }
+	}
+	return state;
+    }
+
+    /**
+     * Observations of one peer with the times they were made
+     */
+    private class State {
+	private int load;
+	private long loadTime;
+	private int failures;
+	private long failureTime;
+	private long openedAt;
+	private boolean open;
+	private double throughput;
+	private long throughputTime;
+
+	synchronized Integer getLoad() {
+	    if(loadTime == 0 ||
+	       System.currentTimeMillis() - loadTime > loadTtl) {
+		return null;
+	    }
+	    return load;
+	}
+
+	synchronized void recordLoad(int load) {
+	    this.load = load;
+	    this.loadTime = System.currentTimeMillis();
+	    close();
+	}
+
+	synchronized void recordFailure(int load) {
+	    long now = System.currentTimeMillis();
+	    if(now - failureTime > failureTtl) {
+		failures = 0;
+	    }
+	    failures++;
+	    failureTime = now;
+	    this.load = load;
+	    loadTime = now;
+	    if(failures >= FAILURE_THRESHOLD || open) {
+		open = true;
+		openedAt = now;
+	    }
+	}
+
+	synchronized void recordSuccess() {
+	    if(load == Peer.LOAD_DOWN || load == Peer.LOAD_UNKNOWN) {
+		loadTime = 0;
+	    }
+	    close();
+	}
+
+	synchronized boolean allowRequest() {
+	    switch(getBreaker()) {
+	    case CLOSED:
+		return true;
+	    case HALF_OPEN:
+		openedAt = System.currentTimeMillis();
+		return true;
+	    default:
+		return false;
+	    }
+	}
+
+	synchronized Breaker getBreaker() {
+	    if(!open) {
+		return Breaker.CLOSED;
+	    }
+	    return System.currentTimeMillis() - openedAt < openTime ?
+		Breaker.OPEN : Breaker.HALF_OPEN;
+	}
+
+	synchronized int getFailures() {
+	    if(System.currentTimeMillis() - failureTime > failureTtl) {
+		return 0;
+	    }
+	    return failures;
+	}
+
+	synchronized void recordThroughput(double sample) {
+	    long now = System.currentTimeMillis();
+	    if(throughputTime == 0 || now - throughputTime > throughputTtl) {
+		throughput = sample;
+	    } else {
+		throughput = THROUGHPUT_WEIGHT * sample +
+		    (1 - THROUGHPUT_WEIGHT) * throughput;
+	    }
+	    throughputTime = now;
+	}
+
+	synchronized double getThroughput() {
+	    if(throughputTime == 0 ||
+	       System.currentTimeMillis() - throughputTime > throughputTtl) {
+		return 0;
+	    }
+	    return throughput;
+	}
+
+	private void close() {
+	    failures = 0;
+	    open = false;
+	}
+    }
+}
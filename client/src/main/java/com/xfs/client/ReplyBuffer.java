@@ -0,0 +1,144 @@
+package com.xfs.client;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.channels.FileChannel;
+import com.xfs.common.MessageWriter;
+import com.xfs.common.ReplySocket;
+
+/**
+ * Lets a Downloader parse and answer one request without a blocking
+ * connection. The request is read from a byte array that
+ * already holds it, and the reply is collected in memory to be written out
+ * later by a non-blocking channel. A file sent with sendStream is not copied:
+ * only its length header is collected and the range of the file is recorded,
+ * so the caller can send it straight from the file. Such a range must be the
+ * last part of the reply. Compressed transfers are not supported.
+ */
+class ReplyBuffer implements ReplySocket {
+    /**
+     * The request, a line of text or a binary message without its length
+     * header
+     */
+    private final byte[] request;
+    private boolean requestRead;
+
+    private final InetAddress address;
+
+    private final ByteArrayOutputStream reply = new ByteArrayOutputStream(64);
+    private final DataOutputStream replyOut = new DataOutputStream(reply);
+
+    /**
+     * Range of a file that follows the collected reply, or a negative count
+     * if there is none
+     */
+    private long filePosition;
+    private long fileCount = -1;
+
+    ReplyBuffer(byte[] request, InetAddress address) {
+	this.request = request;
+	this.address = address;
+    }
+
+    /**
+     * Bytes of the reply that come before the file range, if any.
+     */
+    byte[] getReply() {
+	return reply.toByteArray();
+    }
+
+    boolean hasFileRange() {
+	return fileCount >= 0;
+    }
+
+    long getFilePosition() {
+	return filePosition;
+    }
+
+    long getFileCount() {
+	return fileCount;
+    }
+
+    public void send(String data) {
+	checkOpen();
+	byte[] bytes = (data + "\n").getBytes();
+	reply.write(bytes, 0, bytes.length);
+    }
+
+    public void sendFile(byte[] data) throws IOException {
+	checkOpen();
+	reply.write(data);
+    }
+
+    public void sendStream(InputStream data, long length) throws IOException {
+	checkOpen();
+	replyOut.writeLong(length);
+	byte[] buf = new byte[(int)Math.min(length, 8192)];
+	long remaining = length;
+	while(remaining > 0) {
+	    int bytesRead = data.read(buf, 0, (int)Math.min(buf.length, remaining));
+	    if(bytesRead < 0) {
+		throw new EOFException("Stream ended " + remaining +
+				       " bytes short");
+	    }
+	    reply.write(buf, 0, bytesRead);
+	    remaining -= bytesRead;
+	}
+    }
+
+    /**
+     * Collect the length header and record the range of the file. The
+     * channel itself is not kept, since the caller closes it.
+     */
+    public void sendStream(FileChannel file, long position, long count)
+	throws IOException {
+	checkOpen();
+	replyOut.writeLong(count);
+	filePosition = position;
+	fileCount = count;
+    }
+
+    public void sendDeflated(FileChannel file, long position, long count)
+	throws IOException {
+	throw new IOException("Compressed replies are not supported");
+    }
+
+    public void sendMessage(MessageWriter message) throws IOException {
+	checkOpen();
+	message.writeTo(reply);
+    }
+
+    public String receive() throws IOException {
+	if(requestRead) {
+	    return null;
+	}
+	requestRead = true;
+	int length = request.length;
+	if(length > 0 && request[length-1] == '\r') {
+	    length--;
+	}
+	return new String(request, 0, length);
+    }
+
+    public byte[] receiveMessage() throws IOException {
+	if(requestRead) {
+	    return null;
+	}
+	requestRead = true;
+	return request;
+    }
+
+    public InetAddress getInetAddress() {
+	return address;
+    }
+
+    /**
+     * Nothing may follow a file range, since it is sent after the rest of
+     * the reply.
+     */
+    private void checkOpen() {
+	if(hasFileRange()) {
+	    throw new IllegalStateException("Reply continues after a file range");
+	}
+    }
+}
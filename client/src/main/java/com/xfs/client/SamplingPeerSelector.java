@@ -0,0 +1,105 @@
+package com.xfs.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import com.xfs.common.Peer;
+
+/**
+ * Peer selector that asks only a few peers for their load ("power of d
+ * choices"). A choice picks d candidates at random, finds the load of just
+ * those through its load probe, and takes the less loaded one. Choosing the
+ * lighter of two random peers instead of one random peer already keeps the
+ * busiest peer close to the average, yet the number of probes per choice
+ * stays the same however many peers hold the file. If every candidate turns
+ * out to be down, d more are picked from the rest.
+ */
+public class SamplingPeerSelector implements PeerSelector {
+    /**
+     * Default number of candidates probed per choice
+     */
+    public static final int DEFAULT_CHOICES = 2;
+
+    private final int choices;
+    private final Random random = new Random();
+    private volatile LoadProbe loadProbe;
+
+    public SamplingPeerSelector() {
+	this(DEFAULT_CHOICES);
+    }
+
+    /**
+     * @param choices Number of candidates probed per choice
+     */
+    public SamplingPeerSelector(int choices) {
+	this.choices = Math.max(1, choices);
+    }
+
+    public int getChoices() {
+	return this.choices;
+    }
+
+    /**
+     * Use a probe to find the load of candidates. Without one, the loads
+     * already set on the peers are compared.
+     */
+    @Override
+    public void setLoadProbe(LoadProbe loadProbe) {
+	this.loadProbe = loadProbe;
+    }
+
+    @Override
+    public boolean probesLoads() {
+	return this.loadProbe != null;
+    }
+
+    /**
+     * Choose the less loaded of d random peers. The load found for each
+     * candidate is set on it. Peers with unknown load are taken only when
+     * no candidate reported a load.
+     */
+    @Override
+    public Peer choosePeer(Peer[] peers) {
+	List<Peer> remaining = new ArrayList<Peer>();
+	for(Peer peer : peers) {
+	    if(peer != null && peer.getLoad() != Peer.LOAD_DOWN) {
+		remaining.add(peer);
+	    }
+	}
+	while(!remaining.isEmpty()) {
+	    Peer best = null;
+	    for(int i = 0; i < choices && !remaining.isEmpty(); i++) {
+		Peer candidate = remaining.remove(random.nextInt(remaining.size()));
+		LoadProbe probe = this.loadProbe;
+		if(probe != null) {
+		    candidate.setLoad(probe.getLoad(candidate));
+		}
+		if(candidate.getLoad() != Peer.LOAD_DOWN &&
+		   (best == null || isBetter(candidate, best))) {
+		    best = candidate;
+		}
+	    }
+	    if(best != null) {
+		return best;
+	    }
+	}
+	return null;
+    }
+
+    /**
+     * Whether a peer is less loaded than another. A known load beats an
+     * unknown one, and equal loads are settled by latency.
+     */
+    private static boolean isBetter(Peer peer, Peer other) {
+	boolean known = peer.getLoad() != Peer.LOAD_UNKNOWN;
+	boolean otherKnown = other.getLoad() != Peer.LOAD_UNKNOWN;
+	if(known != otherKnown) {
+	    return known;
+	}
+	if(peer.getLoad() != other.getLoad()) {
+	    return peer.getLoad() < other.getLoad();
+	}
+	return peer.getLatency() >= 0 &&
+	    (other.getLatency() < 0 || peer.getLatency() < other.getLatency());
+    }
+}
@@ -0,0 +1,655 @@
+package com.xfs.client;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import com.xfs.common.Peer;
+import com.xfs.common.SocketWrapper;
+
+/**
+ * Downloads one file from several peers at once. The file is split into
+ * fixed-size pieces and every peer gets a worker that keeps taking the next
+ * missing piece, so faster peers end up serving more of the file. Each piece
+ * is fetched with a range request and verified before it is written and
+ * recorded in the download state, against the piece's leaf in the file's
+ * hash tree when the download state has one and otherwise against the range
+ * checksum. A corrupt piece goes back in the queue and is fetched from a
+ * different peer if one is free to take it. A worker
+ * whose throughput falls far below that of the fastest peer stops taking
+ * pieces. Once every piece has been handed out, idle workers enter endgame
+ * mode and request pieces that are still in flight. The first copy of a piece
+ * to arrive is kept and the other requests for it are cancelled by shutting
+ * down their connections. Every other connection goes back to the connection
+ * pool once its piece has arrived. A peer that answers busy is replaced by
+ * the next peer that was not given a worker, if there is one. A request that
+ * goes unanswered for longer than the hedge policy allows is hedged: the
+ * piece is also requested by the next worker to ask for one and, if there
+ * is a peer without a worker, by a new worker on that peer. The first copy
+ * to arrive is kept as in endgame mode, and the worker that lost the race
+ * stops, since its peer has stalled.
+ */
+public class SwarmDownloader {
+    /**
+     * A peer whose throughput drops below this fraction of the fastest peer's
+     * throughput is dropped from the swarm.
+     */
+    private static final double SLOW_PEER_FRACTION = 0.25;
+
+    /**
+     * Number of pieces a peer must deliver before it can be judged slow
+     */
+    private static final int MIN_PIECES_BEFORE_RETIRE = 2;
+
+    /**
+     * Weight of the newest sample in a peer's throughput estimate
+     */
+    private static final double RATE_WEIGHT = 0.5;
+
+    /**
+     * Number of corrupt pieces after which a peer is dropped
+     */
+    private static final int MAX_CORRUPT_PIECES = 3;
+
+    /**
+     * Time in milliseconds between checks for requests to hedge
+     */
+    private static final long HEDGE_CHECK_INTERVAL = 100;
+
+    /**
+     * Interface for communicating with other peers
+     */
+    private Downloader downloader;
+
+    /**
+     * Connections to other peers kept open between requests
+     */
+    private ConnectionPool connections;
+
+    /**
+     * Size of each piece in bytes for new downloads
+     */
+    private int pieceSize;
+
+    /**
+     * Maximum number of peers to download from at once
+     */
+    private int maxPeers;
+
+    /**
+     * Where the throughput and failures of peers are recorded, or null
+     */
+    private PeerStateCache peerStates;
+
+    /**
+     * Told how each piece transfer went, or null
+     */
+    private PeerSelector peerSelector;
+
+    /**
+     * Decides when a request is hedged, or null to never hedge
+     */
+    private HedgePolicy hedgePolicy = new HedgePolicy();
+
+    public SwarmDownloader(Downloader downloader, ConnectionPool connections,
+			   int pieceSize, int maxPeers) {
+	this.downloader = downloader;
+	this.connections = connections;
+	this.pieceSize = pieceSize;
+	this.maxPeers = maxPeers;
+    }
+
+    public int getPieceSize() {
+	return this.pieceSize;
+    }
+
+    public int getMaxPeers() {
+	return this.maxPeers;
+    }
+
+    public void setPeerStateCache(PeerStateCache peerStates) {
+	this.peerStates = peerStates;
+    }
+
+    public void setPeerSelector(PeerSelector peerSelector) {
+	this.peerSelector = peerSelector;
+    }
+
+    public void setHedgePolicy(HedgePolicy hedgePolicy) {
+	this.hedgePolicy = hedgePolicy;
+    }
+
+    public HedgePolicy getHedgePolicy() {
+	return this.hedgePolicy;
+    }
+
+    /**
+     * Download the pieces of a file that the download state is missing and
+     * write them to a channel. A peer that fails is marked with a load of -1.
+     * Failures and the throughput of each peer are recorded in the peer
+     * state cache and passed to the peer selector if there are ones.
+     * @param peers Peers that hold the file, best first. At most maxPeers of
+     * them are used at once. The others replace busy peers and take hedged
+     * requests.
+     * @param state Pieces already verified. Updated as pieces arrive.
+     * @param dest Channel the pieces are written to at their offsets
+     * @throws PeerBusyException Thrown when the peers that stopped last did
+     * so because they were busy.
+     * @throws IOException Thrown when every peer has stopped before the file
+     * is complete.
+     */
+    public void download(Peer[] peers, String filename, DownloadState state,
+			 FileChannel dest) throws IOException {
+	int workerCount = Math.min(peers.length, maxPeers);
+	if(workerCount <= 0) {
+	    throw new IOException("No peers to download " + filename + " from");
+	}
+	ExecutorService workers = Executors.newFixedThreadPool(peers.length);
+	Swarm swarm = new Swarm(filename, state, dest, workerCount, workers);
+	for(int i = workerCount; i < peers.length; i++) {
+	    swarm.spares.add(peers[i]);
+	}
+	try {
+	    for(int i = 0; i < workerCount; i++) {
+		workers.execute(swarm.new Worker(peers[i]));
+	    }
+	    swarm.awaitCompletion();
+	} finally {
+	    // Workers stop by themselves once there is nothing left to fetch.
+	    // Interrupting them could close dest in the middle of a write.
+	    workers.shutdown();
+	    state.checkpoint(dest, true);
+	}
+    }
+
+    /**
+     * State of a single swarm download: which pieces are waiting, in flight
+     * and done, and how fast each peer has been.
+     */
+    private class Swarm {
+	private final String filename;
+	private final DownloadState state;
+	private final FileChannel dest;
+
+	private final ArrayDeque<Integer> pending = new ArrayDeque<>();
+
+	/**
+	 * Peers without a worker, best first, that replace busy peers
+	 */
+	private final ArrayDeque<Peer> spares = new ArrayDeque<>();
+	private final Map<Integer, List<SocketWrapper>> inFlight =
+	    new HashMap<>();
+
+	/**
+	 * Requests in flight by the socket they were sent on
+	 */
+	private final Map<SocketWrapper, Request> requests = new HashMap<>();
+
+	/**
+	 * Hedged pieces waiting for a second request, oldest first
+	 */
+	private final ArrayDeque<Integer> hedges = new ArrayDeque<>();
+
+	/**
+	 * Peer that stalled on each hedged piece
+	 */
+	private final Map<Integer, Peer> hedgedFrom = new HashMap<>();
+
+	/**
+	 * Stalled requests cancelled because their hedge won
+	 */
+	private final Set<SocketWrapper> outraced = new HashSet<>();
+	private final ExecutorService workers;
+	private final Map<Integer, List<Peer>> corruptSources =
+	    new HashMap<>();
+	private final BitSet done;
+	private int remaining;
+	private int activeWorkers;
+	private double bestRate;
+	private IOException lastError;
+
+	Swarm(String filename, DownloadState state, FileChannel dest,
+	      int workerCount, ExecutorService workers) {
+	    this.filename = filename;
+	    this.workers = workers;
+	    this.state = state;
+	    this.dest = dest;
+	    this.done = new BitSet(state.getPieceCount());
+	    this.activeWorkers = workerCount;
+	    for(int piece : state.getMissingPieces()) {
+		pending.add(piece);
+		remaining++;
+	    }
+	}
+
+	/**
+	 * Block until every piece is written or every worker has stopped.
+	 * @throws IOException Thrown when workers stopped with pieces missing.
+	 */
+	synchronized void awaitCompletion() throws IOException {
+	    try {
+		while(remaining > 0 && activeWorkers > 0) {
+		    if(hedgePolicy == null) {
+			wait();
+		    } else {
+			wait(HEDGE_CHECK_INTERVAL);
+			hedgeStalled(hedgePolicy.getDelay());
+		    }
+		}
+	    } catch(InterruptedException e) {
+		Thread.currentThread().interrupt();
+		throw new InterruptedIOException("Swarm download interrupted");
+	    }
+	    if(remaining > 0 && lastError instanceof PeerBusyException) {
+		throw new PeerBusyException("All peers are busy with " +
+					    remaining + " pieces missing");
+	    } else if(remaining > 0) {
+		String reason = lastError == null ? "" :
+		    ": " + lastError.getMessage();
+		throw new IOException("All peers failed with " + remaining +
+				      " pieces missing" + reason);
+	    }
+	}
+
+	synchronized boolean hasWork() {
+	    return !pending.isEmpty() || !inFlight.isEmpty();
+	}
+
+	/**
+	 * Hedge every piece whose only request has gone unanswered for longer
+	 * than a delay. A worker is started on a peer without one, if there is
+	 * one, to take the piece.
+	 * @param delay Time in nanoseconds
+	 */
+	private void hedgeStalled(long delay) {
+	    long now = System.nanoTime();
+	    for(Map.Entry<Integer, List<SocketWrapper>> entry :
+		    inFlight.entrySet()) {
+		int piece = entry.getKey();
+		if(entry.getValue().size() != 1 || hedgedFrom.containsKey(piece)) {
+		    continue;
+		}
+		Request request = requests.get(entry.getValue().get(0));
+		if(now - request.startTime < delay) {
+		    continue;
+		}
+		hedgedFrom.put(piece, request.peer);
+		hedges.add(piece);
+		Peer spare = spares.poll();
+		if(spare != null) {
+		    activeWorkers++;
+		    workers.execute(new Worker(spare));
+		}
+	    }
+	}
+
+	/**
+	 * Choose the next piece for a worker and record the socket fetching
+	 * it. Pieces nobody has requested come first. When there are none
+	 * left, the in-flight piece with the fewest requests is duplicated.
+	 * Pieces the peer has already sent corrupt are left for other peers,
+	 * and only retried from this peer when nothing else is left.
+	 * @return Index of the piece or -1 if there is nothing left to fetch
+	 */
+	synchronized int startFetch(SocketWrapper sock, Peer peer) {
+	    Integer piece = null;
+	    for(Iterator<Integer> it = hedges.iterator(); it.hasNext(); ) {
+		Integer candidate = it.next();
+		if(!inFlight.containsKey(candidate)) {
+		    it.remove();
+		} else if(!peer.equals(hedgedFrom.get(candidate)) &&
+			  !sentCorrupt(candidate, peer)) {
+		    it.remove();
+		    piece = candidate;
+		    break;
+		}
+	    }
+	    for(Iterator<Integer> it = pending.iterator();
+		piece == null && it.hasNext(); ) {
+		Integer candidate = it.next();
+		if(!sentCorrupt(candidate, peer)) {
+		    it.remove();
+		    piece = candidate;
+		    break;
+		}
+	    }
+	    if(piece == null) {
+		int fewest = Integer.MAX_VALUE;
+		for(Map.Entry<Integer, List<SocketWrapper>> entry :
+			inFlight.entrySet()) {
+		    if(entry.getValue().size() < fewest &&
+		       !sentCorrupt(entry.getKey(), peer)) {
+			fewest = entry.getValue().size();
+			piece = entry.getKey();
+		    }
+		}
+	    }
+	    if(piece == null) {
+		piece = pending.poll();
+		if(piece == null) {
+		    return -1;
+		}
+	    }
+	    List<SocketWrapper> fetchers = inFlight.get(piece);
+	    if(fetchers == null) {
+		fetchers = new ArrayList<>();
+		inFlight.put(piece, fetchers);
+	    }
+	    fetchers.add(sock);
+	    requests.put(sock, new Request(peer, System.nanoTime()));
+	    return piece;
+	}
+
+	/**
+	 * Claim a downloaded piece. Other requests for the same piece are
+	 * returned so the caller can cancel them.
+	 * @return Sockets still fetching the piece, or null if another worker
+	 * delivered it first
+	 */
+	synchronized List<SocketWrapper> claim(int piece, SocketWrapper sock) {
+	    if(done.get(piece)) {
+		return null;
+	    }
+	    done.set(piece);
+	    List<SocketWrapper> fetchers = inFlight.remove(piece);
+	    fetchers.remove(sock);
+	    requests.remove(sock);
+	    for(SocketWrapper loser : fetchers) {
+		requests.remove(loser);
+	    }
+	    if(hedgedFrom.remove(piece) != null) {
+		outraced.addAll(fetchers);
+	    }
+	    return fetchers;
+	}
+
+	/**
+	 * Record that a claimed piece has been written to disk.
+	 */
+	synchronized void written(int piece) throws IOException {
+	    state.markVerified(piece);
+	    state.checkpoint(dest, false);
+	    remaining--;
+	    notifyAll();
+	}
+
+	private boolean sentCorrupt(int piece, Peer peer) {
+	    List<Peer> sources = corruptSources.get(piece);
+	    return sources != null && sources.contains(peer);
+	}
+
+	/**
+	 * Give up on a request. The piece goes back to the front of the queue
+	 * unless it is done or another worker is still fetching it.
+	 * @param corruptSource Peer that sent the piece corrupt, or null if the
+	 * request failed for another reason
+	 * @return true if the request failed because another worker delivered
+	 * the piece first
+	 */
+	synchronized boolean abandon(int piece, SocketWrapper sock,
+				     Peer corruptSource) {
+	    if(done.get(piece)) {
+		return true;
+	    }
+	    if(corruptSource != null) {
+		List<Peer> sources = corruptSources.get(piece);
+		if(sources == null) {
+		    sources = new ArrayList<>();
+		    corruptSources.put(piece, sources);
+		}
+		sources.add(corruptSource);
+	    }
+	    List<SocketWrapper> fetchers = inFlight.get(piece);
+	    fetchers.remove(sock);
+	    requests.remove(sock);
+	    if(fetchers.isEmpty()) {
+		inFlight.remove(piece);
+		hedgedFrom.remove(piece);
+		pending.addFirst(piece);
+	    }
+	    return false;
+	}
+
+	/**
+	 * Whether a request was cancelled because the piece was hedged and
+	 * the hedge arrived first
+	 */
+	synchronized boolean wasOutraced(SocketWrapper sock) {
+	    return outraced.remove(sock);
+	}
+
+	/**
+	 * Record a worker's throughput and decide whether it is too slow to
+	 * keep. The last active worker is never retired.
+	 * @return true if the worker should stop taking pieces
+	 */
+	synchronized boolean isTooSlow(double rate, int delivered) {
+	    bestRate = Math.max(bestRate, rate);
+	    if(activeWorkers > 1 && delivered >= MIN_PIECES_BEFORE_RETIRE &&
+	       rate < bestRate * SLOW_PEER_FRACTION) {
+		return true;
+	    }
+	    return false;
+	}
+
+	/**
+	 * Take the next peer to replace a busy one.
+	 * @return The peer or null if there are no peers left
+	 */
+	synchronized Peer nextSpare() {
+	    return spares.poll();
+	}
+
+	/**
+	 * Record that a worker stopped. A peer that was busy is only reported
+	 * if no worker stopped for another reason.
+	 */
+	synchronized void workerStopped(IOException error) {
+	    if(error != null && !(error instanceof PeerBusyException &&
+				  lastError != null)) {
+		lastError = error;
+	    }
+	    activeWorkers--;
+	    notifyAll();
+	}
+
+	/**
+	 * Fetches pieces from one peer until the file is complete, the peer
+	 * fails, is busy or is found to be too slow. A busy peer is not marked
+	 * as failed, and a spare peer takes over its worker.
+	 */
+	class Worker implements Runnable {
+	    private final Peer peer;
+	    private final ByteBuffer pieceBuffer =
+		ByteBuffer.allocate(state.getPieceSize());
+
+	    Worker(Peer peer) {
+		this.peer = peer;
+	    }
+
+	    @Override public void run() {
+		IOException error = null;
+		Worker replacement = null;
+		try {
+		    fetchPieces();
+		} catch(PeerBusyException e) {
+		    error = e;
+		} catch(IOException e) {
+		    peer.setLoad(-1);
+		    if(peerStates != null) {
+			peerStates.recordFailure(peer.getID());
+		    }
+		    if(peerSelector != null) {
+			peerSelector.recordOutcome(peer, 0, 0, false);
+		    }
+		    error = e;
+		} catch(RuntimeException e) {
+		    error = new IOException("Worker for peer " + peer.getID() +
+					    " failed", e);
+		} finally {
+		    if(error instanceof PeerBusyException) {
+			Peer spare = nextSpare();
+			if(spare != null) {
+			    replacement = new Worker(spare);
+			}
+		    }
+		    if(replacement == null) {
+			workerStopped(error);
+		    }
+		}
+		if(replacement != null) {
+		    replacement.run();
+		}
+	    }
+
+	    private void fetchPieces() throws IOException {
+		double rate = 0;
+		int delivered = 0;
+		int corrupt = 0;
+		while(hasWork()) {
+		    SocketWrapper sock = connections.acquire(peer);
+		    int piece = startFetch(sock, peer);
+		    if(piece < 0) {
+			connections.release(peer, sock);
+			break;
+		    }
+		    long startTime = System.nanoTime();
+		    boolean reusable = false;
+		    try {
+			reusable = fetch(sock, piece);
+		    } catch(ChecksumMismatchException e) {
+			if(abandon(piece, sock, peer)) {
+			    continue;
+			}
+			if(++corrupt >= MAX_CORRUPT_PIECES) {
+			    throw new IOException("Peer " + peer.getID() +
+						  " sent " + corrupt +
+						  " corrupt pieces");
+			}
+			continue;
+		    } catch(PeerBusyException e) {
+			reusable = !abandon(piece, sock, null);
+			throw e;
+		    } catch(IOException e) {
+			if(abandon(piece, sock, null)) {
+			    if(wasOutraced(sock)) {
+				if(peerSelector != null) {
+				    peerSelector.recordOutcome(
+					peer, 0, System.nanoTime() - startTime,
+					false);
+				}
+				break;
+			    }
+			    continue;
+			}
+			throw e;
+		    } finally {
+			if(reusable) {
+			    connections.release(peer, sock);
+			} else {
+			    connections.invalidate(sock);
+			}
+		    }
+		    long elapsed = Math.max(1, System.nanoTime() - startTime);
+		    if(hedgePolicy != null) {
+			hedgePolicy.recordSample(elapsed);
+		    }
+		    if(peerStates != null) {
+			peerStates.recordSuccess(peer.getID());
+			peerStates.recordThroughput(peer.getID(),
+						    pieceBuffer.limit(), elapsed);
+		    }
+		    if(peerSelector != null) {
+			peerSelector.recordOutcome(peer, pieceBuffer.limit(),
+						   elapsed, true);
+		    }
+		    double sample = pieceBuffer.limit() / (double)elapsed;
+		    rate = delivered == 0 ? sample :
+			RATE_WEIGHT * sample + (1 - RATE_WEIGHT) * rate;
+		    delivered++;
+		    if(isTooSlow(rate, delivered)) {
+			break;
+		    }
+		}
+	    }
+
+	    /**
+	     * Download a piece into the worker's buffer and, if no other
+	     * worker got it first, write it to the file.
+	     * @return true if this worker delivered the piece. Otherwise the
+	     * connection may have been shut down by the worker that did.
+	     */
+	    private boolean fetch(SocketWrapper sock, int piece)
+		throws ChecksumMismatchException, IOException {
+		long offset = (long)piece * state.getPieceSize();
+		int expected = state.getPieceLength(piece);
+		pieceBuffer.clear();
+		downloader.downloadRange(sock, filename, offset, expected,
+					 state.getPieceHash(piece),
+					 new BufferOutputStream(pieceBuffer));
+		pieceBuffer.flip();
+		if(pieceBuffer.limit() != expected) {
+		    throw new IOException("Piece " + piece + " has " +
+					  pieceBuffer.limit() + " bytes, expected " +
+					  expected);
+		}
+
+		List<SocketWrapper> losers = claim(piece, sock);
+		if(losers == null) {
+		    return false;
+		}
+		for(SocketWrapper loser : losers) {
+		    connections.abort(loser);
+		}
+		while(pieceBuffer.hasRemaining()) {
+		    dest.write(pieceBuffer, offset + pieceBuffer.position());
+		}
+		pieceBuffer.rewind();
+		written(piece);
+		state.hashVerifiedPrefix(dest);
+		return true;
+	    }
+	}
+    }
+
+    /**
+     * Request for a piece: the peer it was sent to and when
+     */
+    private static class Request {
+	final Peer peer;
+	final long startTime;
+
+	Request(Peer peer, long startTime) {
+	    this.peer = peer;
+	    this.startTime = startTime;
+	}
+    }
+
+    /**
+     * Output stream that fills a fixed-size buffer.
+     */
+    private static class BufferOutputStream extends OutputStream {
+	private final ByteBuffer buffer;
+
+	BufferOutputStream(ByteBuffer buffer) {
+	    this.buffer = buffer;
+	}
+
+	@Override public void write(int b) throws IOException {
+	    if(!buffer.hasRemaining()) {
+		throw new IOException("Piece is larger than the piece size");
+	    }
+	    buffer.put((byte)b);
+	}
+
+	@Override public void write(byte[] b, int off, int len)
+	    throws IOException {
+	    if(len > buffer.remaining()) {
+		throw new IOException("Piece is larger than the piece size");
+	    }
+	    buffer.put(b, off, len);
+	}
+    }
+}
@@ -0,0 +1,195 @@
+package com.xfs.client;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Decides when an upload may start. A fixed number of uploads run at once,
+ * each in a slot, so each one gets a useful share of the link instead of
+ * all of them crawling along together. Uploads that find every slot taken
+ * wait in a bounded queue. Waiting uploads are kept per requesting peer and
+ * a freed slot goes to the peers in turn, so a peer asking for many pieces
+ * at once cannot hold back the others. When the queue is full the upload is
+ * refused at once and the requesting peer is told this peer is busy.
+ */
+public class UploadScheduler {
+    /**
+     * Default number of uploads that run at once
+     */
+    public static final int DEFAULT_SLOTS = 4;
+
+    /**
+     * Default number of uploads that may wait for a slot
+     */
+    public static final int DEFAULT_QUEUE = 32;
+
+    private final int slots;
+    private final int maxQueued;
+    private int active;
+    private int queued;
+
+    /**
+     * Waiting uploads by requesting peer. The peer at the front is served
+     * next and then moved to the back if it has more uploads waiting.
+     */
+    private final LinkedHashMap<String, ArrayDeque<Waiter>> waiting =
+	new LinkedHashMap<String, ArrayDeque<Waiter>>();
+
+    /**
+     * @param slots Number of uploads that run at once
+     * @param maxQueued Number of uploads that may wait for a slot
+     */
+    public UploadScheduler(int slots, int maxQueued) {
+	this.slots = Math.max(1, slots);
+	this.maxQueued = Math.max(0, maxQueued);
+    }
+
+    /**
+     * Wait for a slot. The caller must call release once the upload is
+     * done.
+     * @param requester Address of the requesting peer
+     * @return true once a slot is held, or false at once if the queue is full
+     */
+    public boolean acquire(String requester) throws InterruptedException {
+	final CountDownLatch granted = new CountDownLatch(1);
+	Waiter waiter = new Waiter(new Runnable() {
+		@Override public void run() {
+		    granted.countDown();
+		}
+	    });
+	if(!admit(requester, waiter)) {
+	    return false;
+	}
+	try {
+	    granted.await();
+	} catch(InterruptedException e) {
+	    if(!cancel(requester, waiter)) {
+		release();
+	    }
+	    throw e;
+	}
+	return true;
+    }
+
+    /**
+     * Ask for a slot without waiting for it. onGranted runs once the slot is
+     * held, either right away on this thread or later on the thread that
+     * releases a slot, so it should only hand the upload off. The slot must
+     * be released once the upload is done.
+     * @return false if the queue is full, in which case onGranted never runs
+     */
+    public boolean request(String requester, Runnable onGranted) {
+	return admit(requester, new Waiter(onGranted));
+    }
+
+    /**
+     * Give up a slot, handing it to the next waiting upload if there is one.
+     */
+    public void release() {
+	Waiter next;
+	synchronized(this) {
+	    next = pollNext();
+	    if(next == null) {
+		active--;
+		return;
+	    }
+	    next.granted = true;
+	}
+	next.onGranted.run();
+    }
+
+    /**
+     * Number of uploads running or waiting
+     */
+    public synchronized int getLoad() {
+	return active + queued;
+    }
+
+    public synchronized int getActive() {
+	return active;
+    }
+
+    public synchronized int getQueued() {
+	return queued;
+    }
+
+    /**
+     * Take a free slot or queue the waiter.
+     * @return false if the queue is full
+     */
+    private boolean admit(String requester, Waiter waiter) {
+	synchronized(this) {
+	    if(active >= slots || queued > 0) {
+		if(queued >= maxQueued) {
+		    return false;
+		}
+		ArrayDeque<Waiter> waiters = waiting.get(requester);
+		if(waiters == null) {
+		    waiters = new ArrayDeque<Waiter>();
+		    waiting.put(requester, waiters);
+		}
+		waiters.add(waiter);
+		queued++;
+		return true;
+	    }
+	    active++;
+	    waiter.granted = true;
+	}
+	waiter.onGranted.run();
+	return true;
+    }
+
+    /**
+     * Remove a waiter that has not been granted a slot.
+     * @return false if the waiter already holds a slot
+     */
+    private synchronized boolean cancel(String requester, Waiter waiter) {
+	if(waiter.granted) {
+	    return false;
+	}
+	ArrayDeque<Waiter> waiters = waiting.get(requester);
+	if(waiters != null && waiters.remove(waiter)) {
+	    queued--;
+	    if(waiters.isEmpty()) {
+		waiting.remove(requester);
+	    }
+	}
+	return true;
+    }
+
+    /**
+     * Take the first waiter of the peer whose turn it is and move that peer
+     * to the back of the line.
+     */
+    private Waiter pollNext() {
+	Iterator<Map.Entry<String, ArrayDeque<Waiter>>> peers =
+	    waiting.entrySet().iterator();
+	if(!peers.hasNext()) {
+	    return null;
+	}
+	Map.Entry<String, ArrayDeque<Waiter>> first = peers.next();
+	peers.remove();
+	ArrayDeque<Waiter> waiters = first.getValue();
+	Waiter next = waiters.poll();
+	if(!waiters.isEmpty()) {
+	    waiting.put(first.getKey(), waiters);
+	}
+	queued--;
+	return next;
+    }
+
+    /**
+     * Upload waiting for a slot
+     */
+    private static class Waiter {
+	final Runnable onGranted;
+	boolean granted;
+
+	Waiter(Runnable onGranted) {
+	    this.onGranted = onGranted;
+	}
+    }
+}
@@ -3,8 +3,14 @@ package com.xfs.client;
 import java.util.ArrayList;
 import java.io.File;
 import java.io.IOException;
-import java.io.BufferedOutputStream;
-import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
 public class XFSDirectoryManager implements DirectoryManager {
     /**
@@ -29,7 +35,10 @@ public class XFSDirectoryManager implements DirectoryManager {
 		shareList.addAll(getFileNames(fileEntry));
 	    } else {
 		String name = fileEntry.getName();
-		shareList.add(name);
+		if(!name.endsWith(DownloadState.PART_SUFFIX) &&
+		   !name.endsWith(DownloadState.STATE_SUFFIX)) {
+		    shareList.add(name);
+		}
 	    }
 	}
 	return shareList;
@@ -37,22 +46,117 @@ public class XFSDirectoryManager implements DirectoryManager {
 
     /**
      * Print the byte array to a specified filepath. The name of the file
-     * must be included as part of the filepath.
+     * must be included as part of the filepath. The bytes are written to a
+     * partial file first, which is only moved to the filepath once it is
+     * complete and on disk, so a crash never leaves a torn file to be
+     * shared.
      */
     @Override
     public void printToFile(String filepath, byte[] fileBytes)
 	throws IOException {
+	String tempPath = filepath + DownloadState.PART_SUFFIX;
 	try {
-	    BufferedOutputStream toFile =
-		new BufferedOutputStream(new FileOutputStream(filepath));
-	    if(fileBytes.length >= 0) {
-		toFile.write(fileBytes, 0, fileBytes.length-1);
+	    FileChannel toFile = FileChannel.open(Paths.get(tempPath),
+						  StandardOpenOption.CREATE,
+						  StandardOpenOption.WRITE,
+						  StandardOpenOption.TRUNCATE_EXISTING);
+	    try {
+		ByteBuffer buffer = ByteBuffer.wrap(fileBytes);
+		while(buffer.hasRemaining()) {
+		    toFile.write(buffer);
+		}
+	    } finally {
+		toFile.close();
 	    }
-	    toFile.flush();
-	    toFile.close();
+	    commitFile(tempPath, filepath);
 	} catch(IOException e) {
-	    new File(filepath).delete();
+	    new File(tempPath).delete();
 	    throw e;
 	}
     }
+
+    /**
+     * Open a file for writing at arbitrary offsets. The name of the file must
+     * be included as part of the filepath. Existing contents are kept so an
+     * interrupted download can be resumed.
+     */
+    @Override
+    public FileChannel openFileChannel(String filepath) throws IOException {
+	return FileChannel.open(Paths.get(filepath), StandardOpenOption.CREATE,
+				StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Open a file for writing at arbitrary offsets and size it to length
+     * bytes. A shorter file is extended and a longer one is truncated, so
+     * writes at any offset below length land inside the file. Existing
+     * contents below length are kept.
+     */
+    @Override
+    public FileChannel openFileChannel(String filepath, long length)
+	throws IOException {
+	FileChannel channel = openFileChannel(filepath);
+	try {
+	    if(channel.size() > length) {
+		channel.truncate(length);
+	    } else if(channel.size() < length) {
+		channel.write(ByteBuffer.allocate(1), length - 1);
+	    }
+	} catch(IOException e) {
+	    channel.close();
+	    throw e;
+	}
+	return channel;
+    }
+
+    /**
+     * Flush a completed file to disk, then rename it over the final path and
+     * flush the directory so the rename itself survives a crash.
+     */
+    @Override
+    public void commitFile(String tempPath, String filepath)
+	throws IOException {
+	FileChannel channel = FileChannel.open(Paths.get(tempPath),
+					       StandardOpenOption.WRITE);
+	try {
+	    channel.force(true);
+	} finally {
+	    channel.close();
+	}
+	replaceFile(Paths.get(tempPath), Paths.get(filepath));
+    }
+
+    /**
+     * Rename a file over another in one step. Falls back to a plain replace
+     * on file systems that cannot move atomically.
+     */
+    static void replaceFile(Path source, Path target) throws IOException {
+	try {
+	    Files.move(source, target, StandardCopyOption.ATOMIC_MOVE,
+		       StandardCopyOption.REPLACE_EXISTING);
+	} catch(AtomicMoveNotSupportedException e) {
+	    Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+	}
+	syncDirectory(target.toAbsolutePath().getParent());
+    }
+
+    /**
+     * Flush a directory so that renames within it are on disk. Not every
+     * platform can open a directory, in which case this does nothing.
+     */
+    private static void syncDirectory(Path dir) {
+	if(dir == null) {
+	    return;
+	}
+	try {
+	    FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ);
+	    try {
+		channel.force(true);
+	    } finally {
+		channel.close();
+	    }
+	} catch(IOException e) {
+	}
+    }
 }
@@ -1,19 +1,66 @@
 package com.xfs.client;
 
+import com.xfs.common.BandwidthLimiter;
+import com.xfs.common.ConnectionExecutor;
 import com.xfs.common.Peer;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.FileHandler;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
 import java.security.*;
 import com.xfs.common.TrackingServerCommunicator;
+import com.xfs.common.ReplySocket;
 import com.xfs.common.SocketWrapper;
 import com.xfs.common.XFSSocket;
 import com.xfs.common.PeerAction;
+import com.xfs.common.MerkleTree;
 
 public class XFSPeer {
+    /**
+     * Default time in milliseconds between heartbeats to the tracking server.
+     * Must be well below the tracking server's lease time.
+     */
+    public static final long DEFAULT_HEARTBEAT_INTERVAL = 10 * 1000;
+
+    /**
+     * Time in milliseconds to wait before asking busy peers again. Doubled
+     * after each try up to MAX_BUSY_RETRY_DELAY.
+     */
+    private static final long BUSY_RETRY_DELAY = 500;
+    private static final long MAX_BUSY_RETRY_DELAY = 8 * 1000;
+
+    /**
+     * Number of times to ask busy peers again before giving up on a download
+     */
+    private static final int MAX_BUSY_RETRIES = 6;
+
+    /**
+     * Time in milliseconds a load probe waits for a peer to accept its
+     * connection, and then for the peer's answer
+     */
+    private static final int PROBE_CONNECT_TIMEOUT = 1000;
+    private static final int PROBE_READ_TIMEOUT = 1000;
+
+    /**
+     * Time in milliseconds after which load probes still running are
+     * abandoned
+     */
+    private static final long PROBE_DEADLINE = 2000;
+
     /**
      * Unique identifier of local machine
      */
@@ -35,7 +82,8 @@ public class XFSPeer {
     private Host trackingServer;
 
     /**
-     * Network latency to all other peers in the system
+     * Network latency to all other peers in the system, read from a file.
+     * Used for peers the latency monitor has not measured yet.
      */
     private HashMap<String, Integer>latencyList;
 
@@ -64,10 +112,102 @@ public class XFSPeer {
      */
     private String shareDirectory;
 
+    /**
+     * Files the tracking server was last told this peer has
+     */
+    private final Set<String> reportedFiles = new HashSet<String>();
+
+    /**
+     * Version of reportedFiles on the tracking server
+     */
+    private long listVersion;
+
     /**
      * Object for handling interaction with filesytem.
      */
     private DirectoryManager directoryManager;
+
+    /**
+     * Downloads files piece by piece from one or more peers at once
+     */
+    private SwarmDownloader swarmDownloader;
+
+    /**
+     * Content-defined chunks of the shared files, used to answer manifest
+     * requests and to find chunks of a download that are already held
+     */
+    private ChunkIndex chunkIndex;
+
+    /**
+     * Fills downloads from local chunks, or null if deduplication is off
+     */
+    private ChunkDeduplicator chunkDeduplicator;
+
+    /**
+     * Connections to other peers kept open between requests
+     */
+    private ConnectionPool connections;
+
+    /**
+     * Decides when uploads to other peers may start
+     */
+    private UploadScheduler uploadScheduler;
+
+    /**
+     * Throttles transfers to and from other peers, or null if they are not
+     * throttled
+     */
+    private BandwidthLimiter bandwidthLimiter;
+
+    /**
+     * Recent loads, failures and throughput of other peers, shared by every
+     * download
+     */
+    private final PeerStateCache peerStates = new PeerStateCache();
+
+    /**
+     * Measures the round trip time to other peers
+     */
+    private LatencyMonitor latencyMonitor;
+
+    /**
+     * Runs load probes, created on first use
+     */
+    private ExecutorService probeExecutor;
+
+    /**
+     * Runs the handler of each connection from another peer
+     */
+    private ConnectionExecutor connectionExecutor;
+
+    /**
+     * Listener of the thread per connection peer handler, or null if it has
+     * not been started
+     */
+    private volatile ServerSocketChannel peerListener;
+
+    /**
+     * Non-blocking peer handler, or null if it has not been started
+     */
+    private volatile NioPeerServer nioPeerServer;
+
+    /**
+     * Connections from other peers being handled
+     */
+    private final Set<PeerQuery> peerQueries =
+	Collections.newSetFromMap(new ConcurrentHashMap<PeerQuery, Boolean>());
+
+    /**
+     * Set once the peer starts shutting down
+     */
+    private volatile boolean stopping;
+
+    /**
+     * Folder given at registration, or null if not registered
+     */
+    private volatile String registeredPath;
+
+    private volatile Thread heartbeat;
     
     public XFSPeer(int machID, PeerSelector peerSelector, Downloader downloader,
 		   TrackingServerCommunicator tracker, DirectoryManager dm, String shareDirectory) {
@@ -79,12 +219,89 @@ public class XFSPeer {
 	this.log = setUpLogFile();
 	this.directoryManager = dm;
 	this.shareDirectory = shareDirectory + "/";
+	this.connections = new ConnectionPool(downloader);
+	this.swarmDownloader = new SwarmDownloader(downloader, connections,
+						   1 << 20, 1);
+	this.swarmDownloader.setPeerStateCache(peerStates);
+	this.swarmDownloader.setPeerSelector(peerSelector);
+	this.peerSelector.setLoadProbe(new LoadProbe() {
+		@Override public int getLoad(Peer peer) {
+		    return findLoad(peer);
+		}
+	    });
+	this.latencyMonitor = new LatencyMonitor(downloader, connections);
+	this.chunkIndex = new ChunkIndex();
+	this.connectionExecutor = new ConnectionExecutor(
+	    ConnectionExecutor.Mode.PLATFORM, 0, "xfs-peer");
+	this.uploadScheduler = new UploadScheduler(
+	    UploadScheduler.DEFAULT_SLOTS, UploadScheduler.DEFAULT_QUEUE);
     }
 
     public void setTrackingServer(Host host) {
 	this.trackingServer = new Host(host);
     }
 
+    public ConnectionPool getConnectionPool() {
+	return this.connections;
+    }
+
+    public void setSwarmDownloader(SwarmDownloader swarmDownloader) {
+	this.swarmDownloader = swarmDownloader;
+	swarmDownloader.setPeerStateCache(peerStates);
+	swarmDownloader.setPeerSelector(peerSelector);
+    }
+
+    public PeerStateCache getPeerStateCache() {
+	return this.peerStates;
+    }
+
+    public void setLatencyMonitor(LatencyMonitor latencyMonitor) {
+	this.latencyMonitor = latencyMonitor;
+    }
+
+    public LatencyMonitor getLatencyMonitor() {
+	return this.latencyMonitor;
+    }
+
+    /**
+     * Turn reuse of chunks from local files during downloads on or off.
+     */
+    public void setDeduplicate(boolean deduplicate) {
+	this.chunkDeduplicator = deduplicate ?
+	    new ChunkDeduplicator(downloader, connections, chunkIndex,
+				  new File(shareDirectory)) : null;
+    }
+
+    /**
+     * Set what the handlers of connections from other peers run on. Must be
+     * called before the peer handler is started.
+     */
+    public void setConnectionExecutor(ConnectionExecutor connectionExecutor) {
+	this.connectionExecutor = connectionExecutor;
+    }
+
+    public void setUploadScheduler(UploadScheduler uploadScheduler) {
+	this.uploadScheduler = uploadScheduler;
+    }
+
+    UploadScheduler getUploadScheduler() {
+	return this.uploadScheduler;
+    }
+
+    /**
+     * Throttle transfers with a bandwidth limiter. Downloads are foreground
+     * traffic and uploads to other peers are background traffic. Its rates
+     * can be changed while the peer runs.
+     */
+    public void setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+	this.bandwidthLimiter = bandwidthLimiter;
+	connections.setBandwidthLimiter(bandwidthLimiter);
+    }
+
+    public BandwidthLimiter getBandwidthLimiter() {
+	return this.bandwidthLimiter;
+    }
+
     public void setLatencyList(Map<String, Integer> latencyList) {
 	this.latencyList = new HashMap<String, Integer>(latencyList);
     }
@@ -93,6 +310,61 @@ public class XFSPeer {
 	new HandlePeers(peerPort).start();
     }
 
+    /**
+     * Stop taking connections from other peers and give the requests being
+     * served time to finish. Connections waiting for a request are closed
+     * at once, and so are idle pooled connections. Connections still busy
+     * when the grace period ends are closed too. The non-blocking peer
+     * handler is closed at once, along with its connections.
+     * @return true if every request finished in time
+     */
+    public boolean shutdown(long graceMillis) throws InterruptedException {
+	stopping = true;
+	stopHeartbeat();
+	latencyMonitor.stop();
+	ServerSocketChannel listener = peerListener;
+	if(listener != null) {
+	    try {
+		listener.close();
+	    } catch(IOException e) {
+	    }
+	}
+	NioPeerServer nioServer = nioPeerServer;
+	if(nioServer != null) {
+	    try {
+		nioServer.close();
+	    } catch(IOException e) {
+	    }
+	}
+	connections.closeAll();
+	for(PeerQuery query : peerQueries) {
+	    if(!query.serving) {
+		query.close();
+	    }
+	}
+	boolean finished = connectionExecutor.shutdown(graceMillis);
+	for(PeerQuery query : peerQueries) {
+	    query.close();
+	}
+	return finished;
+    }
+
+    /**
+     * Serve other peers from a few event loop threads instead of a thread
+     * per connection.
+     * @param ioThreads Number of event loop threads
+     */
+    public void startNioPeerHandler(int peerPort, int ioThreads) {
+	try {
+	    NioPeerServer server = new NioPeerServer(this, downloader, ioThreads);
+	    server.start(peerPort);
+	    nioPeerServer = server;
+	} catch(IOException e) {
+	    System.out.println("Error: cannot open socket");
+	    System.exit(1);
+	}
+    }
+
     /**
      * Create log file in share/machID/
      */
@@ -114,7 +386,8 @@ public class XFSPeer {
     /**
      * Reister with tracking server. Send the tracking server the peers unique
      * machine id, the port on which it will listen for other peers, and the
-     * list of files that it can supply.
+     * list of files that it can supply. If the tracking server cannot be
+     * reached, the next heartbeat registers again.
      * @param filepath Path to the folder the peer wants to share.
      */
     public void register(String filepath, int machID, int peerPort) {
@@ -122,12 +395,129 @@ public class XFSPeer {
 	ArrayList<String> shareList = this.directoryManager.getFileNames(filepath);
 	shareArray = new String[shareList.size()];
 	shareList.toArray(shareArray);
+	synchronized(reportedFiles) {
+	    this.peerPort = peerPort;
+	    this.registeredPath = filepath;
+	    try {
+		SocketWrapper sock = new XFSSocket(trackingServer.getIP(),
+						   trackingServer.getPort());
+		tracker.register(sock, shareArray, machID, peerPort);
+		reportedFiles.clear();
+		reportedFiles.addAll(shareList);
+		listVersion = 0;
+	    } catch(IOException e) {
+		log.info("Failed to register.");
+	    }
+	}
+    }
+
+    /**
+     * Renew this peer's lease with the tracking server at a fixed interval
+     * on a daemon thread, so the tracking server keeps offering it to other
+     * peers.
+     * @param interval Milliseconds between heartbeats
+     */
+    public synchronized void startHeartbeat(final long interval) {
+	if(heartbeat != null) {
+	    return;
+	}
+	heartbeat = new Thread(new Runnable() {
+		@Override public void run() {
+		    while(heartbeat == Thread.currentThread()) {
+			try {
+			    Thread.sleep(interval);
+			} catch(InterruptedException e) {
+			    return;
+			}
+			sendHeartbeat();
+		    }
+		}
+	    }, "xfs-heartbeat");
+	heartbeat.setDaemon(true);
+	heartbeat.start();
+    }
+
+    public synchronized void stopHeartbeat() {
+	Thread thread = heartbeat;
+	heartbeat = null;
+	if(thread != null) {
+	    thread.interrupt();
+	}
+    }
+
+    /**
+     * Send one heartbeat. If the tracking server no longer knows this peer,
+     * because its lease ended or the tracking server restarted, register
+     * again with the full file list.
+     */
+    void sendHeartbeat() {
+	String path = registeredPath;
+	if(path == null || trackingServer == null) {
+	    return;
+	}
 	try {
 	    SocketWrapper sock = new XFSSocket(trackingServer.getIP(),
 					       trackingServer.getPort());
-	    tracker.register(sock, shareArray, machID, peerPort);
+	    if(!tracker.heartbeat(sock, machID)) {
+		log.info("Tracking server lost this peer. Registering again.");
+		register(path, machID, peerPort);
+	    }
 	} catch(IOException e) {
-	    log.info("Failed to register.");
+	    log.info("Failed to send heartbeat to tracking server.");
+	}
+    }
+
+    /**
+     * Tell the tracking server which files were added to or removed from a
+     * folder since it was last told. Only the change is sent. If the
+     * tracking server holds another version of the list, because it
+     * restarted or missed an update, this peer registers again with the
+     * full list.
+     */
+    private void updateFileList(String filepath) {
+	Set<String> current =
+	    new HashSet<String>(this.directoryManager.getFileNames(filepath));
+	synchronized(reportedFiles) {
+	    ArrayList<String> added = new ArrayList<String>();
+	    for(String file : current) {
+		if(!reportedFiles.contains(file)) {
+		    added.add(file);
+		}
+	    }
+	    ArrayList<String> removed = new ArrayList<String>();
+	    for(String file : reportedFiles) {
+		if(!current.contains(file)) {
+		    removed.add(file);
+		}
+	    }
+	    if(added.isEmpty() && removed.isEmpty()) {
+		return;
+	    }
+	    try {
+		SocketWrapper sock = new XFSSocket(trackingServer.getIP(),
+						   trackingServer.getPort());
+		if(tracker.updateDelta(sock,
+				       added.toArray(new String[added.size()]),
+				       removed.toArray(new String[removed.size()]),
+				       listVersion, machID)) {
+		    listVersion++;
+		} else {
+		    log.info("Tracking server asked for the full file list.");
+		    String[] fileList = current.toArray(new String[current.size()]);
+		    sock = new XFSSocket(trackingServer.getIP(),
+					 trackingServer.getPort());
+		    if(peerPort > 0) {
+			tracker.register(sock, fileList, machID, peerPort);
+		    } else {
+			tracker.updateList(sock, fileList, machID);
+		    }
+		    listVersion = 0;
+		}
+		reportedFiles.clear();
+		reportedFiles.addAll(current);
+	    } catch(IOException e) {
+		log.info("Failed to send tracking server updated file list.");
+	    }
 	}
     }
 
@@ -151,82 +541,267 @@ public class XFSPeer {
 	    return -1;
 	}
 
+	if(!peerSelector.probesLoads()) {
+	    addLoads(peers);
+	}
 	addLatencies(peers);
-	addLoads(peers);
 
 	final long startTime = System.currentTimeMillis();
 		    
-	byte[] fileBytes = null;
+	filepath += "/";
 	int success = -1;
-	while(true) {
-	    Peer bestPeer = peerSelector.choosePeer(peers);
-	    if(bestPeer == null) {
-		log.info("No peers with file " + filename +
-			 " are currently available.");
-		return -1;
-	    }
-	    else if(bestPeer.getID().equals(""+this.machID)) {
+	for(Peer peer : peers) {
+	    if(peer.getID().equals(""+this.machID)) {
 		log.info("Download failed: File is local.");
-		break;
+		return -1;
 	    }
-	    log.info("Downloading " + filename + " from peer " + bestPeer.getID());
-	    addDownload();
-	    while(true) {
+	}
+
+	Peer[] holders = rankPeers(peers);
+	// Only the peers the swarm starts with are pinged from now on, not
+	// every holder, so pings stay bounded however many peers have the file
+	for(int i = 0; i < Math.min(holders.length,
+				    swarmDownloader.getMaxPeers()); i++) {
+	    latencyMonitor.track(holders[i]);
+	}
+	int pieceSize = swarmDownloader.getPieceSize();
+	FileInfo info = getFileInfo(holders, filename, pieceSize);
+	if(info == null) {
+	    log.info("No peers with file " + filename +
+		     " are currently available.");
+	    return -1;
+	}
+
+	DownloadState state = DownloadState.open(filepath + filename, info,
+						 pieceSize);
+	byte[] pieceHashes = getPieceHashes(rankPeers(holders), filename, info,
+					    pieceSize);
+	if(pieceHashes != null) {
+	    state.setPieceHashes(pieceHashes);
+	} else {
+	    log.info("No piece checksums for " + filename +
+		     ". Pieces are checked against range checksums.");
+	}
+	if(state.getVerifiedOffset() > 0) {
+	    log.info("Resuming " + filename + " at offset " +
+		     state.getVerifiedOffset());
+	}
+	FileChannel toFile;
+	try {
+	    toFile = directoryManager.openFileChannel(state.getPartPath(),
+						      info.getLength());
+	} catch(IOException e) {
+	    log.info("Failed to print to " + filepath);
+	    return -1;
+	}
+
+	addDownload();
+	try {
+	    if(chunkDeduplicator != null) {
 		try {
-		    SocketWrapper sock = new
-			XFSSocket(bestPeer.getAddress(), bestPeer.getPort());
-		    fileBytes = downloader.download(sock, filename);
-		    sock.close();
-		    success = 1;
-		    break;
-		} catch(ChecksumMismatchException e) {
-		    log.info("Download failed: Checksum mismatch. Retrying...");
+		    long reused = chunkDeduplicator.fill(rankPeers(holders),
+							 filename, state, toFile);
+		    if(reused > 0) {
+			log.info("Reused " + reused + " bytes of " + filename +
+				 " from local files");
+		    }
 		} catch(IOException e) {
-		    log.info("Download failed: Peer " + bestPeer.getID() +
-			     " is down. Selecting new peer...");
-		    bestPeer.setLoad(-1);
-		    break;
+		    log.info("Failed to reuse local chunks: " + e.getMessage());
 		}
 	    }
-
-	    if(success == 1) {
-		filepath += "/";
-		try {
-		    directoryManager.printToFile(filepath + filename, fileBytes);
+	    long busyDelay = BUSY_RETRY_DELAY;
+	    int busyRetries = 0;
+	    while(!state.isComplete()) {
+		Peer[] livePeers = rankPeers(holders);
+		if(livePeers.length == 0) {
+		    log.info("No peers with file " + filename +
+			     " are currently available.");
 		    break;
+		}
+		log.info("Downloading " + filename + " from peer " +
+			 livePeers[0].getID());
+		try {
+		    swarmDownloader.download(livePeers, filename, state, toFile);
+		} catch(PeerBusyException e) {
+		    if(++busyRetries > MAX_BUSY_RETRIES) {
+			log.info("Download failed: " + e.getMessage());
+			break;
+		    }
+		    log.info(e.getMessage() + ". Retrying in " + busyDelay +
+			     " ms...");
+		    try {
+			Thread.sleep(busyDelay);
+		    } catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			break;
+		    }
+		    busyDelay = Math.min(2 * busyDelay, MAX_BUSY_RETRY_DELAY);
 		} catch(IOException e) {
-		    log.info("Failed to print to " + filepath);
-		    return -1;
+		    log.info("Download failed: " + e.getMessage() +
+			     ". Selecting new peer...");
+		}
+	    }
+
+	    if(state.isComplete()) {
+		boolean checksumMatch = state.verifyFileChecksum(toFile);
+		toFile.close();
+		if(checksumMatch) {
+		    directoryManager.commitFile(state.getPartPath(),
+						filepath + filename);
+		    state.finish();
+		    success = 1;
+		} else {
+		    log.info("Download failed: Checksum mismatch.");
+		    state.discard();
 		}
 	    }
+	} catch(IOException e) {
+	    log.info("Failed to print to " + filepath);
+	} finally {
+	    try {
+		toFile.close();
+	    } catch(IOException e) {
+	    }
 	}
 
 	final long endTime = System.currentTimeMillis();
 	log.info("Total time: " + (endTime - startTime));
 
-	ArrayList<String> shareList = this.directoryManager.getFileNames(filepath);
-	String[] fileList = new String[shareList.size()];
-	shareList.toArray(fileList);
+	updateFileList(filepath);
+	return success;
+    }
 
-	try {
-	    SocketWrapper sock = new XFSSocket(trackingServer.getIP(),
-					       trackingServer.getPort());
-	    tracker.updateList(sock, fileList, machID);
-	} catch(IOException e) {
-	    log.info("Failed to send tracking server updated file list.");
+
+    /**
+     * Ask peers in turn for the length and checksum of a file. Peers that are
+     * down or do not have the file are marked with a load of -1.
+     * @return Information from the first peer that has the file or null if
+     * none of them do
+     */
+    private FileInfo getFileInfo(Peer[] peers, String filename,
+				 int pieceSize) {
+	for(Peer peer : peers) {
+	    SocketWrapper sock = null;
+	    try {
+		sock = connections.acquire(peer);
+		FileInfo info = downloader.getFileInfo(sock, filename,
+						       pieceSize);
+		connections.release(peer, sock);
+		peerStates.recordSuccess(peer.getID());
+		if(info != null) {
+		    return info;
+		}
+	    } catch(IOException e) {
+		if(sock != null) {
+		    connections.invalidate(sock);
+		}
+		peerStates.recordFailure(peer.getID());
+	    }
+	    peer.setLoad(-1);
 	}
-	return success;
+	return null;
+    }
+
+    /**
+     * Ask peers in turn for the checksums of the pieces of a file and keep
+     * the first set that matches the root of the file's hash tree. A peer
+     * that sends a set that does not match is marked with a load of -1,
+     * since it holds a different version of the file.
+     * @return Checksums packed in piece order, or null if no peer sent a set
+     * that matches the root
+     */
+    private byte[] getPieceHashes(Peer[] peers, String filename,
+				  FileInfo info, int pieceSize) {
+	if(info.getRoot() == null) {
+	    return null;
+	}
+	for(Peer peer : peers) {
+	    SocketWrapper sock = null;
+	    byte[] leaves;
+	    try {
+		sock = connections.acquire(peer);
+		leaves = downloader.getPieceHashes(sock, filename, pieceSize);
+		connections.release(peer, sock);
+	    } catch(IOException e) {
+		if(sock != null) {
+		    connections.invalidate(sock);
+		}
+		continue;
+	    }
+	    if(leaves == null) {
+		continue;
+	    }
+	    if(leaves.length == info.getPieceCount(pieceSize) *
+	       MerkleTree.HASH_LENGTH &&
+	       MerkleTree.verify(leaves, info.getRoot())) {
+		return leaves;
+	    }
+	    log.info("Peer " + peer.getID() +
+		     " sent piece checksums that do not match " + filename);
+	    peer.setLoad(-1);
+	}
+	return null;
     }
 
+    /**
+     * Order the peers that are up, other than this one, by asking the peer
+     * selector for the best remaining peer until none are left. A selector
+     * that probes loads itself is asked only for as many peers as the swarm
+     * downloads from.
+     */
+    private Peer[] rankPeers(Peer[] peers) {
+	ArrayList<Peer> candidates = new ArrayList<Peer>();
+	for(Peer peer : peers) {
+	    if(peer != null && peer.getLoad() != -1 &&
+	       !peer.getID().equals(""+this.machID)) {
+		candidates.add(peer);
+	    }
+	}
+	// A selector that probes loads itself would probe nearly every peer
+	// to rank them all, so it ranks only as many as the swarm downloads
+	// from. The rest follow in random order, unprobed, as spares.
+	int count = candidates.size();
+	if(peerSelector.probesLoads()) {
+	    count = Math.min(count, swarmDownloader.getMaxPeers());
+	}
+	ArrayList<Peer> ranked = new ArrayList<Peer>();
+	for(int i = 0; i < count; i++) {
+	    Peer best = peerSelector.choosePeer(
+		candidates.toArray(new Peer[candidates.size()]));
+	    if(best == null) {
+		break;
+	    }
+	    ranked.add(best);
+	    candidates.remove(best);
+	}
+	ArrayList<Peer> spares = new ArrayList<Peer>();
+	for(Peer peer : candidates) {
+	    if(peer.getLoad() != -1) {
+		spares.add(peer);
+	    }
+	}
+	if(peerSelector.probesLoads()) {
+	    Collections.shuffle(spares);
+	}
+	ranked.addAll(spares);
+	return ranked.toArray(new Peer[ranked.size()]);
+    }
 
     /**
      * Utility for find: Determine the current latency for each peer in a list
-     * of peers.
+     * of peers. Latencies measured by the latency monitor come first, then
+     * the latency table. The throughput each peer delivered recently is copied from the peer
+     * state cache as well.
      */
     private void addLatencies(Peer[] peers) {
 	for(int i = 0; i < peers.length; i++) {
-	    Integer latency = this.latencyList.get(peers[i].getID());
-	    if(latency == null) {
+	    peers[i].setThroughput(peerStates.getThroughput(peers[i].getID()));
+	    int measured = latencyMonitor.getLatency(peers[i].getID());
+	    Integer latency = this.latencyList == null ? null :
+		this.latencyList.get(peers[i].getID());
+	    if(measured >= 0) {
+		peers[i].setLatency(measured);
+	    } else if(latency == null) {
 		peers[i].setLatency(-1);
 	    } else {
 		peers[i].setLatency(latency.intValue());
@@ -235,24 +810,141 @@ public class XFSPeer {
     }
 
     /**
-     * Utility for find: Determine the current load for each peer in a list of
-     * peers. 
+     * Find the load of every peer. Loads still fresh in the peer state cache
+     * are used as they are, and peers whose circuit breaker is open are
+     * marked with a load of -1 without being asked. The other peers are
+     * asked at once. A probe gives up on a peer that does not connect or
+     * answer within its timeouts, and probes still running at the deadline
+     * are abandoned. Peers that are down are marked with a load of -1 and
+     * peers that did not answer in time with LOAD_UNKNOWN.
      */
     private void addLoads(Peer[] peers) {
+	List<Callable<Integer>> probes = new ArrayList<Callable<Integer>>();
+	List<Peer> probed = new ArrayList<Peer>();
 	for(int i = 0; i < peers.length; i++) {
-	    if(!peers[i].getID().equals(this.machID)) {
-		int load;
-		try {
-		    SocketWrapper sock = new XFSSocket(peers[i].getAddress(),
-						       peers[i].getPort());
-		    load = downloader.getLoad(sock);
-		    sock.close();
-		} catch(IOException e) {
-		    load = -1;
+	    if(!peers[i].getID().equals(""+this.machID)) {
+		String id = peers[i].getID();
+		Integer cached = peerStates.getLoad(id);
+		if(cached != null) {
+		    peers[i].setLoad(cached);
+		} else if(!peerStates.allowRequest(id)) {
+		    peers[i].setLoad(Peer.LOAD_DOWN);
+		} else {
+		    probes.add(new ProbeTask(peers[i]));
+		    probed.add(peers[i]);
 		}
-		peers[i].setLoad(load);
 	    }
 	}
+	if(probes.isEmpty()) {
+	    return;
+	}
+	List<Future<Integer>> loads;
+	try {
+	    loads = getProbeExecutor().invokeAll(probes, PROBE_DEADLINE,
+						TimeUnit.MILLISECONDS);
+	} catch(InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    return;
+	}
+	for(int i = 0; i < loads.size(); i++) {
+	    int load;
+	    try {
+		load = loads.get(i).get();
+	    } catch(CancellationException e) {
+		load = Peer.LOAD_UNKNOWN;
+	    } catch(ExecutionException | InterruptedException e) {
+		load = Peer.LOAD_DOWN;
+	    }
+	    probed.get(i).setLoad(load);
+	    peerStates.recordLoad(probed.get(i).getID(), load);
+	}
+    }
+
+    private synchronized ExecutorService getProbeExecutor() {
+	if(probeExecutor == null) {
+	    probeExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+		    private int count;
+
+		    @Override public synchronized Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "xfs-probe-" + count++);
+			thread.setDaemon(true);
+			return thread;
+		    }
+		});
+	}
+	return probeExecutor;
+    }
+
+    /**
+     * Find the load of one peer when a peer selector asks for it. A load
+     * still fresh in the peer state cache is used as it is, and a peer whose
+     * circuit breaker is open gets a load of -1 without being asked. The
+     * peer is pinged by the latency monitor from now on.
+     */
+    private int findLoad(Peer peer) {
+	String id = peer.getID();
+	latencyMonitor.track(peer);
+	Integer cached = peerStates.getLoad(id);
+	if(cached != null) {
+	    return cached;
+	}
+	if(!peerStates.allowRequest(id)) {
+	    return Peer.LOAD_DOWN;
+	}
+	int load = probeLoad(peer);
+	peerStates.recordLoad(id, load);
+	return load;
+    }
+
+    /**
+     * Ask one peer for its load. A peer that cannot be reached gets a load
+     * of -1, and one that does not connect or answer within the timeouts
+     * LOAD_UNKNOWN.
+     */
+    private int probeLoad(Peer peer) {
+	SocketWrapper sock;
+	try {
+	    sock = connections.acquire(peer, PROBE_CONNECT_TIMEOUT);
+	} catch(SocketTimeoutException e) {
+	    return Peer.LOAD_UNKNOWN;
+	} catch(IOException e) {
+	    return Peer.LOAD_DOWN;
+	}
+	try {
+	    sock.setTimeout(PROBE_READ_TIMEOUT);
+	    long startTime = System.nanoTime();
+	    int load = downloader.getLoad(sock);
+	    long elapsed = System.nanoTime() - startTime;
+	    if(load == -1) {
+		// getLoad does not say why it failed. A failure that took the
+		// whole read timeout was the peer not answering.
+		connections.invalidate(sock);
+		boolean timedOut = elapsed >= PROBE_READ_TIMEOUT * 1000000L;
+		return timedOut ? Peer.LOAD_UNKNOWN : Peer.LOAD_DOWN;
+	    }
+	    latencyMonitor.recordSample(peer.getID(), elapsed);
+	    sock.setTimeout(0);
+	    connections.release(peer, sock);
+	    return load;
+	} catch(IOException e) {
+	    connections.invalidate(sock);
+	    return Peer.LOAD_DOWN;
+	}
+    }
+
+    /**
+     * Load probe of one peer run by addLoads
+     */
+    private class ProbeTask implements Callable<Integer> {
+	private final Peer peer;
+
+	ProbeTask(Peer peer) {
+	    this.peer = peer;
+	}
+
+	@Override public Integer call() {
+	    return probeLoad(peer);
+	}
     }
 
     /**
@@ -273,6 +965,178 @@ public class XFSPeer {
     }
 
 
+    /**
+     * Answer one request from another peer. An upload first waits for an
+     * upload slot, and is refused with a busy reply if the upload queue is
+     * full.
+     * @return true if the connection can take another request
+     */
+    boolean serve(SocketWrapper sock, PeerAction action) {
+	if(!isUpload(action)) {
+	    return answer(sock, action);
+	}
+	try {
+	    if(!uploadScheduler.acquire(getRequester(sock))) {
+		return refuse(sock, action);
+	    }
+	} catch(InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    return false;
+	}
+	try {
+	    return answer(sock, action);
+	} finally {
+	    uploadScheduler.release();
+	}
+    }
+
+    /**
+     * Whether a request sends file data, and so needs an upload slot
+     */
+    static boolean isUpload(PeerAction action) {
+	switch(action.getAction()) {
+	case PeerAction.SEND_DOWNLOAD:
+	case PeerAction.SEND_STREAM:
+	case PeerAction.SEND_RANGE:
+	    return true;
+	default:
+	    return false;
+	}
+    }
+
+    /**
+     * Address of the peer on the other end of a connection, which uploads
+     * are scheduled by
+     */
+    static String getRequester(ReplySocket sock) {
+	InetAddress address = sock.getInetAddress();
+	return address == null ? "" : address.getHostAddress();
+    }
+
+    /**
+     * Refuse an upload because the upload queue is full.
+     * @return true if the connection can take another request
+     */
+    boolean refuse(ReplySocket sock, PeerAction action) {
+	log.info("Upload queue full. Refusing " + action.getFilename());
+	try {
+	    downloader.sendBusy(sock, action);
+	} catch(IOException e) {
+	    return false;
+	}
+	return action.getAction() != PeerAction.SEND_DOWNLOAD;
+    }
+
+    /**
+     * Answer one request from another peer without waiting for an upload
+     * slot. Used by serve and by NioPeerServer, which schedules uploads
+     * itself.
+     * @return true if the connection can take another request
+     */
+    boolean answer(ReplySocket sock, PeerAction action) {
+	switch(action.getAction()) {
+	case PeerAction.SEND_LOAD:
+	    int load = getLoad();
+	    log.info("Sending load: " + load);
+	    try {
+		downloader.sendLoad(sock, load);
+	    } catch(IOException e) {
+		return false;
+	    }
+	    return true;
+	case PeerAction.SEND_PONG:
+	    try {
+		downloader.sendPong(sock);
+	    } catch(IOException e) {
+		return false;
+	    }
+	    return true;
+	case PeerAction.SEND_DOWNLOAD:
+	    // The legacy reply is only delimited by closing the connection.
+	    addDownload();
+	    try {
+		byte[] fileBytes = prepareMessage(shareDirectory+action.getFilename());
+		downloader.sendDownload(sock, fileBytes);
+	    } catch(IOException e) {
+	    }
+	    removeDownload();
+	    log.info(action.getFilename() + " successfully sent");
+	    return false;
+	case PeerAction.SEND_INFO:
+	    try {
+		File file = getSharedFile(action.getFilename());
+		downloader.sendFileInfo(sock, file,
+					(int)action.getLength());
+	    } catch(IOException e) {
+		return false;
+	    }
+	    return true;
+	case PeerAction.SEND_MANIFEST:
+	    try {
+		File file = getSharedFile(action.getFilename());
+		byte[] manifest = file.isFile() ?
+		    chunkIndex.getManifest(file) : null;
+		downloader.sendManifest(sock, manifest);
+	    } catch(IOException e) {
+		return false;
+	    }
+	    return true;
+	case PeerAction.SEND_HASHES:
+	    try {
+		File file = getSharedFile(action.getFilename());
+		downloader.sendPieceHashes(sock, file,
+					   (int)action.getLength());
+	    } catch(IOException e) {
+		return false;
+	    }
+	    return true;
+	case PeerAction.SEND_RANGE:
+	    addDownload();
+	    try {
+		File file = getSharedFile(action.getFilename());
+		downloader.sendRange(sock, file, action.getOffset(),
+				     action.getLength(),
+				     action.getEncodings());
+	    } catch(IOException e) {
+		return false;
+	    } finally {
+		removeDownload();
+	    }
+	    return true;
+	case PeerAction.SEND_STREAM:
+	    addDownload();
+	    try {
+		File file = getSharedFile(action.getFilename());
+		downloader.sendDownload(sock, file,
+					action.getEncodings());
+		log.info(action.getFilename() + " successfully sent");
+	    } catch(IOException e) {
+		log.info("Failed to send " + action.getFilename());
+		return false;
+	    } finally {
+		removeDownload();
+	    }
+	    return true;
+	default:
+	    return false;
+	}
+    }
+
+    /**
+     * Load reported to other peers: downloads and uploads in progress and
+     * uploads waiting for a slot
+     */
+    int getLoad() {
+	return concurrentDownloads + uploadScheduler.getQueued();
+    }
+
+    /**
+     * File in the share directory with the given name
+     */
+    File getSharedFile(String filename) {
+	return new File(shareDirectory + filename);
+    }
+
     /**
      * Increment the load at the client
      */
@@ -291,7 +1155,10 @@ public class XFSPeer {
 
     /**
      * Thread for listening for connections from other peers. When a connection
-     * arrives, hand the connection off to a PeerQuery thread to service it.
+     * arrives, hand the connection off to a PeerQuery run by the connection
+     * executor to service it. Connections are accepted through a
+     * ServerSocketChannel so that files can be sent to them with
+     * FileChannel.transferTo.
      */
     class HandlePeers extends Thread {
 	private int peerPort;
@@ -301,69 +1168,95 @@ public class XFSPeer {
 	}
 	
 	@Override public void run() {
-	    ServerSocket sSock = null;
+	    ServerSocketChannel sSock = null;
 	    try {
-		sSock = new ServerSocket(this.peerPort);
+		sSock = ServerSocketChannel.open();
+		sSock.bind(new InetSocketAddress(this.peerPort));
 	    } catch(IOException e) {
 		System.out.println("Error: cannot open socket");
 		System.exit(1);
 	    }
-	    while(true) {
+	    peerListener = sSock;
+	    while(sSock.isOpen() && !connectionExecutor.isShutdown()) {
+		Socket sock;
 		try {
-		    new PeerQuery(sSock.accept()).start();
+		    sock = sSock.accept().socket();
 		} catch(IOException e) {
+		    continue;
+		}
+		try {
+		    connectionExecutor.execute(new PeerQuery(sock));
+		} catch(RejectedExecutionException | InterruptedException e) {
+		    try {
+			sock.close();
+		    } catch(IOException ex) {
+		    }
+		    break;
 		}
 	    }
 	}
     }
 
     /**
-     * Thread for handling a connection from another peer.
+     * Task for handling a connection from another peer. The connection is
+     * kept open for further requests until the other peer closes it or
+     * leaves it idle for longer than the peer idle timeout.
      */
-    class PeerQuery extends Thread {
+    class PeerQuery implements Runnable {
 	int delay = 0;
 	SocketWrapper sock = null;
 	PeerQuery(Socket sock) {
 	    try {
-		this.sock = new XFSSocket(sock);
+		XFSSocket xfsSock = new XFSSocket(sock);
+		if(bandwidthLimiter != null) {
+		    xfsSock.setThrottle(bandwidthLimiter.newThrottle(
+			BandwidthLimiter.TrafficClass.BACKGROUND));
+		}
+		this.sock = xfsSock;
+		this.sock.setTimeout(ConnectionPool.PEER_IDLE_TIMEOUT);
 	    } catch(IOException e) {
 		log.info("Failed to create xfs socket.");
 	    }
 	}
+	/**
+	 * Whether a request is being answered. A connection waiting for its
+	 * next request is closed at once when the peer shuts down.
+	 */
+	volatile boolean serving;
+
 	@Override public void run() {
-	    PeerAction action;
+	    peerQueries.add(this);
 	    try {
-		action = downloader.processRequest(this.sock);
-	    } catch(IOException e) {
-		log.info("Request cannot be processed: " + e.getMessage());
-		try {
-		    this.sock.close();
-		} catch(IOException e2) {
+		while(!stopping) {
+		    PeerAction action;
+		    try {
+			action = downloader.processRequest(this.sock);
+		    } catch(EOFException | SocketTimeoutException e) {
+			break;
+		    } catch(IOException e) {
+			if(!stopping) {
+			    log.info("Request cannot be processed: " +
+				     e.getMessage());
+			}
+			break;
+		    }
+		    serving = true;
+		    boolean keepOpen = serve(this.sock, action);
+		    serving = false;
+		    if(!keepOpen) {
+			break;
+		    }
 		}
-		return;
+	    } finally {
+		peerQueries.remove(this);
+		close();
 	    }
-	    
-	    switch(action.getAction()) {
-	    case PeerAction.SEND_LOAD:
-		log.info("Sending load: " + concurrentDownloads);
-		try {
-		    downloader.sendLoad(this.sock, concurrentDownloads);
-		    this.sock.close();
-		} catch(IOException e) {
-		}
-		break;
-	    case PeerAction.SEND_DOWNLOAD:
-		addDownload();
-		try {
-		    byte[] fileBytes = prepareMessage(shareDirectory+action.getFilename());
-		    downloader.sendDownload(this.sock, fileBytes);
-		    this.sock.close();
-		} catch(IOException e) {
-		}
-		removeDownload();
-		log.info(action.getFilename() + " successfully sent");
-		break;
-	    default:
+	}
+
+	void close() {
+	    try {
+		this.sock.close();
+	    } catch(IOException e) {
 	    }
 	}
     }
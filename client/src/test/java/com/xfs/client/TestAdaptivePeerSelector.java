@@ -0,0 +1,88 @@
+package com.xfs.client;
+
+import com.xfs.common.Peer;
+import org.junit.Test;
+import org.junit.Before;
+import static org.junit.Assert.*;
+
+public class TestAdaptivePeerSelector {
+    private static final long SECOND = 1000 * 1000 * 1000L;
+
+    Peer fast;
+    Peer slow;
+    AdaptivePeerSelector selector;
+
+    @Before public void setUp() {
+	fast = makePeer("1");
+	slow = makePeer("2");
+	selector = new AdaptivePeerSelector();
+    }
+
+    @Test public void unusedPeerIsTriedFirst() {
+	selector.recordOutcome(fast, 1 << 20, SECOND / 10, true);
+
+	assertEquals(slow, selector.choosePeer(new Peer[] { fast, slow }));
+    }
+
+    @Test public void fasterPeerIsChosen() {
+	for(int i = 0; i < 10; i++) {
+	    selector.recordOutcome(fast, 1 << 20, SECOND / 10, true);
+	    selector.recordOutcome(slow, 1 << 20, SECOND, true);
+	}
+
+	assertEquals(fast, selector.choosePeer(new Peer[] { slow, fast }));
+    }
+
+    @Test public void failingPeerIsAvoided() {
+	for(int i = 0; i < 10; i++) {
+	    selector.recordOutcome(fast, 1 << 20, SECOND / 10, i % 2 == 0);
+	    selector.recordOutcome(slow, 1 << 20, SECOND / 5, true);
+	}
+
+	assertEquals(slow, selector.choosePeer(new Peer[] { fast, slow }));
+    }
+
+    @Test public void degradedPeerLosesItsPlaceQuickly() {
+	for(int i = 0; i < 20; i++) {
+	    selector.recordOutcome(fast, 1 << 20, SECOND / 10, true);
+	    selector.recordOutcome(slow, 1 << 20, SECOND / 2, true);
+	}
+	for(int i = 0; i < 5; i++) {
+	    selector.recordOutcome(fast, 1 << 20, 5 * SECOND, true);
+	}
+
+	assertEquals(slow, selector.choosePeer(new Peer[] { fast, slow }));
+    }
+
+    @Test public void downPeerIsNeverChosen() {
+	slow.setLoad(-1);
+
+	assertEquals(fast, selector.choosePeer(new Peer[] { slow, fast }));
+	assertNull(selector.choosePeer(new Peer[] { slow }));
+    }
+
+    @Test public void peerWithUnknownLoadIsChosenLast() {
+	slow.setLoad(8);
+	fast.setLoad(Peer.LOAD_UNKNOWN);
+	for(int i = 0; i < 10; i++) {
+	    selector.recordOutcome(fast, 1 << 20, SECOND / 10, true);
+	    selector.recordOutcome(slow, 1 << 20, SECOND, true);
+	}
+
+	assertEquals(slow, selector.choosePeer(new Peer[] { fast, slow }));
+	assertEquals(fast, selector.choosePeer(new Peer[] { fast }));
+    }
+
+    @Test public void unusedPeerWithUnknownLoadIsNotTriedFirst() {
+	slow.setLoad(Peer.LOAD_UNKNOWN);
+	selector.recordOutcome(fast, 1 << 20, SECOND / 10, true);
+
+	assertEquals(fast, selector.choosePeer(new Peer[] { slow, fast }));
+    }
+
+    private static Peer makePeer(String id) {
+	Peer peer = new Peer(id, 11523, "1.1.2.3");
+	peer.setLatency(1);
+	return peer;
+    }
+}
@@ -25,6 +25,28 @@ public class TestBestPeerSelector {
 	assertEquals(bestPeer, peers[0]);
     }
 
+    @Test public void peerWithUnknownLoadComesAfterKnownLoads() {
+	peers[0] = makePeer(Peer.LOAD_UNKNOWN, 1);
+	peers[1] = makePeer(20, 40);
+	peers[2] = makePeer(-1, 1);
+
+	Peer bestPeer = selector.choosePeer(peers);
+
+	assertEquals(bestPeer, peers[1]);
+    }
+
+    @Test public void tieGoesToPeerWithHigherThroughput() {
+	peers[0] = makePeer(1, 3);
+	peers[1] = makePeer(1, 3);
+	peers[2] = makePeer(2, 4);
+	peers[0].setThroughput(1000);
+	peers[1].setThroughput(5000);
+
+	Peer bestPeer = selector.choosePeer(peers);
+
+	assertSame(bestPeer, peers[1]);
+    }
+
     public Peer makePeer(int load, int latency) {
 	Peer peer = new Peer("15", 11523, "1.1.2.3");
 	peer.setLoad(load);
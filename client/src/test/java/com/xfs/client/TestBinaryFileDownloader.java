@@ -0,0 +1,82 @@
+package com.xfs.client;
+
+import com.xfs.common.MessageWriter;
+import com.xfs.common.PeerAction;
+import com.xfs.common.SocketWrapper;
+import com.xfs.common.XFSSocket;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.Test;
+import org.junit.Before;
+import org.mockito.ArgumentCaptor;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class TestBinaryFileDownloader {
+    public BinaryFileDownloader downloader;
+
+    @Before
+    public void setup() {
+	downloader = new BinaryFileDownloader(0);
+    }
+
+    @Test
+    public void testRangeRequestRoundTrips() throws IOException {
+	SocketWrapper sock = mock(XFSSocket.class);
+	PeerAction request = new PeerAction(PeerAction.SEND_RANGE, "a::b.bin",
+					    1L << 40, 65536, "deflate");
+
+	downloader.sendRequest(sock, request);
+
+	assertEquals(request, downloader.processRequest(replay(sentMessage(sock))));
+    }
+
+    @Test
+    public void testRequestWithoutEncodingsRoundTrips() throws IOException {
+	SocketWrapper sock = mock(XFSSocket.class);
+	PeerAction request = new PeerAction(PeerAction.SEND_LOAD);
+
+	downloader.sendRequest(sock, request);
+
+	assertEquals(request, downloader.processRequest(replay(sentMessage(sock))));
+    }
+
+    @Test
+    public void testGetLoadReadsBinaryReply() throws IOException {
+	SocketWrapper peer = mock(XFSSocket.class);
+	downloader.sendLoad(peer, 5);
+	SocketWrapper sock = replay(sentMessage(peer));
+
+	assertEquals(5, downloader.getLoad(sock));
+	verify(sock, never()).send(anyString());
+    }
+
+    @Test
+    public void testPingReadsBinaryPong() throws IOException {
+	SocketWrapper peer = mock(XFSSocket.class);
+	downloader.sendPong(peer);
+
+	assertTrue(downloader.ping(replay(sentMessage(peer))));
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownRequestTypeIsRejected() throws IOException {
+	MessageWriter msg = new MessageWriter(BinaryFileDownloader.REPLY);
+	downloader.processRequest(replay(Arrays.copyOf(msg.array(),
+						       msg.length())));
+    }
+
+    private static byte[] sentMessage(SocketWrapper sock) throws IOException {
+	ArgumentCaptor<MessageWriter> captor =
+	    ArgumentCaptor.forClass(MessageWriter.class);
+	verify(sock).sendMessage(captor.capture());
+	MessageWriter message = captor.getValue();
+	return Arrays.copyOf(message.array(), message.length());
+    }
+
+    private static SocketWrapper replay(byte[] message) throws IOException {
+	SocketWrapper sock = mock(XFSSocket.class);
+	when(sock.receiveMessage()).thenReturn(message);
+	return sock;
+    }
+}
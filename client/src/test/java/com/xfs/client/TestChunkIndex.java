@@ -0,0 +1,87 @@
+package com.xfs.client;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+import org.junit.Before;
+import static org.junit.Assert.*;
+
+public class TestChunkIndex {
+    File dir;
+    byte[] content;
+
+    @Before public void setUp() throws IOException {
+	dir = Files.createTempDirectory("xfs").toFile();
+	dir.deleteOnExit();
+	content = new byte[2 << 20];
+	new Random(1).nextBytes(content);
+    }
+
+    @Test public void chunksCoverWholeFile() throws IOException {
+	byte[] manifest = new ChunkIndex().getManifest(write("file1", content));
+
+	long total = 0;
+	for(int i = 0; i < manifest.length / ChunkIndex.ENTRY_LENGTH; i++) {
+	    int length = ChunkIndex.getChunkLength(manifest, i);
+	    assertTrue(length <= ChunkIndex.MAX_CHUNK);
+	    total += length;
+	}
+	assertEquals(content.length, total);
+    }
+
+    @Test public void insertionOnlyChangesNearbyChunks() throws IOException {
+	byte[] edited = new byte[content.length + 100];
+	System.arraycopy(content, 0, edited, 0, 1000);
+	System.arraycopy(content, 1000, edited, 1100, content.length - 1000);
+	ChunkIndex index = new ChunkIndex();
+
+	byte[] original = index.getManifest(write("file1", content));
+	byte[] changed = index.getManifest(write("file2", edited));
+
+	Set<ByteBuffer> originalChunks = new HashSet<ByteBuffer>();
+	for(int i = 0; i < original.length / ChunkIndex.ENTRY_LENGTH; i++) {
+	    originalChunks.add(checksum(original, i));
+	}
+	int changedCount = changed.length / ChunkIndex.ENTRY_LENGTH;
+	int shared = 0;
+	for(int i = 0; i < changedCount; i++) {
+	    if(originalChunks.contains(checksum(changed, i))) {
+		shared++;
+	    }
+	}
+	assertTrue(shared >= changedCount - 2);
+    }
+
+    @Test public void findLocatesChunkInIndexedFile() throws IOException {
+	ChunkIndex index = new ChunkIndex();
+	File file = write("file1", content);
+	index.indexDirectory(dir);
+
+	byte[] manifest = index.getManifest(file);
+	ChunkIndex.ChunkLocation location = index.find(manifest, 1);
+
+	assertEquals(file.getName(), location.getFile().getName());
+	assertEquals(ChunkIndex.getChunkLength(manifest, 0),
+		     location.getOffset());
+    }
+
+    private ByteBuffer checksum(byte[] manifest, int entry) {
+	return ByteBuffer.wrap(manifest, entry * ChunkIndex.ENTRY_LENGTH,
+			       ChecksumVerifier.LENGTH).slice();
+    }
+
+    private File write(String name, byte[] bytes) throws IOException {
+	File file = new File(dir, name);
+	file.deleteOnExit();
+	FileOutputStream out = new FileOutputStream(file);
+	out.write(bytes);
+	out.close();
+	return file;
+    }
+}
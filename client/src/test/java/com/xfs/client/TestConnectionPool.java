@@ -0,0 +1,84 @@
+package com.xfs.client;
+
+import com.xfs.common.Peer;
+import com.xfs.common.SocketWrapper;
+import com.xfs.common.XFSSocket;
+import java.io.IOException;
+import org.junit.Test;
+import org.junit.Before;
+import org.mockito.InOrder;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+import static org.mockito.ArgumentMatchers.*;
+
+public class TestConnectionPool {
+    Downloader downloader;
+    ConnectionPool pool;
+    Peer peer;
+
+    @Before public void setUp() {
+	downloader = mock(FileDownloader.class);
+	pool = new ConnectionPool(downloader);
+	peer = new Peer("1", 10001, "127.0.0.1");
+    }
+
+    @Test public void releasedConnectionIsReused() throws IOException {
+	SocketWrapper sock = mock(XFSSocket.class);
+
+	pool.release(peer, sock);
+
+	assertSame(sock, pool.acquire(peer));
+	verify(sock, never()).close();
+    }
+
+    @Test public void oldestIdleConnectionIsClosedWhenPoolIsFull()
+	throws IOException {
+	SocketWrapper[] socks = new SocketWrapper[5];
+	for(int i = 0; i < socks.length; i++) {
+	    socks[i] = mock(XFSSocket.class);
+	    pool.release(peer, socks[i]);
+	}
+
+	verify(socks[0]).close();
+	assertSame(socks[4], pool.acquire(peer));
+    }
+
+    @Test public void recentlyUsedConnectionIsNotPinged() throws IOException {
+	SocketWrapper sock = mock(XFSSocket.class);
+
+	pool.release(peer, sock);
+
+	assertSame(sock, pool.acquire(peer));
+	verify(downloader, never()).ping(any(SocketWrapper.class));
+	verify(sock, never()).setTimeout(anyInt());
+    }
+
+    @Test public void unansweredHealthCheckDiscardsConnection()
+	throws IOException {
+	pool = new ConnectionPool(downloader, 0);
+	SocketWrapper healthy = mock(XFSSocket.class);
+	SocketWrapper stale = mock(XFSSocket.class);
+	when(downloader.ping(healthy)).thenReturn(true);
+	when(downloader.ping(stale)).thenReturn(false);
+	pool.release(peer, healthy);
+	pool.release(peer, stale);
+
+	assertSame(healthy, pool.acquire(peer));
+
+	InOrder inOrder = inOrder(stale, downloader);
+	inOrder.verify(stale).setTimeout(ConnectionPool.HEALTH_CHECK_TIMEOUT);
+	inOrder.verify(downloader).ping(stale);
+	inOrder.verify(stale).close();
+	verify(healthy).setTimeout(ConnectionPool.HEALTH_CHECK_TIMEOUT);
+	verify(healthy).setTimeout(0);
+	verify(healthy, never()).close();
+    }
+
+    @Test public void invalidatedConnectionIsClosed() throws IOException {
+	SocketWrapper sock = mock(XFSSocket.class);
+
+	pool.invalidate(sock);
+
+	verify(sock).close();
+    }
+}
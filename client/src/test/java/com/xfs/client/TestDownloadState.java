@@ -0,0 +1,60 @@
+package com.xfs.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import org.junit.Test;
+import org.junit.Before;
+import static org.junit.Assert.*;
+
+public class TestDownloadState {
+    String filepath;
+    FileInfo info;
+
+    @Before public void setUp() throws IOException {
+	File dir = Files.createTempDirectory("xfs").toFile();
+	dir.deleteOnExit();
+	filepath = dir.getPath() + "/file1.txt";
+	info = new FileInfo(2500, new byte[20]);
+    }
+
+    @Test public void newDownloadHasAllPiecesMissing() {
+	DownloadState state = DownloadState.open(filepath, info, 1000);
+
+	assertEquals(3, state.getPieceCount());
+	assertArrayEquals(new int[]{0, 1, 2}, state.getMissingPieces());
+	assertEquals(500, state.getPieceLength(2));
+	assertEquals(0, state.getVerifiedOffset());
+    }
+
+    @Test public void reopenedDownloadResumesFromCheckpoint() throws IOException {
+	DownloadState state = DownloadState.open(filepath, info, 1000);
+	FileChannel part = new XFSDirectoryManager()
+	    .openFileChannel(state.getPartPath());
+	state.markVerified(0);
+	state.markVerified(2);
+	state.checkpoint(part, true);
+	part.close();
+
+	DownloadState resumed = DownloadState.open(filepath, info, 1000);
+
+	assertArrayEquals(new int[]{1}, resumed.getMissingPieces());
+	assertEquals(1000, resumed.getVerifiedOffset());
+    }
+
+    @Test public void checkpointForDifferentFileIsDiscarded()
+	throws IOException {
+	DownloadState state = DownloadState.open(filepath, info, 1000);
+	FileChannel part = new XFSDirectoryManager()
+	    .openFileChannel(state.getPartPath());
+	state.markVerified(0);
+	state.checkpoint(part, true);
+	part.close();
+
+	FileInfo newerInfo = new FileInfo(2600, new byte[20]);
+	DownloadState restarted = DownloadState.open(filepath, newerInfo, 1000);
+
+	assertArrayEquals(new int[]{0, 1, 2}, restarted.getMissingPieces());
+    }
+}
@@ -4,10 +4,18 @@ import com.xfs.common.PeerAction;
 import com.xfs.common.Peer;
 import com.xfs.common.SocketWrapper;
 import com.xfs.common.XFSSocket;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import org.junit.Test;
 import org.junit.Before;
 import org.junit.Ignore;
+import org.mockito.ArgumentCaptor;
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
@@ -122,6 +130,19 @@ public class TestFileDownloader {
 	byte[] downloadedBytes = downloader.download(sock, filename);
     }
 
+    @Test(expected=PeerBusyException.class)
+    public void downloadThrowsPeerBusyExceptionWhenPeerIsBusy()
+	throws IOException, ChecksumMismatchException {
+	SocketWrapper sock = mock(XFSSocket.class);
+	downloader.sendBusy(sock, new PeerAction(PeerAction.SEND_DOWNLOAD,
+						 "file1.txt"));
+	ArgumentCaptor<byte[]> busy = ArgumentCaptor.forClass(byte[].class);
+	verify(sock).sendFile(busy.capture());
+	when(sock.receiveFile()).thenReturn(busy.getValue());
+
+	downloader.download(sock, "file1.txt");
+    }
+
     @Test
     public void processRequestReturnsCorrectCommandForGetLoad()
 	throws IOException {
@@ -148,6 +169,19 @@ public class TestFileDownloader {
 	assertEquals(expectedPeerAction, actualPeerAction);
     }
 
+    @Test
+    public void processRequestReturnsCorrectCommandForRange()
+	throws IOException {
+	SocketWrapper sock = mock(XFSSocket.class);
+	PeerAction expectedPeerAction = new
+	    PeerAction(PeerAction.SEND_RANGE, "file1.txt", 1048576, 4096);
+	when(sock.receive()).thenReturn("Range::file1.txt::1048576::4096");
+
+	PeerAction actualPeerAction = downloader.processRequest(sock);
+
+	assertEquals(expectedPeerAction, actualPeerAction);
+    }
+
     @Test
     public void getLoadReturnsCorrectLoad() throws IOException {
 	SocketWrapper sock = mock(XFSSocket.class);
@@ -182,6 +216,188 @@ public class TestFileDownloader {
     }
 
 
+    @Test
+    public void rangeDownloadWritesRangeToStream()
+	throws IOException, ChecksumMismatchException {
+	String testString = "This is a test string";
+	String testStringChecksum = "e2f67c772368acdeee6a2242c535c6cc28d8e0ed";
+	byte[] stringBytes = testString.getBytes();
+	byte[] checksumBytes = convertChecksumStringToBytes(testStringChecksum);
+
+	SocketWrapper sock = mock(XFSSocket.class);
+	when(sock.receiveStream(any(OutputStream.class)))
+	    .thenAnswer(invocation -> writeTo(invocation.getArgument(0), checksumBytes))
+	    .thenAnswer(invocation -> writeTo(invocation.getArgument(0), stringBytes));
+	ByteArrayOutputStream dest = new ByteArrayOutputStream();
+
+	long length = downloader.downloadRange(sock, "file1.txt", 0,
+					       stringBytes.length, null, dest);
+
+	verify(sock).send("Range::file1.txt::0::" + stringBytes.length);
+	assertEquals(stringBytes.length, length);
+	assertArrayEquals(stringBytes, dest.toByteArray());
+    }
+
+    @Test(expected=ChecksumMismatchException.class)
+    public void rangeDownloadThrowsChecksumMismatchExceptionWhenRangeCorrupted()
+	throws IOException, ChecksumMismatchException {
+	String corruptedTestString = "This% is a te#st st@!ri$ng";
+	String testStringChecksum = "e2f67c772368acdeee6a2242c535c6cc28d8e0ed";
+	byte[] corruptedStringBytes = corruptedTestString.getBytes();
+	byte[] checksumBytes = convertChecksumStringToBytes(testStringChecksum);
+
+	SocketWrapper sock = mock(XFSSocket.class);
+	when(sock.receiveStream(any(OutputStream.class)))
+	    .thenAnswer(invocation -> writeTo(invocation.getArgument(0), checksumBytes))
+	    .thenAnswer(invocation -> writeTo(invocation.getArgument(0),
+					      corruptedStringBytes));
+
+	downloader.downloadRange(sock, "file1.txt", 0, corruptedStringBytes.length,
+				 null, new ByteArrayOutputStream());
+    }
+
+    @Test(expected=IOException.class)
+    public void rangeDownloadThrowsIOExceptionWhenPeerLacksFile()
+	throws IOException, ChecksumMismatchException {
+	SocketWrapper sock = mock(XFSSocket.class);
+	when(sock.receiveStream(any(OutputStream.class))).thenReturn(0L);
+
+	downloader.downloadRange(sock, "file1.txt", 0, 21, null,
+				 new ByteArrayOutputStream());
+    }
+
+    @Test
+    public void sendDownloadStreamsFileFromChannel() throws IOException {
+	String testString = "This is a test string";
+	File file = File.createTempFile("xfs", ".txt");
+	file.deleteOnExit();
+	FileOutputStream toFile = new FileOutputStream(file);
+	toFile.write(testString.getBytes());
+	toFile.close();
+
+	SocketWrapper sock = mock(XFSSocket.class);
+	int result = downloader.sendDownload(sock, file);
+
+	assertEquals(1, result);
+	verify(sock).sendStream(any(InputStream.class), eq(20L));
+	verify(sock).sendStream(any(FileChannel.class), eq(0L),
+				eq((long)testString.length()));
+    }
+
+    @Test
+    public void processRequestReturnsCorrectCommandForHashes()
+	throws IOException {
+	SocketWrapper sock = mock(XFSSocket.class);
+	PeerAction expectedPeerAction = new
+	    PeerAction(PeerAction.SEND_HASHES, "file1.txt", 0, 1048576);
+	when(sock.receive()).thenReturn("Hashes::file1.txt::1048576");
+
+	PeerAction actualPeerAction = downloader.processRequest(sock);
+
+	assertEquals(expectedPeerAction, actualPeerAction);
+    }
+
+    @Test
+    public void rangeDownloadRejectsPeerAnnouncingWrongPieceChecksum()
+	throws IOException {
+	String testStringChecksum = "e2f67c772368acdeee6a2242c535c6cc28d8e0ed";
+	byte[] checksumBytes = convertChecksumStringToBytes(testStringChecksum);
+	byte[] pieceChecksum = checksumBytes.clone();
+	pieceChecksum[0]++;
+
+	SocketWrapper sock = mock(XFSSocket.class);
+	when(sock.receiveStream(any(OutputStream.class)))
+	    .thenAnswer(invocation -> writeTo(invocation.getArgument(0), checksumBytes));
+
+	try {
+	    downloader.downloadRange(sock, "file1.txt", 0, 21, pieceChecksum,
+				     new ByteArrayOutputStream());
+	    fail("Expected ChecksumMismatchException");
+	} catch(ChecksumMismatchException e) {
+	}
+	verify(sock, times(1)).receiveStream(any(OutputStream.class));
+    }
+
+    @Test
+    public void sendPieceHashesSendsOneChecksumPerPiece() throws IOException {
+	String testString = "This is a test string";
+	File file = File.createTempFile("xfs", ".txt");
+	file.deleteOnExit();
+	FileOutputStream toFile = new FileOutputStream(file);
+	toFile.write(testString.getBytes());
+	toFile.close();
+
+	SocketWrapper sock = mock(XFSSocket.class);
+	int result = downloader.sendPieceHashes(sock, file, 8);
+
+	assertEquals(1, result);
+	verify(sock).sendStream(any(InputStream.class), eq(60L));
+    }
+
+    @Test
+    public void processRequestReturnsAcceptedEncodingsForStreamDownload()
+	throws IOException {
+	SocketWrapper sock = mock(XFSSocket.class);
+	PeerAction expectedPeerAction = new
+	    PeerAction(PeerAction.SEND_STREAM, "file1.txt", 0, 0, "deflate");
+	when(sock.receive()).thenReturn("StreamDownload::file1.txt::deflate");
+
+	PeerAction actualPeerAction = downloader.processRequest(sock);
+
+	assertEquals(expectedPeerAction, actualPeerAction);
+    }
+
+    @Test
+    public void compressedRangeDownloadInflatesBody()
+	throws IOException, ChecksumMismatchException {
+	String testString = "This is a test string";
+	String testStringChecksum = "e2f67c772368acdeee6a2242c535c6cc28d8e0ed";
+	byte[] stringBytes = testString.getBytes();
+	byte[] checksumBytes = convertChecksumStringToBytes(testStringChecksum);
+	FileDownloader compressingDownloader = new FileDownloader(0);
+	compressingDownloader.setCompression(true);
+
+	SocketWrapper sock = mock(XFSSocket.class);
+	when(sock.receive()).thenReturn("Encoding::deflate");
+	when(sock.receiveStream(any(OutputStream.class)))
+	    .thenAnswer(invocation -> writeTo(invocation.getArgument(0), checksumBytes));
+	when(sock.receiveInflated(any(OutputStream.class)))
+	    .thenAnswer(invocation -> writeTo(invocation.getArgument(0), stringBytes));
+	ByteArrayOutputStream dest = new ByteArrayOutputStream();
+
+	compressingDownloader.downloadRange(sock, "file1.txt", 0,
+					    stringBytes.length, null, dest);
+
+	verify(sock).send("Range::file1.txt::0::" + stringBytes.length +
+			  "::deflate");
+	assertArrayEquals(stringBytes, dest.toByteArray());
+    }
+
+    @Test
+    public void processRequestReturnsCorrectCommandForPing()
+	throws IOException {
+	SocketWrapper sock = mock(XFSSocket.class);
+	when(sock.receive()).thenReturn("Ping");
+
+	PeerAction actualPeerAction = downloader.processRequest(sock);
+
+	assertEquals(new PeerAction(PeerAction.SEND_PONG), actualPeerAction);
+    }
+
+    @Test(expected=EOFException.class)
+    public void processRequestThrowsEOFExceptionWhenConnectionClosed()
+	throws IOException {
+	SocketWrapper sock = mock(XFSSocket.class);
+	when(sock.receive()).thenReturn(null);
+
+	downloader.processRequest(sock);
+    }
+
+    public long writeTo(OutputStream dest, byte[] bytes) throws IOException {
+	dest.write(bytes);
+	return bytes.length;
+    }
+
     public byte[] concatArrays(byte[] arr1, byte[] arr2) {
 	byte[] concatArr = new byte[arr1.length + arr2.length];
 	for(int i = 0; i < arr1.length; i++) {
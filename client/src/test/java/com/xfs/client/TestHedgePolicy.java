@@ -0,0 +1,49 @@
+package com.xfs.client;
+
+import org.junit.Test;
+import org.junit.Before;
+import static org.junit.Assert.*;
+
+public class TestHedgePolicy {
+    static final long MS = 1000000L;
+    HedgePolicy policy;
+
+    @Before public void setUp() {
+	policy = new HedgePolicy(0.95, 2000);
+    }
+
+    @Test public void usesInitialDelayUntilEnoughSamples() {
+	for(int i = 0; i < 3; i++) {
+	    policy.recordSample(100 * MS);
+	}
+
+	assertEquals(2000 * MS, policy.getDelay());
+    }
+
+    @Test public void delayIsPercentileOfSamples() {
+	for(int i = 1; i <= 20; i++) {
+	    policy.recordSample(i * 100 * MS);
+	}
+
+	assertEquals(1900 * MS, policy.getDelay());
+    }
+
+    @Test public void onlyRecentSamplesCount() {
+	for(int i = 0; i < 64; i++) {
+	    policy.recordSample(5000 * MS);
+	}
+	for(int i = 0; i < 64; i++) {
+	    policy.recordSample(200 * MS);
+	}
+
+	assertEquals(200 * MS, policy.getDelay());
+    }
+
+    @Test public void delayHasFloor() {
+	for(int i = 0; i < 20; i++) {
+	    policy.recordSample(MS);
+	}
+
+	assertEquals(50 * MS, policy.getDelay());
+    }
+}
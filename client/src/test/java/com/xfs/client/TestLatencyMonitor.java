@@ -0,0 +1,60 @@
+package com.xfs.client;
+
+import com.xfs.common.Peer;
+import com.xfs.common.SocketWrapper;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class TestLatencyMonitor {
+    private static final long MILLIS = 1000 * 1000;
+
+    @Test public void unmeasuredPeerHasNoLatency() {
+	LatencyMonitor monitor = new LatencyMonitor(null, null);
+
+	assertEquals(-1, monitor.getLatency("1"));
+    }
+
+    @Test public void samplesAreSmoothedLikeTcp() {
+	LatencyMonitor monitor = new LatencyMonitor(null, null);
+
+	monitor.recordSample("1", 100 * MILLIS);
+	assertEquals(100, monitor.getLatency("1"));
+	assertEquals(50, monitor.getDeviation("1"), 0.001);
+	monitor.recordSample("1", 200 * MILLIS);
+	assertEquals(113, monitor.getLatency("1"));
+	assertEquals(62.5, monitor.getDeviation("1"), 0.001);
+    }
+
+    @Test public void trackedPeersArePinged() throws Exception {
+	Downloader downloader = mock(Downloader.class);
+	ConnectionPool connections = mock(ConnectionPool.class);
+	SocketWrapper sock = mock(SocketWrapper.class);
+	Peer peer = new Peer("1", 11523, "1.1.2.3");
+	when(connections.acquire(peer, 1000)).thenReturn(sock);
+	when(downloader.ping(sock)).thenReturn(true);
+	LatencyMonitor monitor = new LatencyMonitor(downloader, connections);
+	monitor.track(peer);
+
+	monitor.pingAll();
+
+	assertTrue(monitor.getLatency("1") >= 0);
+	verify(connections).release(peer, sock);
+    }
+
+    @Test public void failedPingIsNotASample() throws Exception {
+	Downloader downloader = mock(Downloader.class);
+	ConnectionPool connections = mock(ConnectionPool.class);
+	SocketWrapper sock = mock(SocketWrapper.class);
+	Peer peer = new Peer("1", 11523, "1.1.2.3");
+	when(connections.acquire(peer, 1000)).thenReturn(sock);
+	when(downloader.ping(sock)).thenReturn(false);
+	LatencyMonitor monitor = new LatencyMonitor(downloader, connections);
+	monitor.track(peer);
+
+	monitor.pingAll();
+
+	assertEquals(-1, monitor.getLatency("1"));
+	verify(connections).invalidate(sock);
+    }
+}
@@ -0,0 +1,81 @@
+package com.xfs.client;
+
+import com.xfs.common.PeerAction;
+import com.xfs.common.ReplySocket;
+import com.xfs.common.SocketWrapper;
+import com.xfs.common.XFSSocket;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.Before;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+import static org.mockito.ArgumentMatchers.*;
+
+public class TestNioPeerServer {
+    FileDownloader downloader;
+    XFSPeer peer;
+    NioPeerServer server;
+    File file;
+    byte[] contents;
+
+    @Before
+    public void setup() throws IOException {
+	downloader = new FileDownloader(0);
+	contents = new byte[100000];
+	for(int i = 0; i < contents.length; i++) {
+	    contents[i] = (byte)(i * 31);
+	}
+	file = File.createTempFile("nio", ".bin");
+	file.deleteOnExit();
+	FileOutputStream out = new FileOutputStream(file);
+	out.write(contents);
+	out.close();
+
+	peer = mock(XFSPeer.class);
+	when(peer.getUploadScheduler()).thenReturn(new UploadScheduler(4, 32));
+	when(peer.getSharedFile(anyString())).thenReturn(file);
+	when(peer.answer(any(ReplySocket.class), any(PeerAction.class)))
+	    .thenAnswer(invocation -> {
+		    ReplySocket sock = invocation.getArgument(0);
+		    PeerAction action = invocation.getArgument(1);
+		    if(action.getAction() == PeerAction.SEND_LOAD) {
+			downloader.sendLoad(sock, 3);
+		    } else {
+			downloader.sendRange(sock, file, action.getOffset(),
+					     action.getLength());
+		    }
+		    return true;
+		});
+	server = new NioPeerServer(peer, downloader, 2);
+	server.start(0);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+	server.close();
+    }
+
+    @Test
+    public void testRequestsAreServedOverOneConnection() throws Exception {
+	SocketWrapper sock = new XFSSocket("127.0.0.1", server.getPort());
+	try {
+	    assertEquals(3, downloader.getLoad(sock));
+
+	    ByteArrayOutputStream range = new ByteArrayOutputStream();
+	    long received = downloader.downloadRange(sock, file.getName(),
+						     5000, 70000, null, range);
+
+	    assertEquals(70000, received);
+	    assertArrayEquals(Arrays.copyOfRange(contents, 5000, 75000),
+			      range.toByteArray());
+	    assertEquals(3, downloader.getLoad(sock));
+	} finally {
+	    sock.close();
+	}
+    }
+}
@@ -0,0 +1,83 @@
+package com.xfs.client;
+
+import com.xfs.common.Peer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TestPeerStateCache {
+    @Test public void loadIsForgottenAfterItsTtl() throws Exception {
+	PeerStateCache cache = new PeerStateCache(50, 1000, 1000, 1000);
+	cache.recordLoad("1", 3);
+
+	assertEquals(Integer.valueOf(3), cache.getLoad("1"));
+	Thread.sleep(100);
+	assertNull(cache.getLoad("1"));
+	assertNull(cache.getLoad("2"));
+    }
+
+    @Test public void repeatedFailuresOpenBreaker() {
+	PeerStateCache cache = new PeerStateCache();
+	for(int i = 1; i < PeerStateCache.FAILURE_THRESHOLD; i++) {
+	    cache.recordLoad("1", Peer.LOAD_DOWN);
+	}
+
+	assertTrue(cache.allowRequest("1"));
+	assertEquals(Integer.valueOf(Peer.LOAD_DOWN), cache.getLoad("1"));
+	cache.recordFailure("1");
+	assertEquals(PeerStateCache.Breaker.OPEN, cache.getBreaker("1"));
+	assertFalse(cache.allowRequest("1"));
+    }
+
+    @Test public void halfOpenBreakerLetsOneTryThrough() throws Exception {
+	PeerStateCache cache = new PeerStateCache(1000, 1000, 50, 1000);
+	for(int i = 0; i < PeerStateCache.FAILURE_THRESHOLD; i++) {
+	    cache.recordFailure("1");
+	}
+	Thread.sleep(100);
+
+	assertEquals(PeerStateCache.Breaker.HALF_OPEN, cache.getBreaker("1"));
+	assertTrue(cache.allowRequest("1"));
+	assertFalse(cache.allowRequest("1"));
+	cache.recordLoad("1", 2);
+	assertEquals(PeerStateCache.Breaker.CLOSED, cache.getBreaker("1"));
+	assertEquals(0, cache.getFailures("1"));
+    }
+
+    @Test public void successfulTryClosesBreaker() throws Exception {
+	PeerStateCache cache = new PeerStateCache(1000, 1000, 50, 1000);
+	for(int i = 0; i < PeerStateCache.FAILURE_THRESHOLD; i++) {
+	    cache.recordFailure("1");
+	}
+	Thread.sleep(100);
+	assertTrue(cache.allowRequest("1"));
+
+	cache.recordSuccess("1");
+
+	assertEquals(PeerStateCache.Breaker.CLOSED, cache.getBreaker("1"));
+	assertEquals(0, cache.getFailures("1"));
+	assertNull(cache.getLoad("1"));
+	assertTrue(cache.allowRequest("1"));
+    }
+
+    @Test public void failedTryReopensBreaker() throws Exception {
+	PeerStateCache cache = new PeerStateCache(1000, 1000, 50, 1000);
+	for(int i = 0; i < PeerStateCache.FAILURE_THRESHOLD; i++) {
+	    cache.recordFailure("1");
+	}
+	Thread.sleep(100);
+	cache.allowRequest("1");
+
+	cache.recordFailure("1");
+
+	assertEquals(PeerStateCache.Breaker.OPEN, cache.getBreaker("1"));
+    }
+
+    @Test public void throughputIsAveragedOverTransfers() {
+	PeerStateCache cache = new PeerStateCache();
+	cache.recordThroughput("1", 1000, 1000 * 1000 * 1000L);
+	cache.recordThroughput("1", 2000, 1000 * 1000 * 1000L);
+
+	assertEquals(1300, cache.getThroughput("1"), 0.001);
+	assertEquals(0, cache.getThroughput("2"), 0);
+    }
+}
@@ -0,0 +1,71 @@
+package com.xfs.client;
+
+import com.xfs.common.PeerAction;
+import java.io.DataInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import org.junit.Test;
+import org.junit.Before;
+import static org.junit.Assert.*;
+
+public class TestReplyBuffer {
+    public FileDownloader downloader;
+
+    @Before
+    public void setup() {
+	downloader = new FileDownloader(0);
+    }
+
+    @Test
+    public void testRequestIsParsedFromBuffer() throws IOException {
+	ReplyBuffer buffer = new ReplyBuffer("Range::f.bin::10::20\r".getBytes(),
+					     null);
+
+	PeerAction action = downloader.processRequest(buffer);
+
+	assertEquals(new PeerAction(PeerAction.SEND_RANGE, "f.bin", 10, 20),
+		     action);
+    }
+
+    @Test
+    public void testFileRangeIsRecordedNotCopied() throws IOException {
+	File file = File.createTempFile("reply", ".bin");
+	file.deleteOnExit();
+	FileOutputStream out = new FileOutputStream(file);
+	out.write(new byte[1000]);
+	out.close();
+	ReplyBuffer buffer = new ReplyBuffer(new byte[0], null);
+
+	downloader.sendRange(buffer, file, 100, 500, FileDownloader.IDENTITY);
+
+	DataInputStream reply = new DataInputStream(
+	    new ByteArrayInputStream(buffer.getReply()));
+	assertEquals("Encoding::identity", readLine(reply));
+	assertEquals(20, reply.readLong());
+	reply.skipBytes(20);
+	assertEquals(500, reply.readLong());
+	assertEquals(0, reply.available());
+	assertTrue(buffer.hasFileRange());
+	assertEquals(100, buffer.getFilePosition());
+	assertEquals(500, buffer.getFileCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNothingMayFollowFileRange() throws IOException {
+	ReplyBuffer buffer = new ReplyBuffer(new byte[0], null);
+	buffer.sendStream(null, 0, 10);
+
+	buffer.send("Pong");
+    }
+
+    private static String readLine(DataInputStream in) throws IOException {
+	StringBuilder line = new StringBuilder();
+	int b;
+	while((b = in.read()) != '\n') {
+	    line.append((char)b);
+	}
+	return line.toString();
+    }
+}
@@ -0,0 +1,99 @@
+package com.xfs.client;
+
+import java.util.HashSet;
+import java.util.Set;
+import com.xfs.common.Peer;
+import org.junit.Test;
+import org.junit.Before;
+import static org.junit.Assert.*;
+
+public class TestSamplingPeerSelector {
+    Peer[] peers;
+    int[] loads;
+    Set<String> probed;
+    SamplingPeerSelector selector;
+
+    @Before public void setUp() {
+	peers = new Peer[100];
+	loads = new int[peers.length];
+	for(int i = 0; i < peers.length; i++) {
+	    peers[i] = new Peer("" + i, 11523, "1.1.2.3");
+	    loads[i] = i;
+	}
+	probed = new HashSet<String>();
+	selector = new SamplingPeerSelector(2);
+	selector.setLoadProbe(new LoadProbe() {
+		@Override public int getLoad(Peer peer) {
+		    probed.add(peer.getID());
+		    return loads[Integer.parseInt(peer.getID())];
+		}
+	    });
+    }
+
+    @Test public void probesOnlyTheCandidates() {
+	Peer chosen = selector.choosePeer(peers);
+
+	assertEquals(2, probed.size());
+	assertTrue(probed.contains(chosen.getID()));
+	for(String id : probed) {
+	    assertTrue(chosen.getLoad() <= loads[Integer.parseInt(id)]);
+	}
+	assertTrue(selector.probesLoads());
+    }
+
+    @Test public void picksAnotherPairWhenCandidatesAreDown() {
+	for(int i = 0; i < loads.length; i++) {
+	    loads[i] = i == 42 ? 7 : Peer.LOAD_DOWN;
+	}
+
+	Peer chosen = selector.choosePeer(peers);
+
+	assertEquals("42", chosen.getID());
+    }
+
+    @Test public void returnsNullWhenAllAreDown() {
+	for(int i = 0; i < loads.length; i++) {
+	    loads[i] = Peer.LOAD_DOWN;
+	}
+
+	assertNull(selector.choosePeer(peers));
+	assertEquals(peers.length, probed.size());
+    }
+
+    @Test public void knownLoadBeatsUnknownLoad() {
+	selector = new SamplingPeerSelector(2);
+	Peer[] pair = {makePeer(Peer.LOAD_UNKNOWN), makePeer(50)};
+
+	assertEquals(pair[1], selector.choosePeer(pair));
+	assertFalse(selector.probesLoads());
+    }
+
+    @Test public void balancesLoadBetterThanRandomChoice() {
+	int[] assigned = new int[peers.length];
+	selector.setLoadProbe(new LoadProbe() {
+		@Override public int getLoad(Peer peer) {
+		    return loads[Integer.parseInt(peer.getID())];
+		}
+	    });
+	for(int i = 0; i < loads.length; i++) {
+	    loads[i] = 0;
+	}
+	for(int i = 0; i < 10 * peers.length; i++) {
+	    int chosen = Integer.parseInt(selector.choosePeer(peers).getID());
+	    loads[chosen]++;
+	    assigned[chosen]++;
+	}
+	int max = 0;
+	for(int count : assigned) {
+	    max = Math.max(max, count);
+	}
+	// Random choice puts about 20 on the busiest peer, two choices about 13.
+	assertTrue("max " + max, max <= 16);
+    }
+
+    public Peer makePeer(int load) {
+	Peer peer = new Peer("15", 11523, "1.1.2.3");
+	peer.setLoad(load);
+	return peer;
+    }
+}
@@ -0,0 +1,187 @@
+package com.xfs.client;
+
+import com.xfs.common.Peer;
+import com.xfs.common.PeerAction;
+import com.xfs.common.XFSSocket;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+import static org.mockito.ArgumentMatchers.*;
+
+public class TestSwarmDownloader {
+    private static final int PIECE_SIZE = 64 * 1024;
+
+    /**
+     * Bytes of a reply the stalling peer passes on: past the encoding line,
+     * checksum and first frame header, into the compressed data
+     */
+    private static final int STALL_AFTER = 200;
+
+    File file;
+    byte[] contents;
+    ServerSocket server;
+    ServerSocket stallingServer;
+
+    @Before public void setUp() throws IOException {
+	File dir = Files.createTempDirectory("xfs").toFile();
+	dir.deleteOnExit();
+	file = new File(dir, "file1.txt");
+	file.deleteOnExit();
+	contents = new byte[PIECE_SIZE];
+	Random random = new Random(1);
+	for(int i = 0; i < contents.length; i++) {
+	    contents[i] = (byte)('a' + random.nextInt(4));
+	}
+	FileOutputStream out = new FileOutputStream(file);
+	out.write(contents);
+	out.close();
+
+	server = listen();
+	stallingServer = listen();
+	startPeer();
+	startStallingPeer();
+    }
+
+    @After public void tearDown() throws IOException {
+	server.close();
+	stallingServer.close();
+    }
+
+    @Test public void stalledCompressedRangeIsOutracedByHedge()
+	throws Exception {
+	FileDownloader downloader = new FileDownloader(0);
+	downloader.setCompression(true);
+	PeerSelector selector = mock(PeerSelector.class);
+	SwarmDownloader swarm = new SwarmDownloader(
+	    downloader, new ConnectionPool(downloader), PIECE_SIZE, 1);
+	swarm.setHedgePolicy(new HedgePolicy(0.95, 50));
+	swarm.setPeerSelector(selector);
+	Peer stalling = new Peer("1", stallingServer.getLocalPort(),
+				 "127.0.0.1");
+	Peer healthy = new Peer("2", server.getLocalPort(), "127.0.0.1");
+	File target = new File(file.getParentFile(), "copy.txt");
+	target.deleteOnExit();
+	DownloadState state = DownloadState.open(
+	    target.getPath(), new FileInfo(contents.length, new byte[20]),
+	    PIECE_SIZE);
+	FileChannel dest = new XFSDirectoryManager()
+	    .openFileChannel(state.getPartPath());
+
+	try {
+	    swarm.download(new Peer[] { stalling, healthy }, file.getName(),
+			   state, dest);
+	} finally {
+	    dest.close();
+	}
+
+	assertArrayEquals(contents,
+			  Files.readAllBytes(new File(state.getPartPath())
+					     .toPath()));
+	verify(selector, timeout(5000))
+	    .recordOutcome(eq(stalling), eq(0L), anyLong(), eq(false));
+	assertNotEquals(-1, stalling.getLoad());
+    }
+
+    private static ServerSocket listen() throws IOException {
+	return new ServerSocket(0, 4, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Serve range requests for the file, one thread per connection.
+     */
+    private void startPeer() {
+	FileDownloader downloader = new FileDownloader(0);
+	startDaemon(() -> {
+		while(true) {
+		    XFSSocket sock = new XFSSocket(server.accept());
+		    startDaemon(() -> {
+			    try {
+				while(true) {
+				    PeerAction action =
+					downloader.processRequest(sock);
+				    downloader.sendRange(sock, file,
+							 action.getOffset(),
+							 action.getLength(),
+							 action.getEncodings());
+				}
+			    } finally {
+				sock.close();
+			    }
+			});
+		}
+	    });
+    }
+
+    /**
+     * Relay connections to the peer, but stop passing on its reply after
+     * STALL_AFTER bytes and hold the connection open until the other end
+     * closes it.
+     */
+    private void startStallingPeer() {
+	startDaemon(() -> {
+		while(true) {
+		    Socket client = stallingServer.accept();
+		    Socket upstream = new Socket(InetAddress.getLoopbackAddress(),
+						 server.getLocalPort());
+		    startDaemon(() -> {
+			    try {
+				relay(client.getInputStream(),
+				      upstream.getOutputStream(), Long.MAX_VALUE);
+			    } finally {
+				client.close();
+				upstream.close();
+			    }
+			});
+		    startDaemon(() -> relay(upstream.getInputStream(),
+					    client.getOutputStream(),
+					    STALL_AFTER));
+		}
+	    });
+    }
+
+    /**
+     * Copy a stream until it ends, passing on at most limit bytes.
+     */
+    private static void relay(InputStream in, OutputStream out, long limit)
+	throws IOException {
+	byte[] buf = new byte[8192];
+	long passed = 0;
+	int bytesRead;
+	while((bytesRead = in.read(buf)) >= 0) {
+	    int length = (int)Math.min(bytesRead, limit - passed);
+	    if(length > 0) {
+		out.write(buf, 0, length);
+		out.flush();
+		passed += length;
+	    }
+	}
+    }
+
+    private interface Task {
+	void run() throws IOException;
+    }
+
+    private static void startDaemon(Task task) {
+	Thread thread = new Thread(() -> {
+		try {
+		    task.run();
+		} catch(IOException e) {
+		}
+	    });
+	thread.setDaemon(true);
+	thread.start();
+    }
+}
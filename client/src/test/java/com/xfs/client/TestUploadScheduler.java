@@ -0,0 +1,61 @@
+package com.xfs.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TestUploadScheduler {
+    @Test public void uploadsBeyondSlotsWaitInQueue() {
+	UploadScheduler scheduler = new UploadScheduler(2, 4);
+	List<String> started = new ArrayList<String>();
+
+	for(int i = 0; i < 3; i++) {
+	    assertTrue(scheduler.request("a", record(started, "a" + i)));
+	}
+
+	assertEquals(2, scheduler.getActive());
+	assertEquals(1, scheduler.getQueued());
+	assertEquals(3, scheduler.getLoad());
+	scheduler.release();
+	assertEquals(3, started.size());
+	assertEquals(2, scheduler.getActive());
+	assertEquals(0, scheduler.getQueued());
+    }
+
+    @Test public void freedSlotsGoToRequestersInTurn() {
+	UploadScheduler scheduler = new UploadScheduler(1, 8);
+	List<String> started = new ArrayList<String>();
+	scheduler.request("a", record(started, "a0"));
+	scheduler.request("a", record(started, "a1"));
+	scheduler.request("a", record(started, "a2"));
+	scheduler.request("b", record(started, "b0"));
+	scheduler.request("c", record(started, "c0"));
+
+	for(int i = 0; i < 4; i++) {
+	    scheduler.release();
+	}
+
+	assertEquals("[a0, a1, b0, c0, a2]", started.toString());
+    }
+
+    @Test public void requestIsRefusedWhenQueueIsFull() throws Exception {
+	UploadScheduler scheduler = new UploadScheduler(1, 1);
+	List<String> started = new ArrayList<String>();
+	scheduler.request("a", record(started, "a0"));
+	scheduler.request("b", record(started, "b0"));
+
+	assertFalse(scheduler.request("c", record(started, "c0")));
+	assertFalse(scheduler.acquire("c"));
+	assertEquals("[a0]", started.toString());
+    }
+
+    private static Runnable record(final List<String> started,
+				   final String name) {
+	return new Runnable() {
+	    @Override public void run() {
+		started.add(name);
+	    }
+	};
+    }
+}
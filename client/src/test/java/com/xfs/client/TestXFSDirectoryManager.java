@@ -0,0 +1,56 @@
+package com.xfs.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import org.junit.Test;
+import org.junit.Before;
+import static org.junit.Assert.*;
+
+public class TestXFSDirectoryManager {
+    DirectoryManager directoryManager;
+    File dir;
+
+    @Before public void setUp() throws IOException {
+	directoryManager = new XFSDirectoryManager();
+	dir = Files.createTempDirectory("xfs").toFile();
+	dir.deleteOnExit();
+    }
+
+    @Test public void printToFileWritesEveryByte() throws IOException {
+	byte[] fileBytes = "This is a test string".getBytes();
+	File file = new File(dir, "file1.txt");
+	file.deleteOnExit();
+
+	directoryManager.printToFile(file.getPath(), fileBytes);
+
+	assertArrayEquals(fileBytes, Files.readAllBytes(file.toPath()));
+	assertFalse(new File(file.getPath() + DownloadState.PART_SUFFIX)
+		    .exists());
+    }
+
+    @Test public void openFileChannelSizesFile() throws IOException {
+	File file = new File(dir, "file1.txt");
+	file.deleteOnExit();
+
+	FileChannel channel = directoryManager.openFileChannel(file.getPath(),
+							       2500);
+	channel.close();
+
+	assertEquals(2500, file.length());
+    }
+
+    @Test public void commitFileReplacesTarget() throws IOException {
+	File target = new File(dir, "file1.txt");
+	File temp = new File(dir, "file1.txt" + DownloadState.PART_SUFFIX);
+	target.deleteOnExit();
+	Files.write(target.toPath(), "old".getBytes());
+	Files.write(temp.toPath(), "new".getBytes());
+
+	directoryManager.commitFile(temp.getPath(), target.getPath());
+
+	assertArrayEquals("new".getBytes(), Files.readAllBytes(target.toPath()));
+	assertFalse(temp.exists());
+    }
+}
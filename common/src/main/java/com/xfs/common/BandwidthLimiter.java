@@ -0,0 +1,171 @@
+package com.xfs.common;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Shares bandwidth between the connections of a process. Every byte a
+ * throttled connection sends or receives is charged against three token
+ * buckets for its direction:
+ *    global      -> all traffic, so transfers leave room for other services
+ *                   on the same link
+ *    class       -> traffic of the connection's class, foreground for
+ *                   downloads the user asked for and background for
+ *                   everything else, such as uploads to other peers
+ *    connection  -> the connection alone, so one transfer cannot take the
+ *                   whole budget of its class
+ * The connection waits for whichever bucket is deepest in debt. Every rate
+ * is in bytes per second, 0 means no limit, and every rate can be changed
+ * while transfers are running.
+ */
+public class BandwidthLimiter {
+    public enum TrafficClass { FOREGROUND, BACKGROUND }
+
+    private final TokenBucket globalSend = new TokenBucket(0);
+    private final TokenBucket globalReceive = new TokenBucket(0);
+    private final TokenBucket[] classSend = newBuckets();
+    private final TokenBucket[] classReceive = newBuckets();
+    private volatile long connectionRate;
+
+    /**
+     * Create a limiter configured by system properties, each a rate in bytes
+     * per second with no limit by default:
+     *    xfs.bandwidth.send        -> all traffic sent
+     *    xfs.bandwidth.receive     -> all traffic received
+     *    xfs.bandwidth.foreground  -> foreground traffic in each direction
+     *    xfs.bandwidth.background  -> background traffic in each direction
+     *    xfs.bandwidth.connection  -> each connection in each direction
+     */
+    public static BandwidthLimiter fromSystemProperties() {
+	BandwidthLimiter limiter = new BandwidthLimiter();
+	limiter.setSendRate(Long.getLong("xfs.bandwidth.send", 0));
+	limiter.setReceiveRate(Long.getLong("xfs.bandwidth.receive", 0));
+	limiter.setClassRate(TrafficClass.FOREGROUND,
+			     Long.getLong("xfs.bandwidth.foreground", 0));
+	limiter.setClassRate(TrafficClass.BACKGROUND,
+			     Long.getLong("xfs.bandwidth.background", 0));
+	limiter.setConnectionRate(Long.getLong("xfs.bandwidth.connection", 0));
+	return limiter;
+    }
+
+    public void setSendRate(long rate) {
+	globalSend.setRate(rate);
+    }
+
+    public long getSendRate() {
+	return globalSend.getRate();
+    }
+
+    public void setReceiveRate(long rate) {
+	globalReceive.setRate(rate);
+    }
+
+    public long getReceiveRate() {
+	return globalReceive.getRate();
+    }
+
+    /**
+     * Set the rate of a traffic class in each direction.
+     */
+    public void setClassRate(TrafficClass trafficClass, long rate) {
+	classSend[trafficClass.ordinal()].setRate(rate);
+	classReceive[trafficClass.ordinal()].setRate(rate);
+    }
+
+    public long getClassRate(TrafficClass trafficClass) {
+	return classSend[trafficClass.ordinal()].getRate();
+    }
+
+    /**
+     * Set the rate of each connection in each direction. Applies to
+     * connections that are already open.
+     */
+    public void setConnectionRate(long rate) {
+	connectionRate = Math.max(0, rate);
+    }
+
+    public long getConnectionRate() {
+	return connectionRate;
+    }
+
+    /**
+     * Create the throttle of a new connection.
+     */
+    public Throttle newThrottle(TrafficClass trafficClass) {
+	return new Throttle(trafficClass);
+    }
+
+    private static TokenBucket[] newBuckets() {
+	TokenBucket[] buckets = new TokenBucket[TrafficClass.values().length];
+	for(int i = 0; i < buckets.length; i++) {
+	    buckets[i] = new TokenBucket(0);
+	}
+	return buckets;
+    }
+
+    /**
+     * Limits the traffic of one connection. The charge methods only record
+     * bytes and return how long to wait, for callers that must not block.
+     */
+    public class Throttle {
+	private volatile TrafficClass trafficClass;
+	private final TokenBucket send = new TokenBucket(0);
+	private final TokenBucket receive = new TokenBucket(0);
+
+	Throttle(TrafficClass trafficClass) {
+	    this.trafficClass = trafficClass;
+	}
+
+	/**
+	 * Move the connection to another traffic class, such as when a pooled
+	 * connection is reused for a different kind of transfer.
+	 */
+	public void setTrafficClass(TrafficClass trafficClass) {
+	    this.trafficClass = trafficClass;
+	}
+
+	public TrafficClass getTrafficClass() {
+	    return this.trafficClass;
+	}
+
+	/**
+	 * Record bytes sent.
+	 * @return Nanoseconds to wait before sending more
+	 */
+	public long chargeSend(long bytes) {
+	    return charge(send, classSend, globalSend, bytes);
+	}
+
+	/**
+	 * Record bytes received.
+	 * @return Nanoseconds to wait before receiving more
+	 */
+	public long chargeReceive(long bytes) {
+	    return charge(receive, classReceive, globalReceive, bytes);
+	}
+
+	/**
+	 * Record bytes sent and wait until more may be sent.
+	 */
+	public void send(long bytes) throws InterruptedIOException {
+	    TokenBucket.pause(chargeSend(bytes));
+	}
+
+	/**
+	 * Record bytes received and wait until more may be received.
+	 */
+	public void receive(long bytes) throws InterruptedIOException {
+	    TokenBucket.pause(chargeReceive(bytes));
+	}
+
+	private long charge(TokenBucket connection, TokenBucket[] classes,
+			    TokenBucket global, long bytes) {
+	    long rate = connectionRate;
+	    if(connection.getRate() != rate) {
+		connection.setRate(rate);
+	    }
+	    long wait = connection.charge(bytes);
+	    wait = Math.max(wait, classes[trafficClass.ordinal()].charge(bytes));
+	    return Math.max(wait, global.charge(bytes));
+	}
+    }
+}
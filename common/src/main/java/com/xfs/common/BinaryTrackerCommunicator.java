@@ -0,0 +1,252 @@
+package com.xfs.common;
+
+import java.io.*;
+
+/**
+ * Implements communication between peer and tracking server with the binary
+ * protocol. Every message is built with a MessageWriter and sent with a
+ * varint length header, so messages are never split or parsed as text and
+ * file names may contain any character. The message types and their fields
+ * are as follows:
+ *    -Register (peer -> tracking server):
+ *         REGISTER machID port count filename...
+ *    -UpdateList (peer -> tracking server):
+ *         UPDATE_LIST machID count filename...
+ *    -UpdateDelta (peer -> tracking server):
+ *         UPDATE_DELTA machID baseVersion count added... count removed...
+ *    -Delta reply (tracking server -> peer):
+ *         DELTA_REPLY applied
+ *    -Heartbeat (peer -> tracking server):
+ *         HEARTBEAT machID
+ *    -Heartbeat reply (tracking server -> peer):
+ *         HEARTBEAT_REPLY renewed
+ *    -Find (peer -> tracking server):
+ *         FIND filename
+ *    -Peer list (tracking server -> peer):
+ *         PEER_LIST count (id port ip)...
+ * where machID, port, count, baseVersion, applied and renewed (1 or 0) are
+ * varints
+ * and filename, added, removed, id and ip are strings. The types of requests are the action codes of ServerAction.
+ */
+public class BinaryTrackerCommunicator implements TrackingServerCommunicator {
+    /**
+     * Type of the reply to a find request
+     */
+    static final int PEER_LIST = 16;
+
+    /**
+     * Type of the reply to an update delta request
+     */
+    static final int DELTA_REPLY = 17;
+
+    /**
+     * Type of the reply to a heartbeat
+     */
+    static final int HEARTBEAT_REPLY = 18;
+
+    /**
+     * Register the client with the tracking server at boot time. Send the
+     * end point information and the list of files.
+     */
+    public void register(SocketWrapper sock, String[] fileList, int machID,
+			 int peerPort) throws IOException {
+	MessageWriter msg = new MessageWriter(ServerAction.REGISTER,
+					      estimateLength(fileList));
+	msg.writeVarLong(machID).writeVarLong(peerPort);
+	writeFileList(msg, fileList);
+	sock.sendMessage(msg);
+	sock.close();
+    }
+
+    /**
+     * Send tracking server an updated list of local files.
+     */
+    public void updateList(SocketWrapper sock, String[] fileList, int machID)
+	throws IOException {
+	MessageWriter msg = new MessageWriter(ServerAction.UPDATE_LIST,
+					      estimateLength(fileList));
+	msg.writeVarLong(machID);
+	writeFileList(msg, fileList);
+	sock.sendMessage(msg);
+	sock.close();
+    }
+
+    /**
+     * Send tracking server the files added and removed since a version of
+     * its list.
+     * @return true if the tracking server applied the change
+     */
+    public boolean updateDelta(SocketWrapper sock, String[] added,
+			       String[] removed, long baseVersion, int machID)
+	throws IOException {
+	MessageWriter msg = new MessageWriter(
+	    ServerAction.UPDATE_DELTA,
+	    estimateLength(added) + estimateLength(removed));
+	msg.writeVarLong(machID).writeVarLong(baseVersion);
+	writeFileList(msg, added);
+	writeFileList(msg, removed);
+	sock.sendMessage(msg);
+	byte[] data = sock.receiveMessage();
+	sock.close();
+	if(data == null) {
+	    throw new EOFException("No reply to update delta");
+	}
+	MessageReader reader = new MessageReader(data);
+	if(reader.getType() != DELTA_REPLY) {
+	    throw new IOException("Unexpected reply type " + reader.getType());
+	}
+	return reader.readVarLong() == 1;
+    }
+
+    /**
+     * Renew this peer's lease with the tracking server.
+     * @return false if the tracking server does not know this peer
+     */
+    public boolean heartbeat(SocketWrapper sock, int machID)
+	throws IOException {
+	sock.sendMessage(new MessageWriter(ServerAction.HEARTBEAT)
+			 .writeVarLong(machID));
+	byte[] data = sock.receiveMessage();
+	sock.close();
+	if(data == null) {
+	    throw new EOFException("No reply to heartbeat");
+	}
+	MessageReader reader = new MessageReader(data);
+	if(reader.getType() != HEARTBEAT_REPLY) {
+	    throw new IOException("Unexpected reply type " + reader.getType());
+	}
+	return reader.readVarLong() == 1;
+    }
+
+    /**
+     * Ask tracking server for a list of peers that can provide a certain file
+     * @return list of peers with file, or null if no peer has it
+     */
+    public Peer[] find(SocketWrapper sock, String filename) throws IOException {
+	sock.sendMessage(new MessageWriter(ServerAction.FIND)
+			 .writeString(filename));
+	byte[] data = sock.receiveMessage();
+	sock.close();
+	if(data == null) {
+	    return null;
+	}
+	MessageReader reader = new MessageReader(data);
+	if(reader.getType() != PEER_LIST) {
+	    throw new IOException("Unexpected reply type " + reader.getType());
+	}
+	int count = reader.readCount(3);
+	if(count == 0) {
+	    return null;
+	}
+	Peer[] peers = new Peer[count];
+	for(int i = 0; i < count; i++) {
+	    String id = reader.readString();
+	    int port = reader.readVarInt();
+	    peers[i] = new Peer(id, port, reader.readString());
+	}
+	return peers;
+    }
+
+    /**
+     * Interpret a message from a peer.
+     * @return A ServerAction object that defines an action and other fields
+     * associated with that action.
+     */
+    public ServerAction processRequest(SocketWrapper sock) throws IOException {
+	byte[] data = sock.receiveMessage();
+	if(data == null) {
+	    throw new EOFException("Connection closed");
+	}
+	MessageReader reader = new MessageReader(data);
+	ServerAction action = new ServerAction(reader.getType());
+	switch(reader.getType()) {
+	case ServerAction.REGISTER:
+	    action.setClientID(Long.toString(reader.readVarLong()));
+	    action.setPeerPort(reader.readVarInt());
+	    action.setFileList(readFileList(reader));
+	    return action;
+	case ServerAction.FIND:
+	    action.setFilename(reader.readString());
+	    return action;
+	case ServerAction.UPDATE_LIST:
+	    action.setClientID(Long.toString(reader.readVarLong()));
+	    action.setFileList(readFileList(reader));
+	    return action;
+	case ServerAction.UPDATE_DELTA:
+	    action.setClientID(Long.toString(reader.readVarLong()));
+	    action.setBaseVersion(reader.readVarLong());
+	    action.setFileList(readFileList(reader));
+	    action.setRemovedList(readFileList(reader));
+	    return action;
+	case ServerAction.HEARTBEAT:
+	    action.setClientID(Long.toString(reader.readVarLong()));
+	    return action;
+	default:
+	    throw new IOException("Unknown request type " + reader.getType());
+	}
+    }
+
+    /**
+     * Send a list of peers to a peer. A null list is sent as an empty list.
+     */
+    public void sendPeerList(SocketWrapper sock, Peer[] peerList)
+	throws IOException {
+	MessageWriter msg = new MessageWriter(PEER_LIST);
+	if(peerList == null) {
+	    msg.writeVarLong(0);
+	} else {
+	    msg.writeVarLong(peerList.length);
+	    for(Peer peer : peerList) {
+		msg.writeString(peer.getID()).writeVarLong(peer.getPort())
+		    .writeString(peer.getAddress());
+	    }
+	}
+	sock.sendMessage(msg);
+    }
+
+    /**
+     * Tell a peer whether its delta was applied.
+     */
+    public void sendDeltaReply(SocketWrapper sock, boolean applied)
+	throws IOException {
+	sock.sendMessage(new MessageWriter(DELTA_REPLY)
+			 .writeVarLong(applied ? 1 : 0));
+    }
+
+    /**
+     * Tell a peer whether its lease was renewed.
+     */
+    public void sendHeartbeatReply(SocketWrapper sock, boolean renewed)
+	throws IOException {
+	sock.sendMessage(new MessageWriter(HEARTBEAT_REPLY)
+			 .writeVarLong(renewed ? 1 : 0));
+    }
+
+    private static void writeFileList(MessageWriter msg, String[] fileList) {
+	msg.writeVarLong(fileList.length);
+	for(String filename : fileList) {
+	    msg.writeString(filename);
+	}
+    }
+
+    private static String[] readFileList(MessageReader reader)
+	throws IOException {
+	String[] fileList = new String[reader.readCount(1)];
+	for(int i = 0; i < fileList.length; i++) {
+	    fileList[i] = reader.readString();
+	}
+	return fileList;
+    }
+
+    /**
+     * Rough length of a message listing files, so the message buffer is not
+     * grown many times for a large share.
+     */
+    private static int estimateLength(String[] fileList) {
+	long length = 32;
+	for(String filename : fileList) {
+	    length += filename.length() + 2;
+	}
+	return (int)Math.min(length, Integer.MAX_VALUE - 8);
+    }
+}
@@ -0,0 +1,168 @@
+package com.xfs.common;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the handler of each accepted connection. Handlers keep using blocking
+ * sockets, and the executor decides what they run on:
+ *    platform -> a platform thread per connection, reused between
+ *                connections once its handler ends
+ *    virtual  -> a virtual thread per connection, so very many blocked
+ *                handlers cost little memory and no native threads. Needs a
+ *                runtime with virtual threads. Elsewhere platform threads are
+ *                used instead.
+ * A limit on concurrent handlers can be set for either mode. When the limit
+ * is reached, execute blocks, so the accepting thread stops taking
+ * connections and new ones wait in the listen backlog. Shutting down stops
+ * new handlers and waits for running ones to finish.
+ */
+public class ConnectionExecutor {
+    public enum Mode { PLATFORM, VIRTUAL }
+
+    /**
+     * Time in milliseconds running handlers are given to finish when a
+     * server shuts down
+     */
+    public static final long SHUTDOWN_GRACE = 10 * 1000;
+
+    /**
+     * How long execute waits for a permit at a time before checking whether
+     * the executor was shut down, in milliseconds
+     */
+    private static final long PERMIT_WAIT = 100;
+
+    private final Mode mode;
+    private final ExecutorService executor;
+
+    /**
+     * Permits for running handlers, or null if concurrency is not limited
+     */
+    private final Semaphore permits;
+
+    /**
+     * @param mode Requested mode. VIRTUAL falls back to PLATFORM when the
+     * runtime has no virtual threads.
+     * @param maxConcurrent Most handlers running at once, or 0 for no limit
+     * @param name Prefix of the names of platform threads
+     */
+    public ConnectionExecutor(Mode mode, int maxConcurrent, String name) {
+	ExecutorService virtual = mode == Mode.VIRTUAL ?
+	    newVirtualThreadExecutor() : null;
+	if(virtual != null) {
+	    this.mode = Mode.VIRTUAL;
+	    this.executor = virtual;
+	} else {
+	    this.mode = Mode.PLATFORM;
+	    this.executor = Executors.newCachedThreadPool(namedThreads(name));
+	}
+	this.permits = maxConcurrent > 0 ? new Semaphore(maxConcurrent) : null;
+    }
+
+    /**
+     * Create an executor configured by system properties:
+     *    xfs.executor                -> platform or virtual, platform by
+     *                                   default
+     *    xfs.executor.maxConcurrent  -> most handlers running at once, no
+     *                                   limit by default
+     */
+    public static ConnectionExecutor fromSystemProperties(String name) {
+	Mode mode = "virtual".equalsIgnoreCase(
+	    System.getProperty("xfs.executor")) ? Mode.VIRTUAL : Mode.PLATFORM;
+	return new ConnectionExecutor(mode,
+				      Integer.getInteger("xfs.executor.maxConcurrent", 0),
+				      name);
+    }
+
+    /**
+     * Mode in use, which is PLATFORM if virtual threads were requested but
+     * are not available
+     */
+    public Mode getMode() {
+	return this.mode;
+    }
+
+    /**
+     * Run a handler, waiting first for a running one to finish if the limit
+     * is reached.
+     * @throws RejectedExecutionException Thrown after shutdown, including a
+     * shutdown while waiting.
+     * @throws InterruptedException Thrown when interrupted while waiting.
+     */
+    public void execute(final Runnable task) throws InterruptedException {
+	if(executor.isShutdown()) {
+	    throw new RejectedExecutionException("Executor is shut down");
+	}
+	if(permits == null) {
+	    executor.execute(task);
+	    return;
+	}
+	while(!permits.tryAcquire(PERMIT_WAIT, TimeUnit.MILLISECONDS)) {
+	    if(executor.isShutdown()) {
+		throw new RejectedExecutionException("Executor is shut down");
+	    }
+	}
+	try {
+	    executor.execute(new Runnable() {
+		    @Override public void run() {
+			try {
+			    task.run();
+			} finally {
+			    permits.release();
+			}
+		    }
+		});
+	} catch(RejectedExecutionException e) {
+	    permits.release();
+	    throw e;
+	}
+    }
+
+    /**
+     * Stop accepting handlers and wait for running ones to finish. Handlers
+     * still running when the grace period ends are interrupted.
+     * @return true if every handler finished within the grace period
+     */
+    public boolean shutdown(long graceMillis) throws InterruptedException {
+	executor.shutdown();
+	if(executor.awaitTermination(graceMillis, TimeUnit.MILLISECONDS)) {
+	    return true;
+	}
+	executor.shutdownNow();
+	return false;
+    }
+
+    public boolean isShutdown() {
+	return executor.isShutdown();
+    }
+
+    /**
+     * Look up Executors.newVirtualThreadPerTaskExecutor, which only exists
+     * on runtimes with virtual threads.
+     * @return The executor or null if virtual threads are not available
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+	try {
+	    Method factory =
+		Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+	    return (ExecutorService)factory.invoke(null);
+	} catch(ReflectiveOperationException | RuntimeException e) {
+	    return null;
+	}
+    }
+
+    private static ThreadFactory namedThreads(final String name) {
+	return new ThreadFactory() {
+	    private int count;
+
+	    @Override public synchronized Thread newThread(Runnable task) {
+		return new Thread(task, name + "-" + count++);
+	    }
+	};
+    }
+}
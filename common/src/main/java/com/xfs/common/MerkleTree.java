@@ -0,0 +1,89 @@
+package com.xfs.common;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Hash tree over the pieces of a file. Each leaf is the SHA-1 checksum of one
+ * piece, which is also the checksum a range request for that piece returns,
+ * so a piece can be checked against its leaf as soon as it arrives. Interior
+ * nodes are the SHA-1 of a 0x01 byte followed by their two children, and a
+ * node without a sibling is carried up to the next level unchanged. Leaves
+ * are kept packed one after another in a single array, the same way they are
+ * sent between peers.
+ */
+public class MerkleTree {
+    /**
+     * Length of every hash in the tree in bytes
+     */
+    public static final int HASH_LENGTH = 20;
+
+    /**
+     * Prefix of interior nodes, so an interior node can never be mistaken for
+     * the checksum of a piece
+     */
+    private static final byte INTERIOR = 0x01;
+
+    private MerkleTree() {
+    }
+
+    /**
+     * Compute the root hash of a tree.
+     * @param leaves Checksums of the pieces, packed in order
+     * @throws IllegalArgumentException Thrown when the array does not hold a
+     * whole number of hashes.
+     */
+    public static byte[] root(byte[] leaves) {
+	if(leaves.length % HASH_LENGTH != 0) {
+	    throw new IllegalArgumentException("Leaves are " + leaves.length +
+					       " bytes long");
+	}
+	MessageDigest digest = newDigest();
+	if(leaves.length == 0) {
+	    return digest.digest();
+	}
+	byte[] level = leaves.clone();
+	int count = leaves.length / HASH_LENGTH;
+	while(count > 1) {
+	    int parents = 0;
+	    for(int i = 0; i < count; i += 2) {
+		if(i + 1 < count) {
+		    digest.update(INTERIOR);
+		    digest.update(level, i * HASH_LENGTH, 2 * HASH_LENGTH);
+		    try {
+			digest.digest(level, parents * HASH_LENGTH, HASH_LENGTH);
+		    } catch(DigestException e) {
+			throw new IllegalStateException(e);
+		    }
+		} else {
+		    System.arraycopy(level, i * HASH_LENGTH,
+				     level, parents * HASH_LENGTH, HASH_LENGTH);
+		}
+		parents++;
+	    }
+	    count = parents;
+	}
+	return Arrays.copyOf(level, HASH_LENGTH);
+    }
+
+    /**
+     * Check that a list of leaves belongs to a root hash.
+     * @return true if the leaves produce the root
+     */
+    public static boolean verify(byte[] leaves, byte[] root) {
+	if(leaves.length % HASH_LENGTH != 0) {
+	    return false;
+	}
+	return MessageDigest.isEqual(root(leaves), root);
+    }
+
+    private static MessageDigest newDigest() {
+	try {
+	    return MessageDigest.getInstance("SHA-1");
+	} catch(NoSuchAlgorithmException e) {
+	    throw new IllegalStateException(e);
+	}
+    }
+}
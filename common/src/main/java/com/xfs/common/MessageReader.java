@@ -0,0 +1,97 @@
+package com.xfs.common;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the fields of a message of the binary protocol, in the order they
+ * were written by a MessageWriter. Every read checks that the field fits in
+ * the message, so a truncated or malformed message is reported as an
+ * IOException rather than read past its end.
+ */
+public class MessageReader {
+    private final byte[] data;
+    private int position;
+    private final int type;
+
+    /**
+     * Read the version and type of a message.
+     * @throws IOException Thrown when the message is from a different version
+     * of the protocol or is malformed.
+     */
+    public MessageReader(byte[] data) throws IOException {
+	this.data = data;
+	long version = readVarLong();
+	if(version != MessageWriter.VERSION) {
+	    throw new IOException("Unsupported protocol version " + version);
+	}
+	this.type = readVarInt();
+    }
+
+    public int getType() {
+	return this.type;
+    }
+
+    public long readVarLong() throws IOException {
+	long value = 0;
+	for(int shift = 0; shift < 64; shift += 7) {
+	    if(position >= data.length) {
+		throw new IOException("Message ended in the middle of a number");
+	    }
+	    byte b = data[position++];
+	    value |= (long)(b & 0x7F) << shift;
+	    if((b & 0x80) == 0) {
+		return value;
+	    }
+	}
+	throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Read a varint that must fit in a non-negative int.
+     */
+    public int readVarInt() throws IOException {
+	long value = readVarLong();
+	if(value < 0 || value > Integer.MAX_VALUE) {
+	    throw new IOException("Value out of range: " + value);
+	}
+	return (int)value;
+    }
+
+    public String readString() throws IOException {
+	int length = readLength();
+	String value = new String(data, position, length, StandardCharsets.UTF_8);
+	position += length;
+	return value;
+    }
+
+    public byte[] readBytes() throws IOException {
+	int length = readLength();
+	byte[] value = new byte[length];
+	System.arraycopy(data, position, value, 0, length);
+	position += length;
+	return value;
+    }
+
+    /**
+     * Read a count of items that follow, each taking at least minItemLength
+     * bytes. A count that cannot fit in the rest of the message is rejected
+     * before the caller allocates anything for it.
+     */
+    public int readCount(int minItemLength) throws IOException {
+	int count = readVarInt();
+	if((long)count * minItemLength > data.length - position) {
+	    throw new IOException("Count " + count + " exceeds message length");
+	}
+	return count;
+    }
+
+    private int readLength() throws IOException {
+	int length = readVarInt();
+	if(length > data.length - position) {
+	    throw new IOException("Field of " + length +
+				  " bytes exceeds message length");
+	}
+	return length;
+    }
+}
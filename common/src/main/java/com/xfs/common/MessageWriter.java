@@ -0,0 +1,108 @@
+package com.xfs.common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Builds a message of the binary protocol. A message starts with the
+ * protocol version and the message type, followed by the fields of that
+ * type. Integers are written as varints: seven bits per byte, low bits first,
+ * with the high bit set on every byte but the last. Strings are written as
+ * the varint length of their UTF-8 bytes followed by the bytes, so a field
+ * may hold any character, including the "::" that separates fields in the
+ * text protocols.
+ */
+public class MessageWriter {
+    /**
+     * Version of the binary protocol written in front of every message
+     */
+    public static final int VERSION = 1;
+
+    private byte[] buffer;
+    private int length;
+
+    public MessageWriter(int type) {
+	this(type, 64);
+    }
+
+    /**
+     * @param capacity Expected length of the message. The buffer grows if the
+     * message turns out longer.
+     */
+    public MessageWriter(int type, int capacity) {
+	buffer = new byte[Math.max(capacity, 16)];
+	writeVarLong(VERSION);
+	writeVarLong(type);
+    }
+
+    /**
+     * Write an integer as a varint. Negative values are written as their
+     * unsigned 64-bit form and take ten bytes.
+     */
+    public MessageWriter writeVarLong(long value) {
+	ensureCapacity(10);
+	while((value & ~0x7FL) != 0) {
+	    buffer[length++] = (byte)((value & 0x7F) | 0x80);
+	    value >>>= 7;
+	}
+	buffer[length++] = (byte)value;
+	return this;
+    }
+
+    /**
+     * Write a string as its length in bytes followed by its UTF-8 bytes. A
+     * null string is written as an empty string.
+     */
+    public MessageWriter writeString(String value) {
+	if(value == null) {
+	    return writeVarLong(0);
+	}
+	return writeBytes(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Write an array of bytes preceded by its length.
+     */
+    public MessageWriter writeBytes(byte[] value) {
+	writeVarLong(value.length);
+	ensureCapacity(value.length);
+	System.arraycopy(value, 0, buffer, length, value.length);
+	length += value.length;
+	return this;
+    }
+
+    /**
+     * Buffer holding the message. Only the first length() bytes belong to the
+     * message.
+     */
+    public byte[] array() {
+	return buffer;
+    }
+
+    public int length() {
+	return length;
+    }
+
+    /**
+     * Write the message to a stream preceded by its length as a varint, the
+     * way messages are framed on a connection.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+	long remaining = length;
+	while((remaining & ~0x7FL) != 0) {
+	    out.write((int)((remaining & 0x7F) | 0x80));
+	    remaining >>>= 7;
+	}
+	out.write((int)remaining);
+	out.write(buffer, 0, length);
+    }
+
+    private void ensureCapacity(int extra) {
+	if(length + extra > buffer.length) {
+	    buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2,
+						    length + extra));
+	}
+    }
+}
@@ -4,6 +4,17 @@ package com.xfs.common;
  * Representation of a peer in the network.
  */
 public class Peer {
+    /**
+     * Load of a peer that is down or failed a request
+     */
+    public static final int LOAD_DOWN = -1;
+
+    /**
+     * Load of a peer that did not answer a load probe in time. The peer may
+     * be up, so it is still used, after the peers whose load is known.
+     */
+    public static final int LOAD_UNKNOWN = -2;
+
     /**
      * Port and ip address at which the peer listens for other peers
      */
@@ -21,9 +32,15 @@ public class Peer {
     private int latency;
 
     /**
-     * Current load at peer
+     * Current load at peer, or LOAD_DOWN or LOAD_UNKNOWN
      */
     private int load;  // ms?
+
+    /**
+     * Bytes per second the peer delivered recently, or 0 if unknown. Known
+     * only to the local peer and never sent to the tracking server.
+     */
+    private double throughput;
     
     public Peer(String ID, int port, String ip) {
 	this.id = ID;
@@ -51,6 +68,10 @@ public class Peer {
 	return this.load;
     }
 
+    public double getThroughput() {
+	return this.throughput;
+    }
+
     public String getInfo() {
 	return id + "::" + port + "::" + ip;
     }
@@ -63,6 +84,10 @@ public class Peer {
 	this.load = load;
     }
 
+    public void setThroughput(double throughput) {
+	this.throughput = throughput;
+    }
+
     public String toString() {
 	return port + ":" + ip + ":" + id;
     }
@@ -2,22 +2,47 @@ package com.xfs.common;
 
 /**
  * Data structure representing a possible action a peer may take.
- * The two actions defined are: send load and send download.
+ * The actions defined are: send load, send download, send stream, send file
+ * info, send range, send hashes, send manifest and send pong. For send file info and
+ * send hashes the length is the piece size the checksums are computed for.
+ * For send stream and send range the encodings are the compression methods
+ * the requesting peer accepts, or null if it did not negotiate compression.
  */
 public class PeerAction {
     public static final int SEND_LOAD = 0,
-	                    SEND_DOWNLOAD = 1;
+	                    SEND_DOWNLOAD = 1,
+	                    SEND_STREAM = 2,
+	                    SEND_INFO = 3,
+	                    SEND_RANGE = 4,
+	                    SEND_HASHES = 5,
+	                    SEND_MANIFEST = 6,
+	                    SEND_PONG = 7;
     
     private int action;
     private String filename;
+    private long offset;
+    private long length;
+    private String encodings;
 
     public PeerAction(int action) {
 	this(action, "");
     }
 
     public PeerAction(int action, String filename) {
+	this(action, filename, 0, 0);
+    }
+
+    public PeerAction(int action, String filename, long offset, long length) {
+	this(action, filename, offset, length, null);
+    }
+
+    public PeerAction(int action, String filename, long offset, long length,
+		      String encodings) {
 	this.action = action;
 	this.filename = filename;
+	this.offset = offset;
+	this.length = length;
+	this.encodings = encodings;
     }
 
     public int getAction() {
@@ -28,6 +53,18 @@ public class PeerAction {
 	return this.filename;
     }
 
+    public long getOffset() {
+	return this.offset;
+    }
+
+    public long getLength() {
+	return this.length;
+    }
+
+    public String getEncodings() {
+	return this.encodings;
+    }
+
     @Override
     public boolean equals(Object object) {
 	if(object == null) {
@@ -37,7 +74,11 @@ public class PeerAction {
 	} else {
 	    PeerAction peerAction = (PeerAction)object;
 	    return this.action == peerAction.action &&
-		this.filename.equals(peerAction.filename);
+		this.filename.equals(peerAction.filename) &&
+		this.offset == peerAction.offset &&
+		this.length == peerAction.length &&
+		(this.encodings == null ? peerAction.encodings == null :
+		 this.encodings.equals(peerAction.encodings));
 	}
     }
 }
@@ -0,0 +1,25 @@
+package com.xfs.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.nio.channels.FileChannel;
+
+/**
+ * The side of a connection a request is served on: the request is read from
+ * it and the reply sent to it. Serving a request needs nothing else, so a
+ * request can be answered into a buffer as well as over a socket.
+ */
+public interface ReplySocket {
+    public void send(String data);
+    public void sendFile(byte[] data) throws IOException;
+    public void sendStream(InputStream data, long length) throws IOException;
+    public void sendStream(FileChannel file, long position, long count)
+	throws IOException;
+    public void sendDeflated(FileChannel file, long position, long count)
+	throws IOException;
+    public void sendMessage(MessageWriter message) throws IOException;
+    public String receive() throws IOException;
+    public byte[] receiveMessage() throws IOException;
+    public InetAddress getInetAddress();
+}
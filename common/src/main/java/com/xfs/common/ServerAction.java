@@ -2,18 +2,23 @@ package com.xfs.common;
 
 /**
  * Data structure to define the actions that the tracking server may take.
- * The operations defined are: register, find, and update list. The fields
- * of this class correspond to information needed for each action.
+ * The operations defined are: register, find, update list, update delta and
+ * heartbeat.
+ * The fields of this class correspond to information needed for each action.
  */
 public class ServerAction {
     public static final int REGISTER = 0,
 	FIND = 1,
-	UPDATE_LIST = 2;
+	UPDATE_LIST = 2,
+	UPDATE_DELTA = 3,
+	HEARTBEAT = 4;
 
     private int action;
     private int peerPort;
     private String clientID;
     private String[] fileList;
+    private String[] removedList;
+    private long baseVersion;
     private String filename;
 
     public ServerAction(int action) {
@@ -36,10 +41,28 @@ public class ServerAction {
 	return this.clientID;
     }
 
+    /**
+     * Files of a register or update list request, or the files added by an
+     * update delta request
+     */
     public String[] getFileList() {
 	return this.fileList;
     }
 
+    /**
+     * Files removed by an update delta request
+     */
+    public String[] getRemovedList() {
+	return this.removedList;
+    }
+
+    /**
+     * Version of the file list an update delta request changes
+     */
+    public long getBaseVersion() {
+	return this.baseVersion;
+    }
+
     public void setPeerPort(int peerPort) {
 	this.peerPort = peerPort;
     }
@@ -52,6 +75,14 @@ public class ServerAction {
 	this.fileList = fileList;
     }
 
+    public void setRemovedList(String[] removedList) {
+	this.removedList = removedList;
+    }
+
+    public void setBaseVersion(long baseVersion) {
+	this.baseVersion = baseVersion;
+    }
+
     public void setFilename(String filename) {
 	this.filename = filename;
     }
@@ -1,14 +1,20 @@
 package com.xfs.common;
 
 import java.io.IOException;
-import java.net.InetAddress;
+import java.io.OutputStream;
 
-public interface SocketWrapper {
+public interface SocketWrapper extends ReplySocket {
     public void connect(String ip, int port) throws IOException;
-    public void send(String data);
-    public void sendFile(byte[] data) throws IOException;
-    public String receive() throws IOException;
     public byte[] receiveFile() throws IOException;
+    public long receiveStream(OutputStream dest) throws IOException;
+    public long receiveInflated(OutputStream dest) throws IOException;
+    public void setTimeout(int millis) throws IOException;
     public void close() throws IOException;
-    public InetAddress getInetAddress();
+
+    /**
+     * Shut the connection down from another thread, so a read blocked on it
+     * fails with an IOException. The thread using the connection must still
+     * close it.
+     */
+    public void abort() throws IOException;
 }
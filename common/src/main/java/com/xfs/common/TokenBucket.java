@@ -0,0 +1,107 @@
+package com.xfs.common;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Limits the rate at which bytes are sent or received. Tokens accrue at the
+ * rate, one per byte, up to the burst size. Bytes are charged against the
+ * tokens when they are sent or received, and a charge larger than the
+ * tokens left puts the bucket in debt. The caller then waits until the debt
+ * is paid off, so callers sharing a bucket are paced in the order they
+ * charged it. A rate of 0 means no limit. The rate can be changed at any
+ * time.
+ */
+public class TokenBucket {
+    private static final long NANOS_PER_SECOND = 1000 * 1000 * 1000;
+
+    /**
+     * Rate in bytes per second
+     */
+    private long rate;
+
+    /**
+     * Most tokens the bucket holds
+     */
+    private long burst;
+
+    /**
+     * Tokens in the bucket. Negative while the bucket is in debt.
+     */
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * Create a bucket whose burst size is a tenth of a second at the rate.
+     * @param rate Bytes per second or 0 for no limit
+     */
+    public TokenBucket(long rate) {
+	setRate(rate);
+    }
+
+    /**
+     * Change the rate. The burst size becomes a tenth of a second at the new
+     * rate. A bucket that had no limit starts full.
+     * @param rate Bytes per second or 0 for no limit
+     */
+    public synchronized void setRate(long rate) {
+	refill();
+	boolean wasUnlimited = this.rate == 0;
+	this.rate = Math.max(0, rate);
+	this.burst = Math.max(1, this.rate / 10);
+	this.tokens = wasUnlimited ? burst : Math.min(tokens, burst);
+    }
+
+    public synchronized long getRate() {
+	return this.rate;
+    }
+
+    /**
+     * Charge bytes against the bucket without waiting.
+     * @return Nanoseconds the caller should wait before sending or receiving
+     * more, or 0 if the bucket is not in debt
+     */
+    public synchronized long charge(long bytes) {
+	if(rate == 0) {
+	    return 0;
+	}
+	refill();
+	tokens -= bytes;
+	if(tokens >= 0) {
+	    return 0;
+	}
+	return (long)Math.ceil(-tokens * NANOS_PER_SECOND / rate);
+    }
+
+    /**
+     * Charge bytes against the bucket and wait until its debt is paid off.
+     * @throws InterruptedIOException Thrown when interrupted while waiting.
+     */
+    public void take(long bytes) throws InterruptedIOException {
+	pause(charge(bytes));
+    }
+
+    /**
+     * Wait for a number of nanoseconds returned by charge.
+     * @throws InterruptedIOException Thrown when interrupted while waiting.
+     */
+    public static void pause(long nanos) throws InterruptedIOException {
+	if(nanos <= 0) {
+	    return;
+	}
+	try {
+	    Thread.sleep(nanos / 1000000, (int)(nanos % 1000000));
+	} catch(InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new InterruptedIOException("Interrupted while rate limited");
+	}
+    }
+
+    private void refill() {
+	long now = System.nanoTime();
+	if(rate > 0) {
+	    tokens = Math.min(burst, tokens +
+			      (double)(now - lastRefill) * rate / NANOS_PER_SECOND);
+	}
+	lastRefill = now;
+    }
+}
@@ -18,6 +18,26 @@ public interface TrackingServerCommunicator {
     public void updateList(SocketWrapper sock, String[] fileList, int machID)
 	throws IOException;
 
+    /**
+     * Send the tracking server only the files added and removed since a
+     * version of the list it has. The full list sent by register or
+     * updateList is version 0 and each applied delta adds one.
+     * @param baseVersion Version of the list the change applies to
+     * @return true if the change was applied, false if the tracking server
+     * has another version of the list and the full list must be sent again
+     */
+    public boolean updateDelta(SocketWrapper sock, String[] added,
+			       String[] removed, long baseVersion, int machID)
+	throws IOException;
+
+    /**
+     * Renew this peer's lease with the tracking server.
+     * @return false if the tracking server does not know this peer, which
+     * must then register again
+     */
+    public boolean heartbeat(SocketWrapper sock, int machID)
+	throws IOException;
+
     /**
      * Request a list of peers that can provide a certain file.
      */
@@ -33,5 +53,18 @@ public interface TrackingServerCommunicator {
     /**
      * Send a list of peers to a peer.
      */
-    public void sendPeerList(SocketWrapper sock, Peer[] peerList);
+    public void sendPeerList(SocketWrapper sock, Peer[] peerList)
+	throws IOException;
+
+    /**
+     * Tell a peer whether its delta was applied or the full list is needed.
+     */
+    public void sendDeltaReply(SocketWrapper sock, boolean applied)
+	throws IOException;
+
+    /**
+     * Tell a peer whether its lease was renewed or it must register again.
+     */
+    public void sendHeartbeatReply(SocketWrapper sock, boolean renewed)
+	throws IOException;
 }
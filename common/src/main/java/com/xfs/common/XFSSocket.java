@@ -4,34 +4,101 @@ import java.io.*;
 import java.net.*;
 import java.util.Arrays;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * Provide interface for sending and receiving messages and files.
+ * Text messages and binary data share one buffered stream in each direction,
+ * so a peer may read a line and then a stream on the same connection without
+ * losing bytes to a read-ahead buffer. Compressed data is sent as a series
+ * of frames, each with an 8-byte length header, ended by an empty frame, so
+ * the sender does not need to know the compressed length in advance.
+ * Messages of the binary protocol are sent with a varint length header.
+ * A socket with a throttle paces file data and binary messages in both
+ * directions to the throttle's rates. Lines of text are not paced.
  */
 public class XFSSocket implements SocketWrapper {
+    /**
+     * Size of the buffer used to move data between the socket and local
+     * streams.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Longest binary message accepted. Guards against allocating a huge
+     * buffer for a corrupt length header.
+     */
+    private static final int MAX_MESSAGE_LENGTH = 256 * 1024 * 1024;
+
     private Socket sock;
     private PrintWriter out;
-    private BufferedReader in;
+    private DataOutputStream dataOut;
+    private DataInputStream dataIn;
+
+    /**
+     * Buffer reused by every stream transfer on this socket
+     */
+    private byte[] buffer;
+
+    /**
+     * Buffer and compressors used by compressed transfers, created on first
+     * use
+     */
+    private byte[] codecBuffer;
+    private Deflater deflater;
+    private Inflater inflater;
+
+    /**
+     * Limits the rate of data on this socket, or null for no limit
+     */
+    private BandwidthLimiter.Throttle throttle;
 
     public XFSSocket() {
     }
 
     public XFSSocket(Socket sock) throws IOException {
 	this.sock = sock;
-	out = new PrintWriter(sock.getOutputStream());
-	in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+	openStreams();
     }
-    
+
     public XFSSocket(String ip, int port ) throws IOException {
 	sock = new Socket(ip, port);
-	out = new PrintWriter(sock.getOutputStream());
-	in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+	openStreams();
     }
-    
+
+    /**
+     * Connect, giving up after connectTimeout milliseconds. Zero waits
+     * forever.
+     * @throws SocketTimeoutException Thrown when the timeout expires.
+     */
+    public XFSSocket(String ip, int port, int connectTimeout)
+	throws IOException {
+	sock = new Socket();
+	try {
+	    sock.connect(new InetSocketAddress(ip, port), connectTimeout);
+	} catch(IOException e) {
+	    sock.close();
+	    throw e;
+	}
+	openStreams();
+    }
+
     public void connect(String ip, int port ) throws IOException {
 	sock = new Socket(ip, port);
-	out = new PrintWriter(sock.getOutputStream());
-	in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+	openStreams();
+    }
+
+    private void openStreams() throws IOException {
+	dataOut = new DataOutputStream(new BufferedOutputStream(
+	    sock.getOutputStream(), BUFFER_SIZE));
+	out = new PrintWriter(new OutputStreamWriter(dataOut));
+	dataIn = new DataInputStream(new BufferedInputStream(
+	    sock.getInputStream(), BUFFER_SIZE));
     }
 
     public void send(String data) {
@@ -40,44 +107,351 @@ public class XFSSocket implements SocketWrapper {
     }
 
     public void sendFile(byte[] data) throws IOException {
-	OutputStream outStream = this.sock.getOutputStream();
-	outStream.write(data);
-	outStream.flush();
+	if(throttle == null) {
+	    dataOut.write(data);
+	} else {
+	    for(int off = 0; off < data.length; off += BUFFER_SIZE) {
+		int length = Math.min(BUFFER_SIZE, data.length - off);
+		throttle.send(length);
+		dataOut.write(data, off, length);
+	    }
+	}
+	dataOut.flush();
+    }
+
+    /**
+     * Send exactly length bytes from a stream. The length is sent ahead of the
+     * data as an 8-byte header so the receiver knows where the data ends.
+     */
+    public void sendStream(InputStream data, long length) throws IOException {
+	byte[] buf = getBuffer();
+	dataOut.writeLong(length);
+	long remaining = length;
+	while(remaining > 0) {
+	    int bytesRead = data.read(buf, 0, (int)Math.min(buf.length, remaining));
+	    if(bytesRead < 0) {
+		throw new EOFException("Stream ended " + remaining +
+				       " bytes short");
+	    }
+	    throttleSend(bytesRead);
+	    dataOut.write(buf, 0, bytesRead);
+	    remaining -= bytesRead;
+	}
+	dataOut.flush();
+    }
+
+    /**
+     * Send count bytes of a file starting at position, framed the same way as
+     * sendStream. When the socket was opened through a SocketChannel the bytes
+     * are handed to the kernel with FileChannel.transferTo and never enter the
+     * Java heap, a buffer's worth at a time if the socket is throttled.
+     * Otherwise they are copied through the socket buffer.
+     */
+    public void sendStream(FileChannel file, long position, long count)
+	throws IOException {
+	dataOut.writeLong(count);
+	dataOut.flush();
+	SocketChannel channel = sock.getChannel();
+	long sent = 0;
+	if(channel != null) {
+	    long chunk = throttle == null ? count : BUFFER_SIZE;
+	    while(sent < count) {
+		long transferred = file.transferTo(position + sent,
+						   Math.min(chunk, count - sent),
+						   channel);
+		if(transferred <= 0 && position + sent >= file.size()) {
+		    throw new EOFException("File ended " + (count - sent) +
+					   " bytes short");
+		}
+		throttleSend(transferred);
+		sent += transferred;
+	    }
+	} else {
+	    ByteBuffer buf = ByteBuffer.wrap(getBuffer());
+	    while(sent < count) {
+		buf.clear();
+		buf.limit((int)Math.min(buf.capacity(), count - sent));
+		int bytesRead = file.read(buf, position + sent);
+		if(bytesRead < 0) {
+		    throw new EOFException("File ended " + (count - sent) +
+					   " bytes short");
+		}
+		throttleSend(bytesRead);
+		dataOut.write(buf.array(), 0, bytesRead);
+		sent += bytesRead;
+	    }
+	    dataOut.flush();
+	}
+    }
+
+    /**
+     * Compress count bytes of a file starting at position with deflate and
+     * send them as a series of frames ended by an empty frame.
+     */
+    public void sendDeflated(FileChannel file, long position, long count)
+	throws IOException {
+	if(deflater == null) {
+	    deflater = new Deflater(Deflater.BEST_SPEED);
+	}
+	deflater.reset();
+	ByteBuffer buf = ByteBuffer.wrap(getBuffer());
+	byte[] compressed = getCodecBuffer();
+	long sent = 0;
+	while(sent < count) {
+	    buf.clear();
+	    buf.limit((int)Math.min(buf.capacity(), count - sent));
+	    int bytesRead = file.read(buf, position + sent);
+	    if(bytesRead < 0) {
+		throw new EOFException("File ended " + (count - sent) +
+				       " bytes short");
+	    }
+	    deflater.setInput(buf.array(), 0, bytesRead);
+	    while(!deflater.needsInput()) {
+		writeFrame(compressed, deflater.deflate(compressed));
+	    }
+	    sent += bytesRead;
+	}
+	deflater.finish();
+	while(!deflater.finished()) {
+	    writeFrame(compressed, deflater.deflate(compressed));
+	}
+	dataOut.writeLong(0);
+	dataOut.flush();
+    }
+
+    private void writeFrame(byte[] data, int length) throws IOException {
+	if(length > 0) {
+	    throttleSend(length);
+	    dataOut.writeLong(length);
+	    dataOut.write(data, 0, length);
+	}
+    }
+
+    /**
+     * Send a message of the binary protocol, preceded by its length as a
+     * varint.
+     */
+    public void sendMessage(MessageWriter message) throws IOException {
+	throttleSend(message.length());
+	message.writeTo(dataOut);
+	dataOut.flush();
     }
 
+    /**
+     * Read a line of text. The line terminator is not included.
+     * @return The line or null if the connection was closed
+     */
     public String receive() throws IOException {
-	return in.readLine();
+	ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+	int b = dataIn.read();
+	if(b < 0) {
+	    return null;
+	}
+	while(b >= 0 && b != '\n') {
+	    line.write(b);
+	    b = dataIn.read();
+	}
+	byte[] bytes = line.toByteArray();
+	int length = bytes.length;
+	if(length > 0 && bytes[length-1] == '\r') {
+	    length--;
+	}
+	return new String(bytes, 0, length);
     }
 
     /**
-     * Receive an array of bytes. The max size of a file that can be received is
-     * 100MB. Any larger file will be cut down to 100MB. 
+     * Receive an array of bytes. Bytes are read until the other end closes
+     * the connection.
      */
     public byte[] receiveFile() throws IOException {
-	byte[] byteArray = new byte[100000000]; //max size 100MB
-	InputStream in = this.sock.getInputStream();
-	int bytesRead = in.read(byteArray, 0, byteArray.length);
-	System.out.println("First read: " + bytesRead);
-	int totalBytesRead = bytesRead;
-	do {
-	    bytesRead = in.read(byteArray, totalBytesRead, byteArray.length-totalBytesRead);
-	    if(bytesRead >= 0) {
-		totalBytesRead += bytesRead;
+	ByteArrayOutputStream fileBytes = new ByteArrayOutputStream();
+	byte[] buf = getBuffer();
+	int bytesRead;
+	while((bytesRead = dataIn.read(buf, 0, buf.length)) > -1) {
+	    throttleReceive(bytesRead);
+	    fileBytes.write(buf, 0, bytesRead);
+	}
+	dataIn.close();
+	return fileBytes.toByteArray();
+    }
+
+    /**
+     * Receive data sent with sendStream and write it to a stream through a
+     * fixed-size buffer.
+     * @return Number of bytes received
+     * @throws EOFException Thrown when the connection closes before all of
+     * the announced bytes arrive.
+     */
+    public long receiveStream(OutputStream dest) throws IOException {
+	byte[] buf = getBuffer();
+	long length = dataIn.readLong();
+	if(length < 0) {
+	    throw new IOException("Invalid stream length " + length);
+	}
+	long remaining = length;
+	while(remaining > 0) {
+	    int bytesRead = dataIn.read(buf, 0, (int)Math.min(buf.length, remaining));
+	    if(bytesRead < 0) {
+		throw new EOFException("Connection closed " + remaining +
+				       " bytes short");
+	    }
+	    throttleReceive(bytesRead);
+	    dest.write(buf, 0, bytesRead);
+	    remaining -= bytesRead;
+	}
+	return length;
+    }
+
+    /**
+     * Receive data sent with sendDeflated and write it to a stream as it is
+     * decompressed.
+     * @return Number of decompressed bytes written to dest
+     * @throws EOFException Thrown when the connection closes before the
+     * compressed data ends.
+     */
+    public long receiveInflated(OutputStream dest) throws IOException {
+	if(inflater == null) {
+	    inflater = new Inflater();
+	}
+	inflater.reset();
+	byte[] buf = getBuffer();
+	byte[] inflated = getCodecBuffer();
+	long total = 0;
+	long length;
+	while((length = dataIn.readLong()) != 0) {
+	    if(length < 0) {
+		throw new IOException("Invalid frame length " + length);
 	    }
-	} while(bytesRead > -1);
-	
-	in.close();
-	System.out.println("Read " + totalBytesRead);
-	return Arrays.copyOfRange(byteArray, 0, totalBytesRead);
+	    while(length > 0) {
+		int bytesRead = dataIn.read(buf, 0,
+					    (int)Math.min(buf.length, length));
+		if(bytesRead < 0) {
+		    throw new EOFException("Connection closed " + length +
+					   " bytes short");
+		}
+		length -= bytesRead;
+		throttleReceive(bytesRead);
+		inflater.setInput(buf, 0, bytesRead);
+		try {
+		    int inflatedLength;
+		    while((inflatedLength = inflater.inflate(inflated)) > 0) {
+			dest.write(inflated, 0, inflatedLength);
+			total += inflatedLength;
+		    }
+		} catch(DataFormatException e) {
+		    throw new IOException("Corrupt compressed data", e);
+		}
+	    }
+	}
+	if(!inflater.finished()) {
+	    throw new EOFException("Compressed data ended early");
+	}
+	return total;
+    }
+
+    /**
+     * Receive a message sent with sendMessage.
+     * @return The message or null if the connection was closed before it
+     * started
+     * @throws EOFException Thrown when the connection closes in the middle of
+     * the message.
+     */
+    public byte[] receiveMessage() throws IOException {
+	int b = dataIn.read();
+	if(b < 0) {
+	    return null;
+	}
+	long length = 0;
+	int shift = 0;
+	while(true) {
+	    length |= (long)(b & 0x7F) << shift;
+	    if((b & 0x80) == 0) {
+		break;
+	    }
+	    shift += 7;
+	    if(shift > 28 || (b = dataIn.read()) < 0) {
+		throw new IOException("Malformed message length");
+	    }
+	}
+	if(length > MAX_MESSAGE_LENGTH) {
+	    throw new IOException("Message of " + length + " bytes is too long");
+	}
+	byte[] message = new byte[(int)length];
+	dataIn.readFully(message);
+	throttleReceive(length);
+	return message;
+    }
+
+    /**
+     * Limit how long a read waits for data. A read that times out throws
+     * SocketTimeoutException. Zero waits forever.
+     */
+    public void setTimeout(int millis) throws IOException {
+	sock.setSoTimeout(millis);
+    }
+
+    /**
+     * Close only the underlying socket. The compressors are left to close,
+     * since the thread using this socket may be in the middle of a
+     * compressed transfer.
+     */
+    public void abort() throws IOException {
+	sock.close();
     }
 
     public void close() throws IOException {
+	if(deflater != null) {
+	    deflater.end();
+	    deflater = null;
+	}
+	if(inflater != null) {
+	    inflater.end();
+	    inflater = null;
+	}
 	sock.close();
-	in.close();
+	dataIn.close();
 	out.close();
     }
 
     public InetAddress getInetAddress() {
 	return sock.getInetAddress();
     }
+
+    /**
+     * Pace the data on this socket with a throttle, or stop pacing it if
+     * throttle is null.
+     */
+    public void setThrottle(BandwidthLimiter.Throttle throttle) {
+	this.throttle = throttle;
+    }
+
+    public BandwidthLimiter.Throttle getThrottle() {
+	return this.throttle;
+    }
+
+    private void throttleSend(long bytes) throws InterruptedIOException {
+	if(throttle != null) {
+	    throttle.send(bytes);
+	}
+    }
+
+    private void throttleReceive(long bytes) throws InterruptedIOException {
+	if(throttle != null) {
+	    throttle.receive(bytes);
+	}
+    }
+
+    private byte[] getBuffer() {
+	if(buffer == null) {
+	    buffer = new byte[BUFFER_SIZE];
+	}
+	return buffer;
+    }
+
+    private byte[] getCodecBuffer() {
+	if(codecBuffer == null) {
+	    codecBuffer = new byte[BUFFER_SIZE];
+	}
+	return codecBuffer;
+    }
 }
@@ -12,10 +12,24 @@ import java.util.*;
  *       where machID - unique identifier of peer
  *           port - port on which peer listens for connections from other peers
  *           fileList - list of files to be shared. Each file name is separated
- *                      by a "::" character.
+ *                      by a "::" character, so file names must not
+ *                      contain "::". BinaryTrackerCommunicator has no such
+ *                      restriction.
  *    -UpdateList (peer -> tracking server) message format:
  *          UpdateList::machID::fileList
  *        where machID and fileList are defined the same as in Register
+ *    -UpdateDelta (peer -> tracking server) message format:
+ *          UpdateDelta::machID::baseVersion::count::added::removed
+ *        where baseVersion - version of the list the change applies to
+ *              count - number of added files
+ *              added - files added, separated by "::"
+ *              removed - files removed, separated by "::"
+ *      The tracking server answers "Ok" if it applied the change and
+ *      "Resync" if it needs the full list.
+ *    -Heartbeat (peer -> tracking server) message format:
+ *          Heartbeat::machID
+ *      The tracking server answers "Ok" if it renewed the peer's lease and
+ *      "Resync" if it does not know the peer, which must register again.
  *    -Find (peer -> tracking server) message format:
  *          Find::filename
  *        where filename - name of file
@@ -29,14 +43,10 @@ public class XFSTrackerCommunicator implements TrackingServerCommunicator {
     public void register(SocketWrapper sock, String[] fileList, int machID,
 			 int peerPort) throws IOException {
 	try {
-	    String shareList = fileList[0];
-	    for(int i = 1; i < fileList.length; i++) {
-		shareList += "::" + fileList[i];
-	    }
-	    
-	    String msg = "Register" + "::" + machID + "::" + peerPort + "::" +
-		shareList;   
-	    sock.send(msg);
+	    StringBuilder msg = new StringBuilder("Register");
+	    msg.append("::").append(machID).append("::").append(peerPort);
+	    appendFileList(msg, fileList);
+	    sock.send(msg.toString());
 	    sock.close();
 	    
 	} catch(IOException e) {
@@ -50,18 +60,53 @@ public class XFSTrackerCommunicator implements TrackingServerCommunicator {
     public void updateList(SocketWrapper sock, String[] fileList, int machID)
 	throws IOException {
 	try {
-	    String shareList = fileList[0];
-	    for(int i = 1; i < fileList.length; ++i) {
-		shareList += "::" + fileList[i];
-	    }
-
-	    sock.send("UpdateList::" + machID + "::" + shareList);
+	    StringBuilder msg = new StringBuilder("UpdateList");
+	    msg.append("::").append(machID);
+	    appendFileList(msg, fileList);
+	    sock.send(msg.toString());
 	    sock.close();
 	} catch(IOException e) {
 	    throw e;
 	}
     }
     
+    /**
+     * Send tracking server the files added and removed since a version of
+     * its list.
+     * @return true if the tracking server applied the change
+     */
+    public boolean updateDelta(SocketWrapper sock, String[] added,
+			       String[] removed, long baseVersion, int machID)
+	throws IOException {
+	StringBuilder msg = new StringBuilder("UpdateDelta");
+	msg.append("::").append(machID).append("::").append(baseVersion)
+	    .append("::").append(added.length);
+	appendFileList(msg, added);
+	appendFileList(msg, removed);
+	sock.send(msg.toString());
+	String reply = sock.receive();
+	sock.close();
+	if(reply == null) {
+	    throw new EOFException("No reply to update delta");
+	}
+	return reply.equals("Ok");
+    }
+
+    /**
+     * Renew this peer's lease with the tracking server.
+     * @return false if the tracking server does not know this peer
+     */
+    public boolean heartbeat(SocketWrapper sock, int machID)
+	throws IOException {
+	sock.send("Heartbeat::" + machID);
+	String reply = sock.receive();
+	sock.close();
+	if(reply == null) {
+	    throw new EOFException("No reply to heartbeat");
+	}
+	return reply.equals("Ok");
+    }
+
     /**
      * Ask tracking server for a list of peers that can provide a certain file
      * @return list of peers with file
@@ -119,6 +164,22 @@ public class XFSTrackerCommunicator implements TrackingServerCommunicator {
 		clientID = input[1];
 		action.setClientID(clientID);
 		return action;
+	    case "UpdateDelta":
+		action = new ServerAction(ServerAction.UPDATE_DELTA);
+		action.setClientID(input[1]);
+		action.setBaseVersion(Long.parseLong(input[2]));
+		int addCount = Integer.parseInt(input[3]);
+		if(addCount < 0 || addCount > input.length - 4) {
+		    throw new IOException("Malformed UpdateDelta");
+		}
+		action.setFileList(Arrays.copyOfRange(input, 4, 4 + addCount));
+		action.setRemovedList(Arrays.copyOfRange(input, 4 + addCount,
+							 input.length));
+		return action;
+	    case "Heartbeat":
+		action = new ServerAction(ServerAction.HEARTBEAT);
+		action.setClientID(input[1]);
+		return action;
 	    default:
 		throw new IOException();
 	    }
@@ -134,11 +195,41 @@ public class XFSTrackerCommunicator implements TrackingServerCommunicator {
 	if(peerList == null) {
 	    sock.send(null);
 	} else {
-	    String message = peerList[0].getInfo();
+	    StringBuilder message = new StringBuilder(peerList[0].getInfo());
 	    for(int i = 1; i < peerList.length; i++) {
-		message += "::" + peerList[i].getInfo();
+		message.append("::").append(peerList[i].getInfo());
 	    }
-	    sock.send(message);
+	    sock.send(message.toString());
+	}
+    }
+
+    /**
+     * Tell a peer whether its delta was applied.
+     */
+    public void sendDeltaReply(SocketWrapper sock, boolean applied) {
+	sock.send(applied ? "Ok" : "Resync");
+    }
+
+    /**
+     * Tell a peer whether its lease was renewed.
+     */
+    public void sendHeartbeatReply(SocketWrapper sock, boolean renewed) {
+	sock.send(renewed ? "Ok" : "Resync");
+    }
+
+    /**
+     * Append each file name to a message, preceded by a "::" separator. The
+     * message is built in one buffer so its cost grows linearly with the
+     * number of files.
+     */
+    private static void appendFileList(StringBuilder msg, String[] fileList) {
+	int length = msg.length();
+	for(String filename : fileList) {
+	    length += filename.length() + 2;
+	}
+	msg.ensureCapacity(length);
+	for(String filename : fileList) {
+	    msg.append("::").append(filename);
 	}
     }
 
@@ -0,0 +1,132 @@
+package com.xfs.common;
+
+import java.io.*;
+import java.util.Arrays;
+import org.junit.Test;
+import org.junit.Before;
+import org.mockito.ArgumentCaptor;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class TestBinaryTrackerCommunicator {
+    TrackingServerCommunicator tracker;
+    SocketWrapper sock;
+
+    @Before public void setUp() {
+	tracker = new BinaryTrackerCommunicator();
+	sock = mock(XFSSocket.class);
+    }
+
+    @Test public void registerRoundTripsFileNamesWithSeparators()
+	throws IOException {
+	String[] fileList = new String[]{"a::b.pdf", "r\u00e9sum\u00e9.txt", ""};
+
+	tracker.register(sock, fileList, 13, 10001);
+	ServerAction action = tracker.processRequest(replay(sentMessage(sock)));
+
+	assertEquals(ServerAction.REGISTER, action.getAction());
+	assertEquals("13", action.getClientID());
+	assertEquals(10001, action.getPeerPort());
+	assertArrayEquals(fileList, action.getFileList());
+    }
+
+    @Test public void updateListRoundTrips() throws IOException {
+	String[] fileList = new String[]{"file1.pdf", "file2.pdf"};
+
+	tracker.updateList(sock, fileList, 7);
+	ServerAction action = tracker.processRequest(replay(sentMessage(sock)));
+
+	assertEquals(ServerAction.UPDATE_LIST, action.getAction());
+	assertEquals("7", action.getClientID());
+	assertArrayEquals(fileList, action.getFileList());
+    }
+
+    @Test public void updateDeltaRoundTrips() throws IOException {
+	String[] added = new String[]{"new.pdf"};
+	String[] removed = new String[]{"old.pdf", "a::b"};
+	SocketWrapper server = mock(XFSSocket.class);
+	tracker.sendDeltaReply(server, true);
+	byte[] reply = sentMessage(server);
+	when(sock.receiveMessage()).thenReturn(reply);
+
+	assertTrue(tracker.updateDelta(sock, added, removed, 41, 7));
+	ServerAction action = tracker.processRequest(replay(sentMessage(sock)));
+
+	assertEquals(ServerAction.UPDATE_DELTA, action.getAction());
+	assertEquals("7", action.getClientID());
+	assertEquals(41, action.getBaseVersion());
+	assertArrayEquals(added, action.getFileList());
+	assertArrayEquals(removed, action.getRemovedList());
+    }
+
+    @Test public void updateDeltaReportsResync() throws IOException {
+	SocketWrapper server = mock(XFSSocket.class);
+	tracker.sendDeltaReply(server, false);
+	byte[] reply = sentMessage(server);
+	when(sock.receiveMessage()).thenReturn(reply);
+
+	assertFalse(tracker.updateDelta(sock, new String[]{"new.pdf"},
+					new String[0], 3, 7));
+    }
+
+    @Test public void heartbeatRoundTrips() throws IOException {
+	SocketWrapper server = mock(XFSSocket.class);
+	tracker.sendHeartbeatReply(server, false);
+	byte[] reply = sentMessage(server);
+	when(sock.receiveMessage()).thenReturn(reply);
+
+	assertFalse(tracker.heartbeat(sock, 7));
+	ServerAction action = tracker.processRequest(replay(sentMessage(sock)));
+
+	assertEquals(ServerAction.HEARTBEAT, action.getAction());
+	assertEquals("7", action.getClientID());
+    }
+
+    @Test public void findParsesPeerList() throws IOException {
+	Peer[] peers = new Peer[]{new Peer("67", 10005, "1.0.6.78"),
+				  new Peer("123", 10004, "1.0.0.1")};
+	SocketWrapper server = mock(XFSSocket.class);
+	tracker.sendPeerList(server, peers);
+	byte[] reply = sentMessage(server);
+	when(sock.receiveMessage()).thenReturn(reply);
+
+	Peer[] foundPeers = tracker.find(sock, "x::y");
+
+	assertArrayEquals(peers, foundPeers);
+	ServerAction action = tracker.processRequest(replay(sentMessage(sock)));
+	assertEquals(ServerAction.FIND, action.getAction());
+	assertEquals("x::y", action.getFilename());
+    }
+
+    @Test public void findReturnsNullWhenNobodyHasFile() throws IOException {
+	SocketWrapper server = mock(XFSSocket.class);
+	tracker.sendPeerList(server, null);
+	byte[] reply = sentMessage(server);
+	when(sock.receiveMessage()).thenReturn(reply);
+
+	assertNull(tracker.find(sock, "file1.pdf"));
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedMessageIsRejected() throws IOException {
+	tracker.register(sock, new String[]{"file1.pdf"}, 13, 10001);
+	byte[] message = sentMessage(sock);
+
+	tracker.processRequest(replay(Arrays.copyOf(message,
+						    message.length - 1)));
+    }
+
+    private static byte[] sentMessage(SocketWrapper sock) throws IOException {
+	ArgumentCaptor<MessageWriter> captor =
+	    ArgumentCaptor.forClass(MessageWriter.class);
+	verify(sock).sendMessage(captor.capture());
+	MessageWriter message = captor.getValue();
+	return Arrays.copyOf(message.array(), message.length());
+    }
+
+    private static SocketWrapper replay(byte[] message) throws IOException {
+	SocketWrapper sock = mock(XFSSocket.class);
+	when(sock.receiveMessage()).thenReturn(message);
+	return sock;
+    }
+}
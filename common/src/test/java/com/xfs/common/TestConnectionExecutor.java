@@ -0,0 +1,67 @@
+package com.xfs.common;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TestConnectionExecutor {
+    @Test public void boundedExecutorLimitsConcurrentTasks() throws Exception {
+	ConnectionExecutor executor =
+	    new ConnectionExecutor(ConnectionExecutor.Mode.PLATFORM, 2, "test");
+	final AtomicInteger running = new AtomicInteger();
+	final AtomicInteger maxRunning = new AtomicInteger();
+	final CountDownLatch done = new CountDownLatch(8);
+	for(int i = 0; i < 8; i++) {
+	    executor.execute(new Runnable() {
+		    @Override public void run() {
+			int now = running.incrementAndGet();
+			maxRunning.set(Math.max(maxRunning.get(), now));
+			try {
+			    Thread.sleep(20);
+			} catch(InterruptedException e) {
+			}
+			running.decrementAndGet();
+			done.countDown();
+		    }
+		});
+	}
+
+	assertTrue(done.await(5, TimeUnit.SECONDS));
+	assertTrue(maxRunning.get() <= 2);
+	assertTrue(executor.shutdown(1000));
+    }
+
+    @Test public void shutdownWaitsForRunningTasks() throws Exception {
+	ConnectionExecutor executor =
+	    new ConnectionExecutor(ConnectionExecutor.Mode.PLATFORM, 0, "test");
+	final AtomicInteger finished = new AtomicInteger();
+	executor.execute(new Runnable() {
+		@Override public void run() {
+		    try {
+			Thread.sleep(100);
+		    } catch(InterruptedException e) {
+			return;
+		    }
+		    finished.incrementAndGet();
+		}
+	    });
+
+	assertTrue(executor.shutdown(5000));
+	assertEquals(1, finished.get());
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void executeAfterShutdownIsRejected() throws Exception {
+	ConnectionExecutor executor =
+	    new ConnectionExecutor(ConnectionExecutor.Mode.VIRTUAL, 4, "test");
+	executor.shutdown(1000);
+
+	executor.execute(new Runnable() {
+		@Override public void run() {
+		}
+	    });
+    }
+}
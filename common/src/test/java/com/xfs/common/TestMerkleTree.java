@@ -0,0 +1,51 @@
+package com.xfs.common;
+
+import java.security.MessageDigest;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TestMerkleTree {
+    @Test public void rootOfOneLeafIsTheLeaf() throws Exception {
+	byte[] leaf = sha1("piece".getBytes());
+
+	assertArrayEquals(leaf, MerkleTree.root(leaf));
+    }
+
+    @Test public void unpairedLeafIsCarriedUp() throws Exception {
+	byte[] a = sha1("a".getBytes());
+	byte[] b = sha1("b".getBytes());
+	byte[] c = sha1("c".getBytes());
+	byte[] expected = interior(interior(a, b), c);
+
+	assertArrayEquals(expected, MerkleTree.root(concat(a, b, c)));
+    }
+
+    @Test public void verifyRejectsChangedLeaf() throws Exception {
+	byte[] leaves = concat(sha1("a".getBytes()), sha1("b".getBytes()),
+			       sha1("c".getBytes()));
+	byte[] root = MerkleTree.root(leaves);
+	leaves[45]++;
+
+	assertFalse(MerkleTree.verify(leaves, root));
+    }
+
+    private byte[] sha1(byte[] data) throws Exception {
+	return MessageDigest.getInstance("SHA-1").digest(data);
+    }
+
+    private byte[] interior(byte[] left, byte[] right) throws Exception {
+	MessageDigest digest = MessageDigest.getInstance("SHA-1");
+	digest.update((byte)0x01);
+	digest.update(left);
+	digest.update(right);
+	return digest.digest();
+    }
+
+    private byte[] concat(byte[]... arrays) {
+	byte[] result = new byte[arrays.length * 20];
+	for(int i = 0; i < arrays.length; i++) {
+	    System.arraycopy(arrays[i], 0, result, i * 20, 20);
+	}
+	return result;
+    }
+}
@@ -0,0 +1,60 @@
+package com.xfs.common;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TestTokenBucket {
+    private static final long MILLIS = 1000 * 1000;
+
+    @Test public void unlimitedBucketNeverWaits() {
+	TokenBucket bucket = new TokenBucket(0);
+
+	assertEquals(0, bucket.charge(1L << 40));
+    }
+
+    @Test public void chargeWithinBurstDoesNotWait() {
+	TokenBucket bucket = new TokenBucket(10000);
+
+	assertEquals(0, bucket.charge(1000));
+    }
+
+    @Test public void debtIsPaidOffAtRate() {
+	TokenBucket bucket = new TokenBucket(10000);
+
+	long wait = bucket.charge(6000);
+
+	assertTrue(wait > 400 * MILLIS && wait <= 500 * MILLIS);
+    }
+
+    @Test public void laterChargesWaitBehindEarlierOnes() {
+	TokenBucket bucket = new TokenBucket(10000);
+	long first = bucket.charge(6000);
+
+	long second = bucket.charge(5000);
+
+	assertTrue(second - first > 450 * MILLIS);
+    }
+
+    @Test public void rateCanBeRaisedAndRemoved() {
+	TokenBucket bucket = new TokenBucket(1000);
+	bucket.charge(100);
+
+	bucket.setRate(1000 * 1000);
+	assertTrue(bucket.charge(1000) < 10 * MILLIS);
+	bucket.setRate(0);
+	assertEquals(0, bucket.charge(1L << 30));
+    }
+
+    @Test public void throttleWaitsForItsClassBudget() {
+	BandwidthLimiter limiter = new BandwidthLimiter();
+	limiter.setClassRate(BandwidthLimiter.TrafficClass.BACKGROUND, 10000);
+	BandwidthLimiter.Throttle foreground =
+	    limiter.newThrottle(BandwidthLimiter.TrafficClass.FOREGROUND);
+	BandwidthLimiter.Throttle background =
+	    limiter.newThrottle(BandwidthLimiter.TrafficClass.BACKGROUND);
+
+	assertEquals(0, foreground.chargeSend(100000));
+	assertTrue(background.chargeSend(6000) > 400 * MILLIS);
+	assertEquals(0, background.chargeReceive(1000));
+    }
+}
@@ -0,0 +1,102 @@
+package com.xfs.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+import static org.mockito.ArgumentMatchers.*;
+
+public class TestXFSSocket {
+    ServerSocket listener;
+    File file;
+
+    @Before public void setUp() throws IOException {
+	listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+	byte[] contents = new byte[1 << 20];
+	new Random(1).nextBytes(contents);
+	file = File.createTempFile("xfs", ".bin");
+	file.deleteOnExit();
+	FileOutputStream out = new FileOutputStream(file);
+	out.write(contents);
+	out.close();
+    }
+
+    @After public void tearDown() throws IOException {
+	listener.close();
+    }
+
+    @Test public void abortDuringInflateFailsReadWithIOException()
+	throws Exception {
+	Thread sender = new Thread(new Runnable() {
+		@Override public void run() {
+		    try {
+			XFSSocket sock = new XFSSocket(listener.accept());
+			FileChannel channel = FileChannel.open(
+			    file.toPath(), StandardOpenOption.READ);
+			try {
+			    sock.sendDeflated(channel, 0, channel.size());
+			} finally {
+			    channel.close();
+			    sock.close();
+			}
+		    } catch(IOException e) {
+		    }
+		}
+	    });
+	sender.start();
+
+	final XFSSocket sock = new XFSSocket("127.0.0.1",
+					     listener.getLocalPort());
+	final CountDownLatch receiving = new CountDownLatch(1);
+	final CountDownLatch aborted = new CountDownLatch(1);
+	BandwidthLimiter.Throttle throttle = mock(BandwidthLimiter.Throttle.class);
+	doAnswer(new Answer<Void>() {
+		@Override public Void answer(InvocationOnMock invocation)
+		    throws Exception {
+		    receiving.countDown();
+		    aborted.await();
+		    return null;
+		}
+	    }).when(throttle).receive(anyLong());
+	sock.setThrottle(throttle);
+
+	final AtomicReference<Throwable> failure =
+	    new AtomicReference<Throwable>();
+	Thread receiver = new Thread(new Runnable() {
+		@Override public void run() {
+		    try {
+			sock.receiveInflated(new ByteArrayOutputStream());
+		    } catch(Throwable e) {
+			failure.set(e);
+		    }
+		}
+	    });
+	receiver.start();
+
+	assertTrue(receiving.await(5, TimeUnit.SECONDS));
+	sock.abort();
+	aborted.countDown();
+	receiver.join(5000);
+
+	assertFalse(receiver.isAlive());
+	assertTrue(String.valueOf(failure.get()),
+		   failure.get() instanceof IOException);
+	sock.close();
+	sender.join(5000);
+    }
+}
@@ -38,6 +38,38 @@ public class TestXFSTrackerCommunicator {
 	verify(sock).send(expectedMessage);
     }
 
+    @Test public void checkInputOfUpdateDeltaTest() throws IOException {
+	when(sock.receive()).thenReturn("Ok");
+
+	boolean applied = tracker.updateDelta(sock, new String[]{"file3.pdf"},
+					      new String[]{"file1.pdf"}, 4, 13);
+
+	String expectedMessage = "UpdateDelta::13::4::1::file3.pdf::file1.pdf";
+	verify(sock).send(expectedMessage);
+	assertTrue(applied);
+    }
+
+    @Test public void updateDeltaIsParsed() throws IOException {
+	when(sock.receive()).thenReturn("UpdateDelta::13::4::2::a::b::c");
+
+	ServerAction action = tracker.processRequest(sock);
+
+	assertEquals(ServerAction.UPDATE_DELTA, action.getAction());
+	assertEquals("13", action.getClientID());
+	assertEquals(4, action.getBaseVersion());
+	assertArrayEquals(new String[]{"a", "b"}, action.getFileList());
+	assertArrayEquals(new String[]{"c"}, action.getRemovedList());
+    }
+
+    @Test public void checkInputOfHeartbeatTest() throws IOException {
+	when(sock.receive()).thenReturn("Ok");
+
+	boolean renewed = tracker.heartbeat(sock, 13);
+
+	verify(sock).send("Heartbeat::13");
+	assertTrue(renewed);
+    }
+
     @Test public void checkInputOfFindTest() throws IOException {
 	String filename = "file1.pdf";
 	//when(sock.send(contains("file1.pdf"))).thenReturn("");
@@ -0,0 +1,221 @@
+package com.xfs.server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Leases of the peers known to the tracking server. A peer is granted a
+ * lease when it registers and renews it with every heartbeat. A peer that
+ * stops sending heartbeats, because it crashed or lost its network, loses
+ * its lease after the lease time and the expiry handler removes it.
+ *
+ * Leases are timed by a hashed wheel: a ring of buckets each covering one
+ * tick. A lease is put in the bucket of the tick it ends in, and the timer
+ * thread sweeps one bucket per tick, so granting, renewing and expiring a
+ * lease cost the same however many peers there are. A renewed lease is not
+ * taken out of its old bucket. The sweep finds that its end has moved and
+ * drops the old entry.
+ */
+public class PeerLeases {
+    /**
+     * Default lease time in milliseconds
+     */
+    public static final long DEFAULT_LEASE_TIME = 30 * 1000;
+
+    /**
+     * Time in milliseconds covered by one bucket of the wheel
+     */
+    public static final long DEFAULT_TICK = 100;
+
+    /**
+     * Number of buckets in the wheel
+     */
+    private static final int WHEEL_SIZE = 512;
+
+    /**
+     * Told when a peer's lease ends
+     */
+    public interface ExpiryHandler {
+	public void expired(String peerID);
+    }
+
+    private final long leaseTime;
+    private final long tick;
+    private final ExpiryHandler handler;
+
+    /**
+     * Time in milliseconds each lease ends, by peer ID
+     */
+    private final ConcurrentHashMap<String, Long> expiries =
+	new ConcurrentHashMap<>();
+
+    private final List<List<Entry>> wheel = new ArrayList<>(WHEEL_SIZE);
+
+    /**
+     * Last tick swept
+     */
+    private long lastTick;
+
+    private volatile Thread timer;
+
+    public PeerLeases(long leaseTime, ExpiryHandler handler) {
+	this(leaseTime, DEFAULT_TICK, handler, System.currentTimeMillis());
+    }
+
+    /**
+     * @param leaseTime Milliseconds a lease lasts after it is renewed
+     * @param tick Milliseconds covered by one bucket of the wheel
+     * @param now Current time in milliseconds
+     */
+    PeerLeases(long leaseTime, long tick, ExpiryHandler handler, long now) {
+	this.leaseTime = Math.max(tick, leaseTime);
+	this.tick = tick;
+	this.handler = handler;
+	this.lastTick = now / tick;
+	for(int i = 0; i < WHEEL_SIZE; i++) {
+	    wheel.add(new ArrayList<Entry>());
+	}
+    }
+
+    public long getLeaseTime() {
+	return this.leaseTime;
+    }
+
+    /**
+     * Start sweeping the wheel on a daemon thread.
+     */
+    public synchronized void start() {
+	if(timer != null) {
+	    return;
+	}
+	timer = new Thread(new Runnable() {
+		@Override public void run() {
+		    while(timer == Thread.currentThread()) {
+			try {
+			    Thread.sleep(tick);
+			} catch(InterruptedException e) {
+			    return;
+			}
+			advance(System.currentTimeMillis());
+		    }
+		}
+	    }, "xfs-leases");
+	timer.setDaemon(true);
+	timer.start();
+    }
+
+    public synchronized void stop() {
+	Thread thread = timer;
+	timer = null;
+	if(thread != null) {
+	    thread.interrupt();
+	}
+    }
+
+    /**
+     * Grant a peer a new lease, or extend the one it has.
+     */
+    public void grant(String peerID) {
+	grant(peerID, System.currentTimeMillis());
+    }
+
+    synchronized void grant(String peerID, long now) {
+	long expiry = now + leaseTime;
+	expiries.put(peerID, expiry);
+	long endTick = (expiry + tick - 1) / tick;
+	wheel.get((int)(endTick % WHEEL_SIZE)).add(new Entry(peerID, endTick));
+    }
+
+    /**
+     * Extend the lease of a peer whose lease has not ended.
+     * @return false if the peer has no lease, in which case none is granted
+     */
+    public boolean renew(String peerID) {
+	return renew(peerID, System.currentTimeMillis());
+    }
+
+    synchronized boolean renew(String peerID, long now) {
+	if(!isLive(peerID, now)) {
+	    return false;
+	}
+	grant(peerID, now);
+	return true;
+    }
+
+    /**
+     * Time in milliseconds the lease of a peer ends, or -1 if it has none
+     */
+    public long getExpiry(String peerID) {
+	Long expiry = expiries.get(peerID);
+	return expiry == null ? -1 : expiry;
+    }
+
+    /**
+     * Whether a peer holds a lease that has not ended. A lease past its end
+     * is not live even before the wheel has swept it.
+     */
+    public boolean isLive(String peerID) {
+	return isLive(peerID, System.currentTimeMillis());
+    }
+
+    boolean isLive(String peerID, long now) {
+	Long expiry = expiries.get(peerID);
+	return expiry != null && expiry > now;
+    }
+
+    /**
+     * Sweep the buckets of the ticks up to now and expire the leases that
+     * have ended. If the sweep has fallen a whole turn behind, every bucket
+     * is swept once.
+     */
+    void advance(long now) {
+	List<String> expired = new ArrayList<>();
+	synchronized(this) {
+	    long target = now / tick;
+	    long steps = Math.min(target - lastTick, WHEEL_SIZE);
+	    for(long i = 1; i <= steps; i++) {
+		sweep(wheel.get((int)((lastTick + i) % WHEEL_SIZE)), target,
+		      now, expired);
+	    }
+	    lastTick = Math.max(lastTick, target);
+	}
+	for(String peerID : expired) {
+	    handler.expired(peerID);
+	}
+    }
+
+    /**
+     * Remove the entries of a bucket whose tick has come. The leases that
+     * were not renewed since are ended.
+     */
+    private void sweep(List<Entry> bucket, long target, long now,
+		       List<String> expired) {
+	for(Iterator<Entry> it = bucket.iterator(); it.hasNext(); ) {
+	    Entry entry = it.next();
+	    if(entry.endTick > target) {
+		continue;
+	    }
+	    it.remove();
+	    Long expiry = expiries.get(entry.peerID);
+	    if(expiry != null && expiry <= now) {
+		expiries.remove(entry.peerID);
+		expired.add(entry.peerID);
+	    }
+	}
+    }
+
+    /**
+     * Lease in a bucket of the wheel
+     */
+    private static class Entry {
+	final String peerID;
+	final long endTick;
+
+	Entry(String peerID, long endTick) {
+	    this.peerID = peerID;
+	    this.endTick = endTick;
+	}
+    }
+}
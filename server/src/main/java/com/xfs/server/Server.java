@@ -4,7 +4,10 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.lang.*;
+import java.util.concurrent.RejectedExecutionException;
 
+import com.xfs.common.BinaryTrackerCommunicator;
+import com.xfs.common.ConnectionExecutor;
 import com.xfs.common.ServerAction;
 import com.xfs.common.Peer;
 import com.xfs.common.TrackingServerCommunicator;
@@ -23,8 +26,26 @@ public class Server {
 	}
 
 	int port = Integer.parseInt(args[0]);
-	TrackingServerCommunicator communicator = new XFSTrackerCommunicator();
-	ServerImpl srv = new ServerImpl(communicator);
+	TrackingServerCommunicator communicator =
+	    "binary".equals(System.getProperty("xfs.protocol")) ?
+	    new BinaryTrackerCommunicator() : new XFSTrackerCommunicator();
+	ServerImpl srv = new ServerImpl(communicator, Long.getLong(
+	    "xfs.lease.time", PeerLeases.DEFAULT_LEASE_TIME));
+	String dataDir = System.getProperty("xfs.tracker.dataDir");
+	if(dataDir != null) {
+	    long startTime = System.currentTimeMillis();
+	    int recovered = srv.recover(new TrackerStore(
+		new File(dataDir),
+		Long.getLong("xfs.lease.time", PeerLeases.DEFAULT_LEASE_TIME),
+		Long.getLong("xfs.tracker.snapshotInterval",
+			     TrackerStore.DEFAULT_SNAPSHOT_INTERVAL),
+		Long.getLong("xfs.tracker.recoveryGrace",
+			     TrackerStore.DEFAULT_RECOVERY_GRACE)));
+	    System.out.println("Recovered " + recovered + " peers from " +
+			       dataDir + " in " +
+			       (System.currentTimeMillis() - startTime) + " ms");
+	}
+	srv.start();
 	ServerSocket sSock = null;
 
 	System.out.println("Listening for clients on port " + port);
@@ -36,10 +57,39 @@ public class Server {
 	    System.exit(1);
 	}
 
-	System.out.println("Server is listening...");
+	final ConnectionExecutor executor =
+	    ConnectionExecutor.fromSystemProperties("xfs-tracker");
+	final ServerSocket listener = sSock;
+	Runtime.getRuntime().addShutdownHook(new Thread() {
+		@Override public void run() {
+		    try {
+			listener.close();
+			executor.shutdown(ConnectionExecutor.SHUTDOWN_GRACE);
+		    } catch(IOException | InterruptedException e) {
+		    }
+		    srv.stop();
+		}
+	    });
+
+	System.out.println("Server is listening on " +
+			   executor.getMode().toString().toLowerCase() +
+			   " threads...");
 
-	while(true) {
-	    srv.new ClientQuery(sSock.accept()).start();
+	while(!executor.isShutdown()) {
+	    Socket sock;
+	    try {
+		sock = sSock.accept();
+	    } catch(IOException e) {
+		if(sSock.isClosed()) {
+		    break;
+		}
+		continue;
+	    }
+	    try {
+		executor.execute(srv.new ClientQuery(sock));
+	    } catch(RejectedExecutionException e) {
+		sock.close();
+	    }
 	}
     }
 }
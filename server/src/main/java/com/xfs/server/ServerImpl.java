@@ -4,6 +4,8 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.lang.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
 
 import com.xfs.common.ServerAction;
 import com.xfs.common.Peer;
@@ -14,39 +16,105 @@ import com.xfs.common.XFSSocket;
 
 /**
  * Tracking server monitors which peers are active and which files they can 
- * provide. Tracking server does not maintain state persistently. If the
- * tracking server goes down, its knowledge of the state of the peer-to-peer
- * network is lost and must be re-populated by peer connections.
+ * provide. Unless it is given a TrackerStore, the tracking server does not
+ * maintain state persistently: if it goes down, its knowledge of the state
+ * of the peer-to-peer network is lost and must be re-populated by peer
+ * connections. Peers hold
+ * leases that they renew with heartbeats. A peer whose lease ends is
+ * forgotten along with its files, and only peers with a live lease are
+ * returned by find.
  */
 public class ServerImpl {
     /**
-     * Maps filename to list of clients that have it
+     * Which peers are registered and which files they have. Shared by every
+     * ClientQuery thread.
      */
-    HashMap<String, ArrayList<String>> filemap = new HashMap<>();
+    final TrackerIndex index = new TrackerIndex();
     
     /**
-     * Maps client IDs to port/ip info
+     * Maps filename to checksum
      */
-    HashMap<String, Peer> clientMap = new HashMap<>();
-    
+    ConcurrentHashMap<String, String> checksumMap = new ConcurrentHashMap<>();
+
     /**
-     * Maps filename to checksum
+     * Leases of registered peers
      */
-    HashMap<String, String> checksumMap = new HashMap<>();
+    final PeerLeases leases;
 
     /**
      * Interface for interacting with peers
      */
     TrackingServerCommunicator communicator;
 
+    /**
+     * Where the index is kept on disk, or null if it is not
+     */
+    private TrackerStore store;
+
     public ServerImpl(TrackingServerCommunicator communicator) {
+	this(communicator, PeerLeases.DEFAULT_LEASE_TIME);
+    }
+
+    /**
+     * @param leaseTime Milliseconds a peer stays registered after its last
+     * heartbeat
+     */
+    public ServerImpl(TrackingServerCommunicator communicator, long leaseTime) {
 	this.communicator = communicator;
+	this.leases = new PeerLeases(leaseTime, new PeerLeases.ExpiryHandler() {
+		@Override public void expired(String peerID) {
+		    // The peer may have registered again since its lease was
+		    // swept, in which case its new registration is kept
+		    index.removePeerIf(peerID, new Predicate<String>() {
+			    @Override public boolean test(String id) {
+				if(leases.isLive(id)) {
+				    return false;
+				}
+				System.out.println("Lease expired: Client " + id);
+				return true;
+			    }
+			});
+		}
+	    });
+    }
+
+    /**
+     * Load the index kept by a store and keep it there from now on. Must be
+     * called before start.
+     * @return Number of peers recovered
+     */
+    public int recover(TrackerStore store) throws IOException {
+	this.store = store;
+	return store.recover(index, leases);
+    }
+
+    /**
+     * Start expiring the leases of peers that stop sending heartbeats, and
+     * writing snapshots if the index is kept on disk.
+     */
+    public void start() {
+	leases.start();
+	if(store != null) {
+	    store.start(index, leases);
+	}
+    }
+
+    public void stop() {
+	leases.stop();
+	if(store != null) {
+	    try {
+		store.close(index, leases);
+	    } catch(IOException e) {
+		System.out.println("Failed to save tracker state: " +
+				   e.getMessage());
+	    }
+	}
     }
 
     /**
-     * Thread for servicing a connection from a peer.
+     * Task for servicing a connection from a peer.
      */
-    class ClientQuery extends Thread {
+    class ClientQuery implements Runnable {
 	SocketWrapper sock;
 	ClientQuery(Socket sock) {
 	    try {
@@ -74,6 +142,15 @@ public class ServerImpl {
 		    System.out.println("UpdateList: Client " + action.getClientID());
 		    updatePeerList(sock, action.getClientID(), action.getFileList());
 		    break;
+		case ServerAction.UPDATE_DELTA:
+		    System.out.println("UpdateDelta: Client " + action.getClientID());
+		    updatePeerDelta(sock, action.getClientID(),
+				    action.getBaseVersion(), action.getFileList(),
+				    action.getRemovedList());
+		    break;
+		case ServerAction.HEARTBEAT:
+		    renewLease(sock, action.getClientID());
+		    break;
 		default:
 		}
 	    } catch(IOException e) {
@@ -81,61 +158,95 @@ public class ServerImpl {
 	}
 
 	/**
-	 * Update the list of file that a given peer can provide.
+	 * Update the list of file that a given peer can provide. A peer that
+	 * is not registered is ignored, since it would hold no lease and its
+	 * files would never be forgotten.
 	 */
 	public void updatePeerList(SocketWrapper sock, String clientID,
 				   String[] fileList) {
-	    parseFileList(clientID, fileList);
+	    if(!leases.renew(clientID) ||
+	       !index.setFiles(clientID, fileList)) {
+		System.out.println("Ignoring file list of unregistered Client " +
+				   clientID);
+	    }
+	}
+
+	/**
+	 * Renew the lease of a peer. A peer without a live lease, or that
+	 * was forgotten, is told to register again.
+	 */
+	public void renewLease(SocketWrapper sock, String clientID)
+	    throws IOException {
+	    boolean renewed = leases.renew(clientID) &&
+		index.getPeer(clientID) != null;
+	    if(!renewed) {
+		System.out.println("Heartbeat: Client " + clientID +
+				   " must register again");
+	    }
+	    communicator.sendHeartbeatReply(sock, renewed);
 	}
 
 	/**
-	 * Register a peer by storing its id in the clientMap and its files in
-	 * the fileMap.
+	 * Add and remove files from the list of a given peer. The peer is told
+	 * to send its full list if the change is for another version of the
+	 * list than the one held.
+	 */
+	public void updatePeerDelta(SocketWrapper sock, String clientID,
+				    long baseVersion, String[] added,
+				    String[] removed) throws IOException {
+	    leases.renew(clientID);
+	    boolean applied = index.applyDelta(clientID, baseVersion, added,
+					       removed);
+	    if(!applied) {
+		System.out.println("Resync: Client " + clientID);
+	    }
+	    communicator.sendDeltaReply(sock, applied);
+	}
+
+	/**
+	 * Register a peer by storing its endpoint and its files in the index.
+	 * The lease is granted first, so an old lease of the peer that ends
+	 * meanwhile does not remove the new registration.
 	 */
 	public void registerPeer(String clientID, int peerPort, String peerIP,
 	    String[] fileList) {
 	    // Register a peer's endpoint information and files
 	    System.out.println("Receiving updates from Peer " + clientID);
-	    if(!clientMap.containsKey(clientID)) {
-		clientMap.put(clientID, new Peer(clientID, peerPort, peerIP));
+	    leases.grant(clientID);
+	    if(index.putPeer(new Peer(clientID, peerPort, peerIP))) {
 		System.out.print("Peer connections: ");
-		print(clientMap);
+		print(index.getPeers());
 	    }
 	    parseFileList(clientID, fileList);
 	}
 
 	/**
-	 * Read fileMap to find which peers have a particular file.
+	 * Read the index to find which live peers have a particular file.
+	 * Peers whose lease has ended but not yet been swept are left out.
 	 */
-	public void findPeers(SocketWrapper sock, String filename) {
-	    String msg, checksum;
-	    
-	    if(!filemap.containsKey(filename)) {
-		communicator.sendPeerList(sock, null);
-	    } else {
-		ArrayList<String> peerList = filemap.get(filename);
-		Peer[] peerListArray = new Peer[peerList.size()];
-		for(int i = 0; i < peerListArray.length; i++) {
-		    peerListArray[i] = clientMap.get(peerList.get(i));
+	public void findPeers(SocketWrapper sock, String filename)
+	    throws IOException {
+	    Peer[] holders = index.find(filename);
+	    ArrayList<Peer> live = new ArrayList<>();
+	    if(holders != null) {
+		for(Peer peer : holders) {
+		    if(leases.isLive(peer.getID())) {
+			live.add(peer);
+		    }
 		}
-		communicator.sendPeerList(sock, peerListArray);
 	    }
+	    communicator.sendPeerList(sock, live.isEmpty() ? null :
+				      live.toArray(new Peer[live.size()]));
 	}
     }
 
     /**
-     * Add a clientID-fileList mapping to the fileMap
+     * Make fileList the list of files a client can provide. The client
+     * always sends every file it shares, so files missing from the list are
+     * no longer offered by it.
      */
     public void parseFileList(String clientID, String[] fileList) {
-	for(int i = 0; i < fileList.length; i++) {
-	    if(!filemap.containsKey(fileList[i])) {
-		filemap.put(fileList[i], new ArrayList<String>());
-	    }
-	    ArrayList<String> peerList = filemap.get(fileList[i]);
-	    if(!peerList.contains(clientID)) {
-		peerList.add(clientID);
-	    }
-	}
+	index.setFiles(clientID, fileList);
     }
 
     /**
@@ -165,10 +276,10 @@ public class ServerImpl {
      * format that can be sent over the network.
      */
     private String prepareList(ArrayList<String> peerList) {
-	String info = "";
+	StringBuilder info = new StringBuilder();
 	for(int i = 0; i < peerList.size(); i++) {
-	    info += (clientMap.get(peerList.get(i))).getInfo() + "::";
+	    info.append((index.getPeer(peerList.get(i))).getInfo()).append("::");
 	}
-	return info;
+	return info.toString();
     }
 }
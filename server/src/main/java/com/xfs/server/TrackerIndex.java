@@ -0,0 +1,317 @@
+package com.xfs.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import java.util.function.Predicate;
+
+import com.xfs.common.Peer;
+
+/**
+ * Which peers are known to the tracking server and which files each of them
+ * can provide. Two indexes are kept:
+ *    files -> for each filename, the set of IDs of peers that have it
+ *    peers -> for each peer ID, the set of filenames it has
+ * The second makes replacing a peer's files cost the size of the change
+ * rather than a scan of every file. Both are concurrent maps of concurrent
+ * sets. Changes to one peer run one at a time while holding the peer's
+ * entry, so different peers are updated in parallel, and lookups take no
+ * locks at all. Each peer's list has a version: a full list is version 0
+ * and every delta applied to it adds one, so a delta meant for another
+ * version than the one held is refused and the peer sends its full list
+ * again. Every change can be passed to a journal, in the order the changes
+ * to each peer were made.
+ */
+public class TrackerIndex {
+    /**
+     * Told of every change to the index while the peer's entry is held
+     */
+    public interface Journal {
+	public void putPeer(Peer peer);
+
+	public void setFiles(String peerID, Set<String> fileList);
+
+	public void applyDelta(String peerID, long baseVersion, String[] added,
+			       String[] removed);
+
+	public void removePeer(String peerID);
+    }
+
+    /**
+     * Told the state of one peer by forEachPeer
+     */
+    public interface PeerVisitor {
+	public void visit(Peer peer, String[] fileList, long version);
+    }
+
+    /**
+     * Maps filename to IDs of peers that have it
+     */
+    private final ConcurrentHashMap<String, Set<String>> files =
+	new ConcurrentHashMap<>();
+
+    /**
+     * Maps peer ID to the files it has
+     */
+    private final ConcurrentHashMap<String, Set<String>> peerFiles =
+	new ConcurrentHashMap<>();
+
+    /**
+     * Maps peer ID to the version of its list of files
+     */
+    private final ConcurrentHashMap<String, Long> versions =
+	new ConcurrentHashMap<>();
+
+    /**
+     * Maps peer ID to port/ip info
+     */
+    private final ConcurrentHashMap<String, Peer> peers =
+	new ConcurrentHashMap<>();
+
+    private volatile Journal journal;
+
+    public void setJournal(Journal journal) {
+	this.journal = journal;
+    }
+
+    /**
+     * Record the endpoint of a peer, replacing the one it registered before.
+     * @return true if the peer was not known before
+     */
+    public boolean putPeer(final Peer peer) {
+	final boolean[] added = new boolean[1];
+	peerFiles.compute(peer.getID(), new FileUpdate() {
+		@Override public Set<String> apply(String id, Set<String> current) {
+		    added[0] = peers.put(id, peer) == null;
+		    Journal log = journal;
+		    if(log != null) {
+			log.putPeer(peer);
+		    }
+		    return current == null ?
+			ConcurrentHashMap.<String>newKeySet() : current;
+		}
+	    });
+	return added[0];
+    }
+
+    public Peer getPeer(String peerID) {
+	return peers.get(peerID);
+    }
+
+    /**
+     * Known peers by ID. The map is a live, read-only view.
+     */
+    public Map<String, Peer> getPeers() {
+	return Collections.unmodifiableMap(peers);
+    }
+
+    /**
+     * Forget a peer and every file it provided.
+     */
+    public void removePeer(String peerID) {
+	removePeerIf(peerID, null);
+    }
+
+    /**
+     * Forget a peer and every file it provided if a condition still holds
+     * once the peer's entry is held, so a change made to the peer meanwhile
+     * is seen by the condition.
+     * @param condition Condition checked with the peer's ID, or null to
+     * always remove the peer
+     */
+    public void removePeerIf(final String peerID,
+			     final Predicate<String> condition) {
+	peerFiles.computeIfPresent(peerID, new FileUpdate() {
+		@Override public Set<String> apply(String id, Set<String> current) {
+		    if(condition != null && !condition.test(peerID)) {
+			return current;
+		    }
+		    for(String file : current) {
+			unlink(file, peerID);
+		    }
+		    versions.remove(peerID);
+		    peers.remove(peerID);
+		    Journal log = journal;
+		    if(log != null) {
+			log.removePeer(peerID);
+		    }
+		    return null;
+		}
+	    });
+    }
+
+    /**
+     * Replace the list of files a peer can provide. The list becomes
+     * version 0.
+     * @return false if the peer is not known, in which case nothing is kept
+     */
+    public boolean setFiles(final String peerID, String[] fileList) {
+	final Set<String> wanted = new HashSet<>();
+	Collections.addAll(wanted, fileList);
+	final boolean[] known = new boolean[1];
+	peerFiles.computeIfPresent(peerID, new FileUpdate() {
+		@Override public Set<String> apply(String id, Set<String> current) {
+		    known[0] = true;
+		    for(String file : new ArrayList<>(current)) {
+			if(!wanted.contains(file)) {
+			    current.remove(file);
+			    unlink(file, peerID);
+			}
+		    }
+		    for(String file : wanted) {
+			if(current.add(file)) {
+			    link(file, peerID);
+			}
+		    }
+		    versions.put(peerID, 0L);
+		    Journal log = journal;
+		    if(log != null) {
+			log.setFiles(peerID, current);
+		    }
+		    return current;
+		}
+	    });
+	return known[0];
+    }
+
+    /**
+     * Add and remove files from the list a peer can provide, if the list is
+     * at the version the change was made against.
+     * @param baseVersion Version of the list the change applies to
+     * @return true if the change was applied and the version advanced, false
+     * if the peer's list is unknown or at another version
+     */
+    public boolean applyDelta(final String peerID, final long baseVersion,
+			      final String[] added, final String[] removed) {
+	final boolean[] applied = new boolean[1];
+	peerFiles.computeIfPresent(peerID, new FileUpdate() {
+		@Override public Set<String> apply(String id, Set<String> current) {
+		    Long version = versions.get(peerID);
+		    if(version == null || version != baseVersion) {
+			return current;
+		    }
+		    for(String file : removed) {
+			if(current.remove(file)) {
+			    unlink(file, peerID);
+			}
+		    }
+		    for(String file : added) {
+			if(current.add(file)) {
+			    link(file, peerID);
+			}
+		    }
+		    versions.put(peerID, baseVersion + 1);
+		    applied[0] = true;
+		    Journal log = journal;
+		    if(log != null) {
+			log.applyDelta(peerID, baseVersion, added, removed);
+		    }
+		    return current;
+		}
+	    });
+	return applied[0];
+    }
+
+    /**
+     * Put back the state of a peer saved in a snapshot.
+     */
+    void restore(Peer peer, String[] fileList, long version) {
+	putPeer(peer);
+	if(version >= 0) {
+	    setFiles(peer.getID(), fileList);
+	    versions.put(peer.getID(), version);
+	}
+    }
+
+    /**
+     * Visit every known peer. The state each peer is visited with is read
+     * while holding its entry, so it is the state between two changes.
+     */
+    public void forEachPeer(final PeerVisitor visitor) {
+	for(final String peerID : peers.keySet()) {
+	    peerFiles.computeIfPresent(peerID, new FileUpdate() {
+		    @Override public Set<String> apply(String id,
+						       Set<String> current) {
+			Peer peer = peers.get(peerID);
+			Long version = versions.get(peerID);
+			if(peer != null) {
+			    visitor.visit(peer,
+					  current.toArray(new String[0]),
+					  version == null ? -1 : version);
+			}
+			return current;
+		    }
+		});
+	}
+    }
+
+    /**
+     * Version of a peer's list of files, or -1 if the list is unknown
+     */
+    public long getVersion(String peerID) {
+	Long version = versions.get(peerID);
+	return version == null ? -1 : version;
+    }
+
+    /**
+     * Files a peer can provide
+     */
+    public Set<String> getFiles(String peerID) {
+	Set<String> current = peerFiles.get(peerID);
+	return current == null ? Collections.<String>emptySet() :
+	    Collections.unmodifiableSet(current);
+    }
+
+    /**
+     * Find the peers that have a file.
+     * @return The peers or null if no known peer has it
+     */
+    public Peer[] find(String filename) {
+	Set<String> holders = files.get(filename);
+	if(holders == null) {
+	    return null;
+	}
+	List<Peer> found = new ArrayList<>(holders.size());
+	for(String peerID : holders) {
+	    Peer peer = peers.get(peerID);
+	    if(peer != null) {
+		found.add(peer);
+	    }
+	}
+	return found.isEmpty() ? null : found.toArray(new Peer[found.size()]);
+    }
+
+    private void link(String file, final String peerID) {
+	files.compute(file, new FileUpdate() {
+		@Override public Set<String> apply(String name, Set<String> holders) {
+		    if(holders == null) {
+			holders = ConcurrentHashMap.newKeySet();
+		    }
+		    holders.add(peerID);
+		    return holders;
+		}
+	    });
+    }
+
+    private void unlink(String file, final String peerID) {
+	files.computeIfPresent(file, new FileUpdate() {
+		@Override public Set<String> apply(String name, Set<String> holders) {
+		    holders.remove(peerID);
+		    return holders.isEmpty() ? null : holders;
+		}
+	    });
+    }
+
+    /**
+     * Change to the set of names stored under a key. Returning null removes
+     * the key.
+     */
+    private interface FileUpdate
+	extends BiFunction<String, Set<String>, Set<String>> {
+    }
+}
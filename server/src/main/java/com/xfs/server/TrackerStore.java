@@ -0,0 +1,524 @@
+package com.xfs.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import com.xfs.common.MessageReader;
+import com.xfs.common.MessageWriter;
+import com.xfs.common.Peer;
+
+/**
+ * Keeps the index of the tracking server on disk, so a restarted tracking
+ * server can answer finds at once instead of waiting for every peer to
+ * register again. Two kinds of files are kept in the data directory:
+ *    journal-N.log -> every change to the index, appended as it is made
+ *    snapshot.bin  -> the whole index at one moment, written now and then
+ *                     so the journals before it can be deleted
+ * Both are sequences of records. A record is the length and the CRC32 of its
+ * body, each a 4 byte int, followed by the body, a message written with
+ * MessageWriter. A record cut short by a crash or failing its checksum ends
+ * the file.
+ *
+ * A snapshot is written after a new journal is started, so it holds every
+ * change in the journals before it and maybe some in the new one. Recovery
+ * replays the journals from the snapshot's on. Replaying a change that is
+ * already in the snapshot leaves the index as it was: peers and file lists
+ * are replaced whole, and a delta whose version has passed is refused.
+ *
+ * At startup the files are mapped into memory and read in place. Heartbeats
+ * are not journalled, so a peer's lease end is only known as of the last
+ * snapshot or registration. A recovered peer whose lease had ended more than
+ * the recovery grace before the restart is dropped. The others get a new
+ * lease, and are dropped in turn if they send no heartbeat before it ends.
+ */
+public class TrackerStore implements TrackerIndex.Journal {
+    /**
+     * Default time in milliseconds between snapshots
+     */
+    public static final long DEFAULT_SNAPSHOT_INTERVAL = 60 * 1000;
+
+    /**
+     * Default time in milliseconds a recovered peer's lease may have been
+     * over for the peer to be kept
+     */
+    public static final long DEFAULT_RECOVERY_GRACE = 5 * 60 * 1000;
+
+    /**
+     * Types of records
+     */
+    static final int PEER = 1,
+	FILES = 2,
+	DELTA = 3,
+	REMOVE = 4,
+	STATE = 5;
+
+    /**
+     * First bytes of a snapshot, "XFST"
+     */
+    private static final int SNAPSHOT_MAGIC = 0x58465354;
+
+    private static final String SNAPSHOT = "snapshot.bin";
+    private static final String SNAPSHOT_TEMP = "snapshot.tmp";
+    private static final String JOURNAL_PREFIX = "journal-";
+    private static final String JOURNAL_SUFFIX = ".log";
+
+    private final File dir;
+    private final long leaseTime;
+    private final long snapshotInterval;
+    private final long recoveryGrace;
+
+    /**
+     * Journal changes are appended to, or null before recovery
+     */
+    private FileChannel journal;
+
+    /**
+     * Number of the journal being appended to
+     */
+    private long generation;
+
+    /**
+     * Held while a snapshot is written, so only one is written at a time.
+     * Not this, which appends hold while a peer's entry is held.
+     */
+    private final Object snapshotLock = new Object();
+
+    private volatile Thread snapshotter;
+
+    public TrackerStore(File dir, long leaseTime) {
+	this(dir, leaseTime, DEFAULT_SNAPSHOT_INTERVAL, DEFAULT_RECOVERY_GRACE);
+    }
+
+    /**
+     * @param dir Directory the snapshot and journals are kept in
+     * @param leaseTime Lease time of the tracking server in milliseconds
+     * @param snapshotInterval Milliseconds between snapshots
+     * @param recoveryGrace Milliseconds a recovered peer's lease may have
+     * been over for the peer to be kept
+     */
+    public TrackerStore(File dir, long leaseTime, long snapshotInterval,
+			long recoveryGrace) {
+	this.dir = dir;
+	this.leaseTime = leaseTime;
+	this.snapshotInterval = snapshotInterval;
+	this.recoveryGrace = recoveryGrace;
+    }
+
+    /**
+     * Load the snapshot and replay the journals into an empty index, then
+     * keep journalling its changes. The recovered peers that are kept are
+     * granted leases.
+     * @return Number of peers recovered
+     */
+    public int recover(TrackerIndex index, PeerLeases leases)
+	throws IOException {
+	if(!dir.isDirectory() && !dir.mkdirs()) {
+	    throw new IOException("Cannot create " + dir);
+	}
+	Map<String, Long> leaseEnds = new HashMap<>();
+	long first = 0;
+	File snapshot = new File(dir, SNAPSHOT);
+	if(snapshot.exists()) {
+	    first = readSnapshot(snapshot, index, leaseEnds);
+	}
+	long last = first;
+	for(long number : journalNumbers()) {
+	    if(number >= first) {
+		readRecords(map(journalFile(number)), index, leaseEnds);
+		last = number;
+	    }
+	}
+
+	long now = System.currentTimeMillis();
+	int recovered = 0;
+	for(String peerID : new ArrayList<>(index.getPeers().keySet())) {
+	    Long leaseEnd = leaseEnds.get(peerID);
+	    if(leaseEnd == null || leaseEnd < now - recoveryGrace) {
+		index.removePeer(peerID);
+	    } else {
+		leases.grant(peerID);
+		recovered++;
+	    }
+	}
+
+	synchronized(this) {
+	    generation = last;
+	}
+	index.setJournal(this);
+	snapshot(index, leases);
+	return recovered;
+    }
+
+    /**
+     * Write snapshots at the snapshot interval on a daemon thread.
+     */
+    public synchronized void start(final TrackerIndex index,
+				   final PeerLeases leases) {
+	if(snapshotter != null) {
+	    return;
+	}
+	snapshotter = new Thread(new Runnable() {
+		@Override public void run() {
+		    while(snapshotter == Thread.currentThread()) {
+			try {
+			    Thread.sleep(snapshotInterval);
+			} catch(InterruptedException e) {
+			    return;
+			}
+			try {
+			    snapshot(index, leases);
+			} catch(IOException e) {
+			    System.out.println("Snapshot failed: " +
+					       e.getMessage());
+			}
+		    }
+		}
+	    }, "xfs-snapshot");
+	snapshotter.setDaemon(true);
+	snapshotter.start();
+    }
+
+    /**
+     * Stop writing snapshots, write a last one and close the journal.
+     */
+    public void close(TrackerIndex index, PeerLeases leases)
+	throws IOException {
+	Thread thread;
+	synchronized(this) {
+	    thread = snapshotter;
+	    snapshotter = null;
+	}
+	if(thread != null) {
+	    thread.interrupt();
+	    try {
+		thread.join();
+	    } catch(InterruptedException e) {
+		Thread.currentThread().interrupt();
+	    }
+	}
+	snapshot(index, leases);
+	index.setJournal(null);
+	synchronized(this) {
+	    if(journal != null) {
+		journal.close();
+		journal = null;
+	    }
+	}
+    }
+
+    /**
+     * Start a new journal, write the whole index to a snapshot and delete
+     * the journals the snapshot replaces.
+     */
+    public void snapshot(TrackerIndex index, final PeerLeases leases)
+	throws IOException {
+	synchronized(snapshotLock) {
+	    writeSnapshot(index, leases);
+	}
+    }
+
+    private void writeSnapshot(TrackerIndex index, final PeerLeases leases)
+	throws IOException {
+	final long number = startJournal();
+	File temp = new File(dir, SNAPSHOT_TEMP);
+	FileOutputStream file = new FileOutputStream(temp);
+	try {
+	    final DataOutputStream out =
+		new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+	    out.writeInt(SNAPSHOT_MAGIC);
+	    out.writeLong(number);
+	    out.writeLong(System.currentTimeMillis());
+	    final IOException[] error = new IOException[1];
+	    index.forEachPeer(new TrackerIndex.PeerVisitor() {
+		    @Override public void visit(Peer peer, String[] fileList,
+						long version) {
+			if(error[0] != null) {
+			    return;
+			}
+			MessageWriter record = new MessageWriter(STATE);
+			writePeer(record, peer, leases.getExpiry(peer.getID()));
+			record.writeVarLong(version);
+			writeFileList(record, fileList);
+			try {
+			    writeRecord(out, record);
+			} catch(IOException e) {
+			    error[0] = e;
+			}
+		    }
+		});
+	    if(error[0] != null) {
+		throw error[0];
+	    }
+	    out.flush();
+	    file.getFD().sync();
+	} finally {
+	    file.close();
+	}
+	Files.move(temp.toPath(), new File(dir, SNAPSHOT).toPath(),
+		   StandardCopyOption.REPLACE_EXISTING,
+		   StandardCopyOption.ATOMIC_MOVE);
+	syncDirectory();
+	for(long old : journalNumbers()) {
+	    if(old < number) {
+		journalFile(old).delete();
+	    }
+	}
+    }
+
+    @Override public void putPeer(Peer peer) {
+	MessageWriter record = new MessageWriter(PEER);
+	writePeer(record, peer, System.currentTimeMillis() + leaseTime);
+	append(record);
+    }
+
+    @Override public void setFiles(String peerID, Set<String> fileList) {
+	MessageWriter record = new MessageWriter(FILES);
+	record.writeString(peerID);
+	writeFileList(record, fileList.toArray(new String[0]));
+	append(record);
+    }
+
+    @Override public void applyDelta(String peerID, long baseVersion,
+				     String[] added, String[] removed) {
+	MessageWriter record = new MessageWriter(DELTA);
+	record.writeString(peerID).writeVarLong(baseVersion);
+	writeFileList(record, added);
+	writeFileList(record, removed);
+	append(record);
+    }
+
+    @Override public void removePeer(String peerID) {
+	append(new MessageWriter(REMOVE).writeString(peerID));
+    }
+
+    /**
+     * Close the journal being appended to and start the next one.
+     * @return Number of the new journal
+     */
+    private synchronized long startJournal() throws IOException {
+	if(journal != null) {
+	    journal.close();
+	    journal = null;
+	}
+	generation++;
+	journal = FileChannel.open(journalFile(generation).toPath(),
+				   StandardOpenOption.CREATE,
+				   StandardOpenOption.WRITE,
+				   StandardOpenOption.TRUNCATE_EXISTING);
+	return generation;
+    }
+
+    /**
+     * Append a record to the journal. A change that cannot be journalled is
+     * still made to the index, and is saved by the next snapshot.
+     */
+    private synchronized void append(MessageWriter record) {
+	if(journal == null) {
+	    return;
+	}
+	ByteBuffer buffer = ByteBuffer.allocate(8 + record.length());
+	buffer.putInt(record.length()).putInt(checksum(record));
+	buffer.put(record.array(), 0, record.length());
+	buffer.flip();
+	try {
+	    while(buffer.hasRemaining()) {
+		journal.write(buffer);
+	    }
+	} catch(IOException e) {
+	    System.out.println("Failed to write journal: " + e.getMessage());
+	}
+    }
+
+    /**
+     * Read a snapshot into the index.
+     * @return Number of the first journal not in the snapshot, or 0 if the
+     * snapshot cannot be read
+     */
+    private long readSnapshot(File snapshot, TrackerIndex index,
+			      Map<String, Long> leaseEnds) throws IOException {
+	MappedByteBuffer buffer = map(snapshot);
+	if(buffer.remaining() < 20 || buffer.getInt() != SNAPSHOT_MAGIC) {
+	    System.out.println("Ignoring malformed snapshot " + snapshot);
+	    return 0;
+	}
+	long number = buffer.getLong();
+	buffer.getLong();
+	readRecords(buffer, index, leaseEnds);
+	return number;
+    }
+
+    /**
+     * Apply the records of a mapped file to the index, up to the end of the
+     * file or the first record that is cut short or corrupt.
+     */
+    private void readRecords(ByteBuffer buffer, TrackerIndex index,
+			     Map<String, Long> leaseEnds) {
+	while(buffer.remaining() >= 8) {
+	    int length = buffer.getInt();
+	    int expected = buffer.getInt();
+	    if(length < 0 || length > buffer.remaining()) {
+		System.out.println("Record cut short, stopping recovery here");
+		return;
+	    }
+	    byte[] body = new byte[length];
+	    buffer.get(body);
+	    CRC32 crc = new CRC32();
+	    crc.update(body, 0, length);
+	    if((int)crc.getValue() != expected) {
+		System.out.println("Corrupt record, stopping recovery here");
+		return;
+	    }
+	    try {
+		apply(new MessageReader(body), index, leaseEnds);
+	    } catch(IOException e) {
+		System.out.println("Malformed record, stopping recovery here: " +
+				   e.getMessage());
+		return;
+	    }
+	}
+    }
+
+    private void apply(MessageReader record, TrackerIndex index,
+		       Map<String, Long> leaseEnds) throws IOException {
+	String peerID;
+	switch(record.getType()) {
+	case PEER:
+	    Peer peer = readPeer(record);
+	    index.putPeer(peer);
+	    leaseEnds.put(peer.getID(), record.readVarLong());
+	    break;
+	case STATE:
+	    Peer saved = readPeer(record);
+	    long leaseEnd = record.readVarLong();
+	    long version = record.readVarLong();
+	    index.restore(saved, readFileList(record), version);
+	    leaseEnds.put(saved.getID(), leaseEnd);
+	    break;
+	case FILES:
+	    peerID = record.readString();
+	    index.setFiles(peerID, readFileList(record));
+	    break;
+	case DELTA:
+	    peerID = record.readString();
+	    long baseVersion = record.readVarLong();
+	    String[] added = readFileList(record);
+	    index.applyDelta(peerID, baseVersion, added, readFileList(record));
+	    break;
+	case REMOVE:
+	    peerID = record.readString();
+	    index.removePeer(peerID);
+	    leaseEnds.remove(peerID);
+	    break;
+	default:
+	    throw new IOException("Unknown record type " + record.getType());
+	}
+    }
+
+    /**
+     * Numbers of the journals in the data directory, lowest first
+     */
+    private List<Long> journalNumbers() {
+	List<Long> numbers = new ArrayList<>();
+	String[] names = dir.list();
+	if(names == null) {
+	    return numbers;
+	}
+	for(String name : names) {
+	    if(name.startsWith(JOURNAL_PREFIX) && name.endsWith(JOURNAL_SUFFIX)) {
+		try {
+		    numbers.add(Long.parseLong(name.substring(
+			JOURNAL_PREFIX.length(),
+			name.length() - JOURNAL_SUFFIX.length())));
+		} catch(NumberFormatException e) {
+		}
+	    }
+	}
+	Collections.sort(numbers);
+	return numbers;
+    }
+
+    private File journalFile(long number) {
+	return new File(dir, JOURNAL_PREFIX + number + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * Flush the data directory so that the rename of a snapshot is on disk.
+     * Not every platform can open a directory, in which case this does
+     * nothing.
+     */
+    private void syncDirectory() {
+	try {
+	    FileChannel channel = FileChannel.open(dir.toPath(),
+						   StandardOpenOption.READ);
+	    try {
+		channel.force(true);
+	    } finally {
+		channel.close();
+	    }
+	} catch(IOException e) {
+	}
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+	FileChannel channel = FileChannel.open(file.toPath(),
+					       StandardOpenOption.READ);
+	try {
+	    return channel.map(FileChannel.MapMode.READ_ONLY, 0,
+			       channel.size());
+	} finally {
+	    channel.close();
+	}
+    }
+
+    private static void writeRecord(DataOutputStream out, MessageWriter record)
+	throws IOException {
+	out.writeInt(record.length());
+	out.writeInt(checksum(record));
+	out.write(record.array(), 0, record.length());
+    }
+
+    private static int checksum(MessageWriter record) {
+	CRC32 crc = new CRC32();
+	crc.update(record.array(), 0, record.length());
+	return (int)crc.getValue();
+    }
+
+    private static void writePeer(MessageWriter record, Peer peer,
+				  long leaseEnd) {
+	record.writeString(peer.getID()).writeVarLong(peer.getPort())
+	    .writeString(peer.getAddress()).writeVarLong(leaseEnd);
+    }
+
+    /**
+     * Read the peer written by writePeer, up to its lease end.
+     */
+    private static Peer readPeer(MessageReader record) throws IOException {
+	String peerID = record.readString();
+	int port = record.readVarInt();
+	return new Peer(peerID, port, record.readString());
+    }
+
+    private static void writeFileList(MessageWriter record,
+				      String[] fileList) {
+	record.writeVarLong(fileList.length);
+	for(String filename : fileList) {
+	    record.writeString(filename);
+	}
+    }
+
+    private static String[] readFileList(MessageReader record)
+	throws IOException {
+	String[] fileList = new String[record.readCount(1)];
+	for(int i = 0; i < fileList.length; i++) {
+	    fileList[i] = record.readString();
+	}
+	return fileList;
+    }
+}
@@ -0,0 +1,81 @@
+package com.xfs.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.Before;
+import static org.junit.Assert.*;
+
+public class TestPeerLeases {
+    List<String> expired;
+    PeerLeases leases;
+
+    @Before public void setUp() {
+	expired = new ArrayList<String>();
+	leases = new PeerLeases(1000, 100, new PeerLeases.ExpiryHandler() {
+		@Override public void expired(String peerID) {
+		    expired.add(peerID);
+		}
+	    }, 0);
+    }
+
+    @Test public void leaseExpiresWithoutRenewal() {
+	leases.grant("1", 0);
+	leases.advance(900);
+	assertTrue(leases.isLive("1", 900));
+	assertTrue(expired.isEmpty());
+
+	leases.advance(1000);
+
+	assertFalse(leases.isLive("1", 1000));
+	assertEquals(1, expired.size());
+	assertEquals("1", expired.get(0));
+    }
+
+    @Test public void renewedLeaseOutlivesOldEnd() {
+	leases.grant("1", 0);
+	assertTrue(leases.renew("1", 800));
+
+	leases.advance(1500);
+
+	assertTrue(leases.isLive("1", 1500));
+	assertTrue(expired.isEmpty());
+
+	leases.advance(1800);
+
+	assertEquals(1, expired.size());
+    }
+
+    @Test public void endedLeaseCannotBeRenewed() {
+	leases.grant("1", 0);
+
+	assertFalse(leases.renew("1", 1200));
+	assertFalse(leases.renew("2", 0));
+    }
+
+    @Test public void sweepCatchesUpAfterLongPause() {
+	leases.grant("1", 0);
+	leases.grant("2", 30000);
+
+	leases.advance(100000);
+
+	assertEquals(2, expired.size());
+    }
+
+    @Test public void leaseLongerThanWheelTurnExpiresOnTime() {
+	leases = new PeerLeases(60000, 100, new PeerLeases.ExpiryHandler() {
+		@Override public void expired(String peerID) {
+		    expired.add(peerID);
+		}
+	    }, 0);
+	leases.grant("1", 0);
+	for(long now = 0; now < 60000; now += 100) {
+	    leases.advance(now);
+	}
+	assertTrue(expired.isEmpty());
+
+	leases.advance(60000);
+
+	assertEquals(1, expired.size());
+    }
+}
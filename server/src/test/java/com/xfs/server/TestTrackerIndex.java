@@ -0,0 +1,144 @@
+package com.xfs.server;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import com.xfs.common.Peer;
+import org.junit.Test;
+import org.junit.Before;
+import static org.junit.Assert.*;
+
+public class TestTrackerIndex {
+    TrackerIndex index;
+
+    @Before public void setUp() {
+	index = new TrackerIndex();
+    }
+
+    @Test public void findReturnsPeersWithFile() {
+	index.putPeer(new Peer("1", 11523, "1.1.2.3"));
+	index.putPeer(new Peer("2", 11524, "1.1.2.4"));
+	index.setFiles("1", new String[] {"a", "b"});
+	index.setFiles("2", new String[] {"b"});
+
+	assertEquals(1, index.find("a").length);
+	assertEquals("1", index.find("a")[0].getID());
+	assertEquals(2, index.find("b").length);
+	assertNull(index.find("c"));
+    }
+
+    @Test public void setFilesReplacesOldList() {
+	index.putPeer(new Peer("1", 11523, "1.1.2.3"));
+	index.setFiles("1", new String[] {"a", "b"});
+	index.setFiles("1", new String[] {"b", "c"});
+
+	assertNull(index.find("a"));
+	assertNotNull(index.find("c"));
+	assertEquals(new HashSet<String>(Arrays.asList("b", "c")),
+		     index.getFiles("1"));
+    }
+
+    @Test public void deltaAppliesToMatchingVersion() {
+	index.putPeer(new Peer("1", 11523, "1.1.2.3"));
+	index.setFiles("1", new String[] {"a", "b"});
+
+	assertTrue(index.applyDelta("1", 0, new String[] {"c"},
+				    new String[] {"a"}));
+
+	assertEquals(1, index.getVersion("1"));
+	assertNull(index.find("a"));
+	assertNotNull(index.find("c"));
+	assertEquals(new HashSet<String>(Arrays.asList("b", "c")),
+		     index.getFiles("1"));
+    }
+
+    @Test public void deltaForOtherVersionIsRefused() {
+	index.putPeer(new Peer("1", 11523, "1.1.2.3"));
+	index.setFiles("1", new String[] {"a"});
+
+	assertFalse(index.applyDelta("1", 5, new String[] {"c"},
+				     new String[] {"a"}));
+	assertFalse(index.applyDelta("2", 0, new String[] {"c"},
+				     new String[0]));
+
+	assertEquals(0, index.getVersion("1"));
+	assertEquals(-1, index.getVersion("2"));
+	assertEquals(new HashSet<String>(Arrays.asList("a")),
+		     index.getFiles("1"));
+    }
+
+    @Test public void removePeerDropsItsFiles() {
+	index.putPeer(new Peer("1", 11523, "1.1.2.3"));
+	index.putPeer(new Peer("2", 11524, "1.1.2.4"));
+	index.setFiles("1", new String[] {"a", "b"});
+	index.setFiles("2", new String[] {"b"});
+
+	index.removePeer("1");
+
+	assertNull(index.getPeer("1"));
+	assertNull(index.find("a"));
+	assertEquals(1, index.find("b").length);
+	assertEquals(-1, index.getVersion("1"));
+	assertTrue(index.getFiles("1").isEmpty());
+    }
+
+    @Test public void filesOfUnknownPeerAreIgnored() {
+	assertFalse(index.setFiles("1", new String[] {"a"}));
+
+	assertNull(index.find("a"));
+	assertTrue(index.getFiles("1").isEmpty());
+    }
+
+    @Test public void removePeerIfKeepsPeerWhenConditionFails() {
+	index.putPeer(new Peer("1", 11523, "1.1.2.3"));
+	index.setFiles("1", new String[] {"a"});
+
+	index.removePeerIf("1", new Predicate<String>() {
+		@Override public boolean test(String id) {
+		    return false;
+		}
+	    });
+
+	assertNotNull(index.getPeer("1"));
+	assertEquals(1, index.find("a").length);
+    }
+
+    @Test public void putPeerReportsNewPeers() {
+	assertTrue(index.putPeer(new Peer("1", 11523, "1.1.2.3")));
+	assertFalse(index.putPeer(new Peer("1", 11600, "1.1.2.3")));
+	assertEquals(11600, index.getPeer("1").getPort());
+    }
+
+    @Test public void concurrentUpdatesAreNotLost() throws Exception {
+	final int peers = 16;
+	ExecutorService pool = Executors.newFixedThreadPool(8);
+	for(int i = 0; i < peers; i++) {
+	    final String id = "" + i;
+	    pool.execute(new Runnable() {
+		    @Override public void run() {
+			index.putPeer(new Peer(id, 11523, "1.1.2.3"));
+			for(int round = 0; round < 200; round++) {
+			    index.setFiles(id, new String[] {"shared",
+							     "own" + id,
+							     "round" + round});
+			}
+		    }
+		});
+	}
+	pool.shutdown();
+	assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+
+	assertEquals(peers, index.find("shared").length);
+	assertEquals(peers, index.find("round199").length);
+	assertNull(index.find("round198"));
+	for(int i = 0; i < peers; i++) {
+	    Set<String> files = index.getFiles("" + i);
+	    assertEquals(3, files.size());
+	    assertEquals(1, index.find("own" + i).length);
+	}
+    }
+}
@@ -0,0 +1,146 @@
+package com.xfs.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import com.xfs.common.Peer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class TestTrackerStore {
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    File dir;
+    TrackerIndex index;
+    PeerLeases leases;
+    TrackerStore store;
+
+    @Before public void setUp() throws IOException {
+	dir = folder.newFolder("tracker");
+	index = new TrackerIndex();
+	leases = newLeases();
+	store = new TrackerStore(dir, 30000);
+	store.recover(index, leases);
+    }
+
+    @Test public void journalRestoresIndexAfterCrash() throws IOException {
+	index.putPeer(new Peer("1", 11523, "1.1.2.3"));
+	index.putPeer(new Peer("2", 11524, "1.1.2.4"));
+	index.setFiles("1", new String[] {"a", "b"});
+	index.setFiles("2", new String[] {"b"});
+	assertTrue(index.applyDelta("1", 0, new String[] {"c"},
+				    new String[] {"a"}));
+	index.removePeer("2");
+
+	TrackerIndex recovered = new TrackerIndex();
+	PeerLeases recoveredLeases = newLeases();
+	int peers = new TrackerStore(dir, 30000)
+	    .recover(recovered, recoveredLeases);
+
+	assertEquals(1, peers);
+	assertEquals(new HashSet<String>(Arrays.asList("b", "c")),
+		     recovered.getFiles("1"));
+	assertEquals(1, recovered.getVersion("1"));
+	assertEquals(11523, recovered.getPeer("1").getPort());
+	assertNull(recovered.getPeer("2"));
+	assertTrue(recoveredLeases.isLive("1"));
+    }
+
+    @Test public void journalIsReplayedOnSnapshot() throws IOException {
+	index.putPeer(new Peer("1", 11523, "1.1.2.3"));
+	leases.grant("1");
+	index.setFiles("1", new String[] {"a"});
+	store.snapshot(index, leases);
+	index.putPeer(new Peer("2", 11524, "1.1.2.4"));
+	index.setFiles("2", new String[] {"a"});
+	assertTrue(index.applyDelta("1", 0, new String[] {"b"},
+				    new String[0]));
+
+	TrackerIndex recovered = new TrackerIndex();
+	new TrackerStore(dir, 30000).recover(recovered, newLeases());
+
+	assertEquals(2, recovered.find("a").length);
+	assertEquals(1, recovered.find("b").length);
+	assertEquals(1, recovered.getVersion("1"));
+	assertEquals(1, journals().length);
+    }
+
+    @Test public void tornRecordEndsJournal() throws IOException {
+	index.putPeer(new Peer("1", 11523, "1.1.2.3"));
+	index.setFiles("1", new String[] {"a"});
+	File[] journals = journals();
+	assertEquals(1, journals.length);
+	FileOutputStream out = new FileOutputStream(journals[0], true);
+	out.write(new byte[] {0, 0, 0, 40, 1, 2, 3, 4, 5});
+	out.close();
+
+	TrackerIndex recovered = new TrackerIndex();
+	int peers = new TrackerStore(dir, 30000)
+	    .recover(recovered, newLeases());
+
+	assertEquals(1, peers);
+	assertEquals(1, recovered.find("a").length);
+    }
+
+    @Test public void peerWithOldLeaseIsDropped() throws Exception {
+	dir = folder.newFolder("stale");
+	index = new TrackerIndex();
+	new TrackerStore(dir, 0, 60000, 0).recover(index, leases);
+	index.putPeer(new Peer("1", 11523, "1.1.2.3"));
+	index.setFiles("1", new String[] {"a"});
+	Thread.sleep(20);
+
+	TrackerIndex recovered = new TrackerIndex();
+	PeerLeases recoveredLeases = newLeases();
+	int peers = new TrackerStore(dir, 30000, 60000, 0)
+	    .recover(recovered, recoveredLeases);
+
+	assertEquals(0, peers);
+	assertNull(recovered.getPeer("1"));
+	assertNull(recovered.find("a"));
+	assertFalse(recoveredLeases.isLive("1"));
+    }
+
+    @Test public void closeDuringPeriodicSnapshotsKeepsIndex()
+	throws Exception {
+	store = new TrackerStore(dir, 30000, 1,
+				 TrackerStore.DEFAULT_RECOVERY_GRACE);
+	index = new TrackerIndex();
+	store.recover(index, leases);
+	store.start(index, leases);
+	for(int i = 0; i < 200; i++) {
+	    index.putPeer(new Peer(Integer.toString(i), 11523, "1.1.2.3"));
+	    leases.grant(Integer.toString(i));
+	    index.setFiles(Integer.toString(i), new String[] {"a"});
+	}
+	store.close(index, leases);
+
+	TrackerIndex recovered = new TrackerIndex();
+	int peers = new TrackerStore(dir, 30000)
+	    .recover(recovered, newLeases());
+
+	assertEquals(200, peers);
+	assertEquals(200, recovered.find("a").length);
+    }
+
+    private PeerLeases newLeases() {
+	return new PeerLeases(30000, new PeerLeases.ExpiryHandler() {
+		@Override public void expired(String peerID) {
+		}
+	    });
+    }
+
+    private File[] journals() {
+	return dir.listFiles(new FilenameFilter() {
+		@Override public boolean accept(File dir, String name) {
+		    return name.startsWith("journal-");
+		}
+	    });
+    }
+}